@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading;
+
+import com.moscona.util.monitoring.stats.IStatsService;
+
+/**
+ * A base for pipeline stages that publish their counters to the stats service of a services bundle. Each stat is
+ * named "&lt;prefix&gt; &lt;name&gt;", so several instances of a stage can publish side by side with different
+ * prefixes. Subclasses only say which stats they have (publishStats(IStatsService, String)).
+ */
+public abstract class AbstractStatsPublisher implements IServicesClient {
+    private ServicesBundle servicesBundle = null;
+    private String statPrefix;
+
+    /**
+     * @param defaultStatPrefix the prefix of the stat names until setStatPrefix() is called
+     */
+    protected AbstractStatsPublisher(String defaultStatPrefix) {
+        this.statPrefix = defaultStatPrefix;
+    }
+
+    @Override
+    public ServicesBundle getServicesBundle() {
+        return servicesBundle;
+    }
+
+    @Override
+    public void setServicesBundle(ServicesBundle services) {
+        this.servicesBundle = services;
+    }
+
+    public String getStatPrefix() {
+        return statPrefix;
+    }
+
+    /**
+     * @param statPrefix the prefix of the stat names
+     */
+    public void setStatPrefix(String statPrefix) {
+        this.statPrefix = statPrefix;
+    }
+
+    /**
+     * Publishes the stats to the stats service, if there is one
+     */
+    public void publishStats() {
+        ServicesBundle services = servicesBundle;
+        IStatsService stats = services == null ? null : services.getStatsService();
+        if (stats != null) {
+            publishStats(stats, statPrefix);
+        }
+    }
+
+    /**
+     * Publishes the stats of the stage
+     * @param stats the stats service
+     * @param prefix the prefix to start every stat name with
+     */
+    protected abstract void publishStats(IStatsService stats, String prefix);
+}
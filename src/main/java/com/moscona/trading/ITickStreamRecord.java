@@ -41,6 +41,18 @@ public interface ITickStreamRecord {
                             AbstractMap<String,Integer> forwardMap,
                             AbstractMap<Integer,String> backwardMap)
             throws InvalidArgumentException, MissingSymbolException;
+
+    /**
+     * Initializes the record from values that are already in their internal representation, with no conversions.
+     * This is the allocation free, float free path for feed handlers and replay.
+     * @param internalTimestamp - the transaction time as an internal server timestamp
+     * @param symbolCode - the symbol code
+     * @param priceCents - the price of the transaction in cents
+     * @param quantity - the number of shares traded
+     * @return this
+     */
+    ITickStreamRecord init(int internalTimestamp, int symbolCode, int priceCents, int quantity);
+
     /**
      * Returns the raw backing array. Caution! This is not a clone of the array but the actual array.
      * This operation is not only dangerous, but also very not thread safe. It is, however very efficient and creates
@@ -55,8 +67,29 @@ public interface ITickStreamRecord {
 
     String getSymbol();
 
+    /**
+     * @return the symbol code, without translating it to a symbol (-1 if the code is not known). Records that only
+     * keep the symbol do not know their code.
+     */
+    default int getSymbolCode() {
+        return -1;
+    }
+
     float getPrice() throws InvalidArgumentException;
 
+    /**
+     * @return the price in cents, which is how prices are stored internally. Unlike getPrice() there is no conversion
+     * (except in the default, for records that only keep a float price).
+     */
+    default int getPriceCents() {
+        try {
+            return Math.round(getPrice() * 100);
+        }
+        catch (InvalidArgumentException e) {
+            throw new IllegalStateException("Could not get the price of "+this+": "+e.getMessage(), e);
+        }
+    }
+
     int getQuantity();
 
     int getInsertionTimestamp();
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.elements;
+
+import java.util.Arrays;
+
+/**
+ * A range query index over the bars of a chart: a segment tree that answers the high, low, volume, tick count and VWAP
+ * over any range of slots in O(log n), and is updated in O(log n) when a bar is set.
+ * The VWAP is computed from the bars, using the typical price (high + low + close) / 3 of each bar weighted by its
+ * volume - the bars do not keep the exact traded value. Tick counts are only known for ICumulativeBars.
+ * SymbolChart keeps its index up to date by itself (see SymbolChart.getRangeIndex()). For other charts call
+ * update() after setting a bar.
+ * Not thread safe - queries may not run concurrently with updates.
+ */
+public class ChartRangeIndex {
+    private static final int EMPTY_LOW = Integer.MAX_VALUE;
+
+    private final ISymbolChart chart;
+    private final int size;     // the number of leaves (a power of two)
+    private final int[] high;
+    private final int[] low;
+    private final long[] volume;
+    private final long[] ticks;
+    private final long[] value; // (high + low + close) cents times volume - three times the traded value
+
+    /**
+     * Builds the index over the current bars of a chart in O(n)
+     * @param chart the chart
+     */
+    public ChartRangeIndex(ISymbolChart chart) {
+        this.chart = chart;
+        int leaves = 1;
+        while (leaves < chart.capacity()) {
+            leaves <<= 1;
+        }
+        size = leaves;
+        high = new int[2 * size];
+        low = new int[2 * size];
+        volume = new long[2 * size];
+        ticks = new long[2 * size];
+        value = new long[2 * size];
+        Arrays.fill(low, EMPTY_LOW);
+        for (int slot = 0; slot <= chart.getLastAvailableBarIndex(); slot++) {
+            setLeaf(slot, chart.getBar(slot));
+        }
+        for (int node = size - 1; node > 0; node--) {
+            pull(node);
+        }
+    }
+
+    public ISymbolChart getChart() {
+        return chart;
+    }
+
+    /**
+     * Re-reads the bar in a slot of the chart
+     * @param slot the slot that changed
+     */
+    public void update(int slot) {
+        setLeaf(slot, chart.getBar(slot));
+        for (int node = (slot + size) >> 1; node > 0; node >>= 1) {
+            pull(node);
+        }
+    }
+
+    private void setLeaf(int slot, IBar bar) {
+        int leaf = slot + size;
+        if (bar == null || bar instanceof ICumulativeBar && !((ICumulativeBar) bar).hasData()) {
+            high[leaf] = 0;
+            low[leaf] = EMPTY_LOW;
+            volume[leaf] = 0;
+            ticks[leaf] = 0;
+            value[leaf] = 0;
+            return;
+        }
+        high[leaf] = bar.getHighCents();
+        low[leaf] = bar.getLowCents();
+        volume[leaf] = bar.getVolume();
+        ticks[leaf] = bar instanceof ICumulativeBar ? ((ICumulativeBar) bar).getTickCount() : 0;
+        // the division by 3 is left to getVwapCents(), so the typical price is not truncated to whole cents
+        value[leaf] = ((long) bar.getHighCents() + bar.getLowCents() + bar.getCloseCents()) * bar.getVolume();
+    }
+
+    private void pull(int node) {
+        int left = node << 1;
+        int right = left + 1;
+        high[node] = Math.max(high[left], high[right]);
+        low[node] = Math.min(low[left], low[right]);
+        volume[node] = volume[left] + volume[right];
+        ticks[node] = ticks[left] + ticks[right];
+        value[node] = value[left] + value[right];
+    }
+
+    /**
+     * @param from the first slot
+     * @param to the last slot (exclusive)
+     * @return the highest high in the range in cents, 0 if there are no bars in it
+     */
+    public int getHighCents(int from, int to) {
+        int max = 0;
+        for (int l = clip(from) + size, r = clip(to) + size; l < r; l >>= 1, r >>= 1) {
+            if ((l & 1) == 1) {
+                max = Math.max(max, high[l++]);
+            }
+            if ((r & 1) == 1) {
+                max = Math.max(max, high[--r]);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @param from the first slot
+     * @param to the last slot (exclusive)
+     * @return the lowest low in the range in cents, Integer.MAX_VALUE if there are no bars in it
+     */
+    public int getLowCents(int from, int to) {
+        int min = EMPTY_LOW;
+        for (int l = clip(from) + size, r = clip(to) + size; l < r; l >>= 1, r >>= 1) {
+            if ((l & 1) == 1) {
+                min = Math.min(min, low[l++]);
+            }
+            if ((r & 1) == 1) {
+                min = Math.min(min, low[--r]);
+            }
+        }
+        return min;
+    }
+
+    /**
+     * @param from the first slot
+     * @param to the last slot (exclusive)
+     * @return the total volume in the range
+     */
+    public long getVolume(int from, int to) {
+        return sum(volume, from, to);
+    }
+
+    /**
+     * @param from the first slot
+     * @param to the last slot (exclusive)
+     * @return the total number of ticks in the range
+     */
+    public long getTickCount(int from, int to) {
+        return sum(ticks, from, to);
+    }
+
+    /**
+     * @param from the first slot
+     * @param to the last slot (exclusive)
+     * @return the volume weighted average price in the range in cents (see the class comment), 0 if there was no volume
+     */
+    public double getVwapCents(int from, int to) {
+        long totalVolume = sum(volume, from, to);
+        return totalVolume == 0 ? 0.0 : sum(value, from, to) / (3.0 * totalVolume);
+    }
+
+    private long sum(long[] tree, int from, int to) {
+        long sum = 0;
+        for (int l = clip(from) + size, r = clip(to) + size; l < r; l >>= 1, r >>= 1) {
+            if ((l & 1) == 1) {
+                sum += tree[l++];
+            }
+            if ((r & 1) == 1) {
+                sum += tree[--r];
+            }
+        }
+        return sum;
+    }
+
+    private int clip(int slot) {
+        return slot < 0 ? 0 : Math.min(slot, size);
+    }
+}
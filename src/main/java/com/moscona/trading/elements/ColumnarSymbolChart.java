@@ -0,0 +1,473 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.elements;
+
+import com.moscona.exceptions.InvalidArgumentException;
+
+import java.util.Arrays;
+
+/**
+ * A symbol chart stored as primitive columns - int arrays of open, high, low, close and volume plus a presence bitset -
+ * instead of an array of bar objects. A full day of one second bars is 23,400 slots per symbol, so for a whole market
+ * SymbolChart means millions of small objects; here a slot costs 20 bytes and one bit and there is no per bar object
+ * for the garbage collector to trace.
+ * Empty slots hold zeros and Integer.MAX_VALUE as the low, so the range scans (getHighCents(from,to) etc.) are
+ * straight loops over the columns without branches on presence.
+ * getBar() returns a small view over a slot, for code that works with IBar. Writing through a view writes the
+ * columns. Use newView() and BarView.moveTo() to walk over a chart with a single view.
+ * Not thread safe.
+ */
+public class ColumnarSymbolChart implements ISymbolChart {
+    private static final int EMPTY_LOW = Integer.MAX_VALUE;
+
+    private final String symbol;
+    private final int startTimeStamp; // server internal timestamp
+    private final int endTimeStamp;   // server internal timestamp
+    private final int granularityMillis;
+    private final int[] open;
+    private final int[] high;
+    private final int[] low;
+    private final int[] close;
+    private final int[] volume;
+    private final long[] present;
+    private int lastAvailableBar = -1;
+    private int nonNullBars = 0;
+
+    public ColumnarSymbolChart(String symbol, int startTimeStamp, int endTimeStamp, int granularityMillis) throws InvalidArgumentException {
+        if (granularityMillis < 1) {
+            throw new InvalidArgumentException("The granularity must be positive. Got "+granularityMillis);
+        }
+        if (endTimeStamp < startTimeStamp + granularityMillis) {
+            throw new InvalidArgumentException("The space between the end time stamp and the start timestamp does not even allow for one bar given the granularity");
+        }
+        this.symbol = symbol;
+        this.startTimeStamp = startTimeStamp;
+        this.endTimeStamp = endTimeStamp;
+        this.granularityMillis = granularityMillis;
+
+        int size = (endTimeStamp - startTimeStamp) / granularityMillis;
+        open = new int[size];
+        high = new int[size];
+        low = new int[size];
+        close = new int[size];
+        volume = new int[size];
+        present = new long[(size + 63) >>> 6];
+        Arrays.fill(low, EMPTY_LOW);
+    }
+
+    /**
+     * Copies a chart of bar objects into a new columnar chart
+     * @param chart the chart to copy
+     * @return the columnar copy
+     * @throws InvalidArgumentException if the chart has an invalid time range
+     */
+    public static ColumnarSymbolChart copyOf(ISymbolChart chart) throws InvalidArgumentException {
+        ColumnarSymbolChart copy = new ColumnarSymbolChart(chart.getSymbol(), chart.getStartTimeStamp(), chart.getEndTimeStamp(), chart.getGranularityMillis());
+        for (int i = 0; i <= chart.getLastAvailableBarIndex(); i++) {
+            IBar bar = chart.getBar(i);
+            if (bar != null) {
+                copy.setBar(bar, i);
+            }
+        }
+        return copy;
+    }
+
+    @Override
+    public boolean hasData() {
+        return lastAvailableBar >= 0 && nonNullBars > 0;
+    }
+
+    /**
+     * Copies a bar into the next available slot
+     * @param bar the bar to add
+     */
+    public void addBar(IBar bar) {
+        setBar(bar, lastAvailableBar + 1);
+    }
+
+    /**
+     * Copies a bar into a slot
+     * @param bar the bar, or null to clear the slot
+     * @param slot the slot
+     */
+    public void setBar(IBar bar, int slot) {
+        if (bar == null) {
+            clear(slot);
+            return;
+        }
+        setBar(slot, bar.getOpenCents(), bar.getHighCents(), bar.getLowCents(), bar.getCloseCents(), bar.getVolume());
+    }
+
+    /**
+     * Writes a bar into a slot
+     * @param slot the slot
+     * @param openCents the open price in cents
+     * @param highCents the high price in cents
+     * @param lowCents the low price in cents
+     * @param closeCents the close price in cents
+     * @param volume the volume
+     */
+    public void setBar(int slot, int openCents, int highCents, int lowCents, int closeCents, int volume) {
+        open[slot] = openCents;
+        high[slot] = highCents;
+        low[slot] = lowCents;
+        close[slot] = closeCents;
+        this.volume[slot] = volume;
+        markPresent(slot);
+    }
+
+    /**
+     * Removes the bar in a slot. As in SymbolChart, the last available bar index (and so size()) is not moved back
+     * when the last bar is cleared: it stays at the highest slot ever written, so addBar() keeps appending after it
+     * and getBar() returns null for the cleared slot. hasData() is false once no bar is left.
+     * @param slot the slot
+     */
+    public void clear(int slot) {
+        open[slot] = 0;
+        high[slot] = 0;
+        low[slot] = EMPTY_LOW;
+        close[slot] = 0;
+        volume[slot] = 0;
+        if (isPresent(slot)) {
+            present[slot >>> 6] &= ~(1L << slot);
+            nonNullBars--;
+        }
+    }
+
+    private void markPresent(int slot) {
+        if (!isPresent(slot)) {
+            present[slot >>> 6] |= 1L << slot;
+            nonNullBars++;
+        }
+        if (lastAvailableBar < slot) {
+            lastAvailableBar = slot;
+        }
+    }
+
+    /**
+     * @param slot a slot
+     * @return true if there is a bar in the slot
+     */
+    public boolean isPresent(int slot) {
+        return (present[slot >>> 6] & (1L << slot)) != 0;
+    }
+
+    @Override
+    public int size() {
+        return lastAvailableBar + 1;
+    }
+
+    @Override
+    public int capacity() {
+        return open.length;
+    }
+
+    @Override
+    public String getSymbol() {
+        return symbol;
+    }
+
+    @Override
+    public int getStartTimeStamp() {
+        return startTimeStamp;
+    }
+
+    @Override
+    public int getEndTimeStamp() {
+        return endTimeStamp;
+    }
+
+    @Override
+    public int getGranularityMillis() {
+        return granularityMillis;
+    }
+
+    @Override
+    public int getLastAvailableBarIndex() {
+        return lastAvailableBar;
+    }
+
+    @Override
+    public int getNonNullBarsCount() {
+        return nonNullBars;
+    }
+
+    @Override
+    public int slotOf(int timeStamp) {
+        if (timeStamp < startTimeStamp) {
+            return -1;
+        }
+        int slot = (timeStamp - startTimeStamp) / granularityMillis;
+        return slot < open.length ? slot : -1;
+    }
+
+    /**
+     * @param slot a slot
+     * @return the server internal timestamp at which the slot starts
+     */
+    public int timeStampOf(int slot) {
+        return startTimeStamp + slot * granularityMillis;
+    }
+
+    /**
+     * @param i a slot
+     * @return a new view over the bar in the slot, or null if there is none
+     */
+    @Override
+    public BarView getBar(int i) {
+        if (i < 0 || i > lastAvailableBar || !isPresent(i)) {
+            return null;
+        }
+        return new BarView(i);
+    }
+
+    /**
+     * @return a reusable view, positioned at slot 0 (see BarView.moveTo())
+     */
+    public BarView newView() {
+        return new BarView(0);
+    }
+
+    public int getOpenCents(int slot) {
+        return open[slot];
+    }
+
+    public int getHighCents(int slot) {
+        return high[slot];
+    }
+
+    public int getLowCents(int slot) {
+        return low[slot];
+    }
+
+    public int getCloseCents(int slot) {
+        return close[slot];
+    }
+
+    public int getVolume(int slot) {
+        return volume[slot];
+    }
+
+    /**
+     * @param from the first slot
+     * @param to the last slot (exclusive)
+     * @return the highest high in the range in cents, 0 if there are no bars in it
+     */
+    public int getHighCents(int from, int to) {
+        int max = 0;
+        for (int i = from; i < to; i++) {
+            max = Math.max(max, high[i]);
+        }
+        return max;
+    }
+
+    /**
+     * @param from the first slot
+     * @param to the last slot (exclusive)
+     * @return the lowest low in the range in cents, Integer.MAX_VALUE if there are no bars in it
+     */
+    public int getLowCents(int from, int to) {
+        int min = EMPTY_LOW;
+        for (int i = from; i < to; i++) {
+            min = Math.min(min, low[i]);
+        }
+        return min;
+    }
+
+    /**
+     * @param from the first slot
+     * @param to the last slot (exclusive)
+     * @return the total volume in the range
+     */
+    public long getVolume(int from, int to) {
+        long sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += volume[i];
+        }
+        return sum;
+    }
+
+    /**
+     * @param from the first slot
+     * @param to the last slot (exclusive)
+     * @return the number of bars in the range
+     */
+    public int countBars(int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (isPresent(i)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * A flyweight IBar over one slot of the chart. Setting any value marks the slot as present.
+     */
+    public class BarView implements IBar {
+        private int slot;
+
+        private BarView(int slot) {
+            this.slot = slot;
+        }
+
+        /**
+         * @param slot the slot to view
+         * @return this
+         */
+        public BarView moveTo(int slot) {
+            this.slot = slot;
+            return this;
+        }
+
+        public int getSlot() {
+            return slot;
+        }
+
+        public boolean isPresent() {
+            return ColumnarSymbolChart.this.isPresent(slot);
+        }
+
+        /**
+         * Sets all the values of the slot, with the same checks as Bar. Nothing is written if they fail.
+         * @throws InvalidArgumentException if the open or close are outside the low to high range, or a value is
+         *                                  negative
+         */
+        @Override
+        public void set(int openCents, int closeCents, int highCents, int lowCents, int volume) throws InvalidArgumentException {
+            if (openCents < lowCents) {
+                throw new InvalidArgumentException("Open price is lower then low price.");
+            }
+            if (closeCents < lowCents) {
+                throw new InvalidArgumentException("Close price is lower then low price.");
+            }
+            if (openCents > highCents) {
+                throw new InvalidArgumentException("Open price is higher then high price.");
+            }
+            if (closeCents > highCents) {
+                throw new InvalidArgumentException("Close price is higher then high price.");
+            }
+            if (openCents < 0 || closeCents < 0 || lowCents < 0 || highCents < 0) {
+                throw new InvalidArgumentException("All prices must be positive. At least one is negative");
+            }
+            if (volume < 0) {
+                throw new InvalidArgumentException("The volume must be positive.");
+            }
+            setBar(slot, openCents, highCents, lowCents, closeCents, volume);
+        }
+
+        @Override
+        public int getOpenCents() {
+            return open[slot];
+        }
+
+        @Override
+        public void setOpenCents(int openCents) {
+            open[slot] = openCents;
+            markPresent(slot);
+        }
+
+        @Override
+        public int getCloseCents() {
+            return close[slot];
+        }
+
+        @Override
+        public void setCloseCents(int closeCents) {
+            close[slot] = closeCents;
+            markPresent(slot);
+        }
+
+        @Override
+        public int getHighCents() {
+            return high[slot];
+        }
+
+        @Override
+        public void setHighCents(int highCents) {
+            high[slot] = highCents;
+            markPresent(slot);
+        }
+
+        @Override
+        public int getLowCents() {
+            return isPresent() ? low[slot] : 0;
+        }
+
+        @Override
+        public void setLowCents(int lowCents) {
+            low[slot] = lowCents;
+            markPresent(slot);
+        }
+
+        @Override
+        public int getVolume() {
+            return volume[slot];
+        }
+
+        @Override
+        public void setVolume(int volume) {
+            ColumnarSymbolChart.this.volume[slot] = volume;
+            markPresent(slot);
+        }
+
+        @Override
+        public float getOpen() {
+            return getOpenCents() / 100.0f;
+        }
+
+        @Override
+        public void setOpen(float open) {
+            setOpenCents(Math.round(open * 100.0f));
+        }
+
+        @Override
+        public float getClose() {
+            return getCloseCents() / 100.0f;
+        }
+
+        @Override
+        public void setClose(float close) {
+            setCloseCents(Math.round(close * 100.0f));
+        }
+
+        @Override
+        public float getHigh() {
+            return getHighCents() / 100.0f;
+        }
+
+        @Override
+        public void setHigh(float high) {
+            setHighCents(Math.round(high * 100.0f));
+        }
+
+        @Override
+        public float getLow() {
+            return getLowCents() / 100.0f;
+        }
+
+        @Override
+        public void setLow(float low) {
+            setLowCents(Math.round(low * 100.0f));
+        }
+
+        public String toString() {
+            return "{open:"+getOpen()+",high:"+getHigh()+",low:"+getLow()+",close:"+getClose()+",volume:"+getVolume()+"}";
+        }
+    }
+}
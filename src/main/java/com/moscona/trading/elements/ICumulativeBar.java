@@ -36,6 +36,36 @@ public interface ICumulativeBar extends IBar {
      */
     void add(ITickStreamRecord record) throws InvalidArgumentException;
 
+    /**
+     * Adds a tick to an open bar, given in the internal representation. This is the aggregation hot path: there is no
+     * float math and no validation - the caller is responsible for passing a non-negative price and quantity.
+     * @param priceCents the price of the tick in cents
+     * @param quantity the number of shares traded
+     */
+    void add(int priceCents, int quantity);
+
+    /**
+     * Folds a finer bar of the same symbol into this open bar, as if its ticks were added one by one: the open is taken
+     * from the first merged bar, the close from the last one, the volume and the tick count add up, and a bar marked as
+     * missing data marks this bar as well. Bars must be merged in time order. Used for rolling bars up to a coarser
+     * granularity (see BarRollup).
+     * The default adds the finer bar's open, high, low and close as ticks, with all the volume on the close, so the
+     * tick count grows by up to four rather than by the finer bar's tick count. TimeSlotBar merges exactly.
+     * @param bar the finer bar
+     */
+    default void merge(ICumulativeBar bar) {
+        if (bar.isMarkedMissingData()) {
+            markMissingData();
+        }
+        if (!bar.hasData()) {
+            return;
+        }
+        add(bar.getOpenCents(), 0);
+        add(bar.getHighCents(), 0);
+        add(bar.getLowCents(), 0);
+        add(bar.getCloseCents(), bar.getVolume());
+    }
+
     boolean hasData();
 
     boolean isClosed();
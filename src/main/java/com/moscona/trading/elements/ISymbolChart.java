@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.elements;
+
+/**
+ * A chart of one symbol: a fixed number of time slots of granularityMillis each, starting at startTimeStamp, with at
+ * most one bar per slot. Implemented by SymbolChart (an array of bar objects) and by ColumnarSymbolChart (primitive
+ * columns, for large numbers of charts).
+ */
+public interface ISymbolChart {
+    /**
+     * Is there any data in the chart?
+     * @return true if there is any data here
+     */
+    boolean hasData();
+
+    /**
+     * @return the number of slots up to and including the last slot that has a bar
+     */
+    int size();
+
+    /**
+     * @return the number of slots in the chart
+     */
+    int capacity();
+
+    String getSymbol();
+
+    int getStartTimeStamp();
+
+    int getEndTimeStamp();
+
+    int getGranularityMillis();
+
+    /**
+     * @param i a slot
+     * @return the bar in the slot or null if there is none
+     */
+    IBar getBar(int i);
+
+    int getLastAvailableBarIndex();
+
+    int getNonNullBarsCount();
+
+    /**
+     * Maps a time stamp to the slot that covers it
+     * @param timeStamp a server internal timestamp
+     * @return the slot, or -1 if the time stamp is outside the chart
+     */
+    int slotOf(int timeStamp);
+}
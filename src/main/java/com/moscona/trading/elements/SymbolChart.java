@@ -19,6 +19,8 @@ package com.moscona.trading.elements;
 
 import com.moscona.exceptions.InvalidArgumentException;
 
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
  * Created by Arnon on 5/5/2014.
@@ -26,7 +28,7 @@ import com.moscona.exceptions.InvalidArgumentException;
  * and used arrays whenever possible. This focus may reemerge in this context as well, and so both for ease of code
  * refactoring as well as for keeping it consistent with the original (mostly), I am not redesigning this class.
  */
-public class SymbolChart<T extends IBar> {
+public class SymbolChart<T extends IBar> implements ISymbolChart, Iterable<T> {
     private String symbol;
     private int startTimeStamp; // server internal timestamp
     private int endTimeStamp;   // server internal timestamp
@@ -34,6 +36,7 @@ public class SymbolChart<T extends IBar> {
     private IBar[] bars;
     private int lastAvailableBar;
     private int nonNullBars;
+    private ChartRangeIndex rangeIndex = null;
 
     public SymbolChart(String symbol, int startTimeStamp, int endTimeStamp, int granularityMillis) throws InvalidArgumentException {
         this.symbol = symbol;
@@ -68,13 +71,43 @@ public class SymbolChart<T extends IBar> {
     }
 
     public void setBar(T bar, int slot) {
+        IBar previous = bars[slot];
         bars[slot] = bar;
         if (lastAvailableBar < slot) {
             lastAvailableBar = slot;
         }
-        if (bar != null) {
+        if (bar != null && previous == null) {
             nonNullBars++;
         }
+        else if (bar == null && previous != null) {
+            nonNullBars--;
+        }
+        if (rangeIndex != null) {
+            rangeIndex.update(slot);
+        }
+    }
+
+    /**
+     * Lets the chart know that a bar it holds was changed in place (e.g. an open bar that got more ticks), so that the
+     * range index sees the change
+     * @param slot the slot of the bar
+     */
+    public void barChanged(int slot) {
+        if (rangeIndex != null) {
+            rangeIndex.update(slot);
+        }
+    }
+
+    /**
+     * The range index of the chart, answering high, low, volume, tick count and VWAP queries over slot ranges in
+     * O(log n). Built on first use, and kept up to date by setBar() and barChanged() from then on.
+     * @return the range index
+     */
+    public ChartRangeIndex getRangeIndex() {
+        if (rangeIndex == null) {
+            rangeIndex = new ChartRangeIndex(this);
+        }
+        return rangeIndex;
     }
 
     public int size() {
@@ -117,6 +150,52 @@ public class SymbolChart<T extends IBar> {
         return nonNullBars;
     }
 
-    // todo some kind of iterator for a chart (only non nulls?)
+    public int slotOf(int timeStamp) {
+        if (timeStamp < startTimeStamp) {
+            return -1;
+        }
+        int slot = (timeStamp - startTimeStamp) / granularityMillis;
+        return slot < bars.length ? slot : -1;
+    }
+
+    /**
+     * @param from the slot to start looking at
+     * @return the first slot at or after from that has a bar, -1 if there is none
+     */
+    public int nextNonNullSlot(int from) {
+        for (int i = Math.max(from, 0); i <= lastAvailableBar; i++) {
+            if (bars[i] != null) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Iterates over the non null bars in slot order. Use nextNonNullSlot() to walk the slots of the bars.
+     * @return an iterator over the bars
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private int next = nextNonNullSlot(0);
+
+            @Override
+            public boolean hasNext() {
+                return next >= 0;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked") // cast of array type to T
+            public T next() {
+                if (next < 0) {
+                    throw new NoSuchElementException();
+                }
+                T bar = (T) bars[next];
+                next = nextNonNullSlot(next + 1);
+                return bar;
+            }
+        };
+    }
 }
 
@@ -53,6 +53,8 @@ public class TimeSlotBar extends Bar implements ICumulativeBar {
         setVolume(0);
 
         isClosed = false;
+        tickCount = 0;
+        markedMissingData = false;
     }
 
     /**
@@ -61,29 +63,107 @@ public class TimeSlotBar extends Bar implements ICumulativeBar {
      */
     @Override
     public void add(ITickStreamRecord record) throws InvalidArgumentException {
+        int priceCents = record.getPriceCents();
+        int quantity = record.getQuantity();
+        if (priceCents < 0 || quantity < 0) {
+            throw new InvalidArgumentException("Price and quantity must be positive. Got price (cents) "+priceCents+" and quantity "+quantity);
+        }
+        if (!isClosed && quantity > Integer.MAX_VALUE - volume) {
+            throw new InvalidArgumentException("Adding "+quantity+" shares would overflow the volume of the bar ("+volume+")");
+        }
+        add(priceCents, quantity);
+    }
+
+    /**
+     * Adds a tick to an open bar, given in the internal representation. No float math and no validation except for
+     * the volume overflow check.
+     * @param priceCents the price of the tick in cents
+     * @param quantity the number of shares traded
+     * @throws IllegalArgumentException if the volume of the bar would overflow (the bar is left unchanged)
+     */
+    @Override
+    public void add(int priceCents, int quantity) {
         if (isClosed) {
-            // todo deal with attempting to add a record to a bar that's already closed
+            // too late for this bar. Put late ticks back in order upstream (see TickReorderBuffer)
             return;
         }
-
-        float price = record.getPrice();
+        if (quantity > Integer.MAX_VALUE - volume) {
+            throw new IllegalArgumentException("Adding "+quantity+" shares would overflow the volume of the bar ("+volume+")");
+        }
 
         if (!anyValueNonZero()) {
             // all values zero - this has never been used before
-            setOpen(price);
-            setLow(price);
-            setHigh(price);
+            openCents = priceCents;
+            lowCents = priceCents;
+            highCents = priceCents;
         }
 
-        setClose(price);
-        setHigh(Math.max(price, getHigh()));
-        setLow(Math.min(price,getLow()));
-        setVolume(getVolume() + record.getQuantity());
+        closeCents = priceCents;
+        if (priceCents > highCents) {
+            highCents = priceCents;
+        }
+        if (priceCents < lowCents) {
+            lowCents = priceCents;
+        }
+        volume += quantity;
 
-        validate();
         tickCount++;
     }
 
+    @Override
+    public void merge(ICumulativeBar bar) {
+        if (isClosed) {
+            return;
+        }
+        if (bar.isMarkedMissingData()) {
+            markedMissingData = true;
+        }
+        if (!bar.hasData()) {
+            return;
+        }
+        if (bar.getVolume() > Integer.MAX_VALUE - volume) {
+            throw new IllegalArgumentException("Merging "+bar.getVolume()+" shares would overflow the volume of the bar ("+volume+")");
+        }
+
+        if (!anyValueNonZero()) {
+            openCents = bar.getOpenCents();
+            lowCents = bar.getLowCents();
+            highCents = bar.getHighCents();
+        }
+
+        closeCents = bar.getCloseCents();
+        if (bar.getHighCents() > highCents) {
+            highCents = bar.getHighCents();
+        }
+        if (bar.getLowCents() < lowCents) {
+            lowCents = bar.getLowCents();
+        }
+        volume += bar.getVolume();
+
+        tickCount += bar.getTickCount();
+    }
+
+    /**
+     * Restores a closed bar from storage (see SymbolChartFileReader)
+     * @param openCents the open in cents
+     * @param closeCents the close in cents
+     * @param highCents the high in cents
+     * @param lowCents the low in cents
+     * @param volume the volume
+     * @param tickCount the number of ticks in the bar
+     * @param markedMissingData whether the bar was marked as missing data
+     */
+    public void restore(int openCents, int closeCents, int highCents, int lowCents, int volume, int tickCount, boolean markedMissingData) {
+        this.openCents = openCents;
+        this.closeCents = closeCents;
+        this.highCents = highCents;
+        this.lowCents = lowCents;
+        this.volume = volume;
+        this.tickCount = tickCount;
+        this.markedMissingData = markedMissingData;
+        isClosed = true;
+    }
+
     @Override
     public boolean hasData() {
         return anyValueNonZero();
@@ -19,6 +19,7 @@ package com.moscona.trading.formats.deprecated;
 
 import com.moscona.exceptions.InvalidArgumentException;
 import com.moscona.exceptions.InvalidStateException;
+import com.moscona.trading.streaming.SymbolDictionary;
 import com.moscona.util.CsvHelper;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.time.DateUtils;
@@ -51,6 +52,7 @@ public class MarketTree implements Serializable {
     private HashMap<String, TreeEntry> tree = null;
     private HashMap<String,Integer> symbolToCodeMap = null;
     private HashMap<Integer,String> codeToSymbolMap = null;
+    private transient SymbolDictionary symbolDictionary = null; // built on demand from codeToSymbolMap
     private String loadedFrom;
     private boolean isNeverStale; // for testability only
     private boolean isStaleWasCalled; // for testability only
@@ -74,6 +76,24 @@ public class MarketTree implements Serializable {
         return codeToSymbolMap;
     }
 
+    /**
+     * A primitive equivalent of the symbol to code and code to symbol maps, for use on the tick path where the maps
+     * would box on every lookup. Built on demand and rebuilt after any change the tree makes to its maps. Code that
+     * modifies the maps directly must call invalidateSymbolDictionary().
+     * @return the dictionary for the current codes
+     * @throws InvalidArgumentException if the codes do not fit in a tick stream record
+     */
+    public synchronized SymbolDictionary getSymbolDictionary() throws InvalidArgumentException {
+        if (symbolDictionary == null) {
+            symbolDictionary = SymbolDictionary.fromMap(codeToSymbolMap);
+        }
+        return symbolDictionary;
+    }
+
+    public synchronized void invalidateSymbolDictionary() {
+        symbolDictionary = null;
+    }
+
     public int size() {
         return (tree==null)? 0 : tree.size();
     }
@@ -189,6 +209,7 @@ public class MarketTree implements Serializable {
             codeToSymbolMap.put(code, entry.getName());
             code++;
         }
+        invalidateSymbolDictionary();
     }
 
     /**
@@ -234,6 +255,7 @@ public class MarketTree implements Serializable {
         codeToSymbolMap.put(code, name);
         symbolToCodeMap.put(name,code);
         entry.setTree(this);
+        invalidateSymbolDictionary();
     }
 
     public synchronized void remove(String symbol) {
@@ -245,6 +267,7 @@ public class MarketTree implements Serializable {
         tree.remove(symbol);
         symbolToCodeMap.remove(symbol);
         codeToSymbolMap.remove(code);
+        invalidateSymbolDictionary();
     }
 
     public void validate() throws InvalidStateException {
@@ -342,6 +365,7 @@ public class MarketTree implements Serializable {
         tree.clear();
         codeToSymbolMap.clear();
         symbolToCodeMap.clear();
+        invalidateSymbolDictionary();
     }
 
     private TreeEntry digestRow(String[] row, Integer code) throws InvalidArgumentException {
@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.persistence;
+
+/**
+ * When a tick journal forces its memory-mapped segments to the storage device. Anything not forced is still written
+ * back by the operating system, so the policy only matters for machine crashes, not for process crashes.
+ */
+public enum FlushPolicy {
+    /** never force - leave write back entirely to the operating system */
+    OS_MANAGED,
+    /** force a segment when it is rolled over and when the journal is closed */
+    ON_ROLL,
+    /** force every flush interval records, as well as on roll and close */
+    EVERY_N_RECORDS,
+    /** force after every record. Very slow - one system call per tick. */
+    EVERY_RECORD
+}
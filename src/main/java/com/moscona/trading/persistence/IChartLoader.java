@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.persistence;
+
+import com.moscona.exceptions.InvalidStateException;
+import com.moscona.trading.elements.ISymbolChart;
+
+/**
+ * Loads or builds a chart for SymbolChartCache, for instance from a day's SymbolChartFileReader or by rolling up the
+ * day's tick archive. Called outside of the cache's lock, possibly from several threads at once (for different keys).
+ */
+public interface IChartLoader {
+    /**
+     * @param symbol the symbol
+     * @param day the day as yyyymmdd (see SymbolChartCache.dayOf())
+     * @param granularityMillis the granularity
+     * @return the chart, or null if there is no such chart
+     * @throws InvalidStateException if loading failed
+     */
+    ISymbolChart load(String symbol, int day, int granularityMillis) throws InvalidStateException;
+}
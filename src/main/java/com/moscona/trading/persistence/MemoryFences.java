@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.persistence;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * Memory fences for data shared through memory mapped files, where there is no Java field to make volatile.
+ * A writer calls storeFence() between writing the data and writing the value that publishes it (e.g. a record count
+ * in a file header); a reader calls loadFence() between reading that value and reading the data. Java 8 has no
+ * VarHandles, so this uses the fences of sun.misc.Unsafe, looked up reflectively. If they are not available it falls
+ * back to a volatile write and read, which the JVMs we run on implement with the same fences.
+ */
+final class MemoryFences {
+    private static final MethodHandle STORE_FENCE;
+    private static final MethodHandle LOAD_FENCE;
+    private static volatile int fallback = 0;
+
+    static {
+        MethodHandle store = null;
+        MethodHandle load = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object unsafe = field.get(null);
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            store = lookup.findVirtual(unsafeClass, "storeFence", MethodType.methodType(void.class)).bindTo(unsafe);
+            load = lookup.findVirtual(unsafeClass, "loadFence", MethodType.methodType(void.class)).bindTo(unsafe);
+        }
+        catch (Exception e) {
+            store = null;
+            load = null;
+        }
+        STORE_FENCE = store;
+        LOAD_FENCE = load;
+    }
+
+    private MemoryFences() {
+    }
+
+    /**
+     * Stores before the fence are not reordered with stores after it
+     */
+    static void storeFence() {
+        if (STORE_FENCE == null) {
+            fallback = 0;
+            return;
+        }
+        try {
+            STORE_FENCE.invokeExact();
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException("storeFence failed", e);
+        }
+    }
+
+    /**
+     * Loads before the fence are not reordered with loads after it
+     */
+    static void loadFence() {
+        if (LOAD_FENCE == null) {
+            int ignored = fallback;
+            return;
+        }
+        try {
+            LOAD_FENCE.invokeExact();
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException("loadFence failed", e);
+        }
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.persistence;
+
+import com.moscona.exceptions.InvalidArgumentException;
+import com.moscona.exceptions.InvalidStateException;
+import com.moscona.trading.AbstractStatsPublisher;
+import com.moscona.trading.elements.ColumnarSymbolChart;
+import com.moscona.trading.elements.ISymbolChart;
+import com.moscona.util.monitoring.stats.IStatsService;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A cache of charts keyed by (symbol, day, granularity) in front of an IChartLoader, bounded by the estimated memory
+ * the charts take (see estimateBytes()) rather than by their number.
+ * Eviction is segmented LRU: a chart enters a probation segment, and moves to a protected segment (up to
+ * protectedRatio of the bytes) when it is used again. Charts that are asked for once - the long tail - are evicted
+ * from probation before they can push out the handful of charts that are used all the time, and the least recently
+ * used protected charts drop back to probation when the protected segment is full.
+ * Thread safe. Loads run outside of the lock, and concurrent misses on the same key wait for a single load.
+ * Charts in the cache are shared - callers must not change them.
+ */
+public class SymbolChartCache extends AbstractStatsPublisher {
+    public static final String DEFAULT_STAT_PREFIX = "chart cache";
+    public static final double DEFAULT_PROTECTED_RATIO = 0.8;
+    public static final int BAR_OBJECT_BYTES = 48;  // a Bar or TimeSlotBar with its object header
+    public static final int COLUMNAR_SLOT_BYTES = 20;
+
+    private final IChartLoader loader;
+    private final long maxBytes;
+    private final long maxProtectedBytes;
+    private final LinkedHashMap<ChartKey,Entry> probation = new LinkedHashMap<ChartKey,Entry>(16, 0.75f, true);
+    private final LinkedHashMap<ChartKey,Entry> protectedSegment = new LinkedHashMap<ChartKey,Entry>(16, 0.75f, true);
+    private final HashMap<ChartKey,Entry> index = new HashMap<ChartKey,Entry>(); // both segments, for lookups that must not touch the LRU order
+    private final ConcurrentHashMap<ChartKey,FutureTask<ISymbolChart>> loading = new ConcurrentHashMap<ChartKey,FutureTask<ISymbolChart>>();
+    private long probationBytes = 0;
+    private long protectedBytes = 0;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long coalescedCount = 0;
+    private long evictionCount = 0;
+    private long loadFailureCount = 0;
+
+    /**
+     * @param loader loads the charts on a miss
+     * @param maxBytes the estimated memory the cached charts may take
+     * @throws InvalidArgumentException if maxBytes is not positive
+     */
+    public SymbolChartCache(IChartLoader loader, long maxBytes) throws InvalidArgumentException {
+        this(loader, maxBytes, DEFAULT_PROTECTED_RATIO);
+    }
+
+    /**
+     * @param loader loads the charts on a miss
+     * @param maxBytes the estimated memory the cached charts may take
+     * @param protectedRatio the part of maxBytes reserved for charts that were used more than once
+     * @throws InvalidArgumentException if maxBytes is not positive or the ratio is not between 0 and 1
+     */
+    public SymbolChartCache(IChartLoader loader, long maxBytes, double protectedRatio) throws InvalidArgumentException {
+        super(DEFAULT_STAT_PREFIX);
+        if (maxBytes <= 0) {
+            throw new InvalidArgumentException("The cache size must be positive. Got "+maxBytes);
+        }
+        if (protectedRatio < 0.0 || protectedRatio >= 1.0) {
+            throw new InvalidArgumentException("The protected ratio must be at least 0 and less than 1. Got "+protectedRatio);
+        }
+        this.loader = loader;
+        this.maxBytes = maxBytes;
+        this.maxProtectedBytes = (long) (maxBytes * protectedRatio);
+    }
+
+    /**
+     * @param day a day
+     * @return the day as yyyymmdd, as used in the keys
+     */
+    public static int dayOf(Calendar day) {
+        return day.get(Calendar.YEAR) * 10000 + (day.get(Calendar.MONTH) + 1) * 100 + day.get(Calendar.DAY_OF_MONTH);
+    }
+
+    /**
+     * Estimates the memory a chart takes: the slot array (capacity() times a reference) plus the bars for a
+     * SymbolChart, or capacity() times the size of a slot's columns for a ColumnarSymbolChart.
+     * @param chart the chart
+     * @return the estimated size in bytes
+     */
+    public static long estimateBytes(ISymbolChart chart) {
+        if (chart instanceof ColumnarSymbolChart) {
+            return (long) chart.capacity() * COLUMNAR_SLOT_BYTES + chart.capacity() / 8;
+        }
+        return (long) chart.capacity() * 8 + (long) chart.getNonNullBarsCount() * BAR_OBJECT_BYTES;
+    }
+
+    /**
+     * Gets a chart, loading it on a miss. If another thread is loading the same chart, waits for its load.
+     * @param symbol the symbol
+     * @param day the day as yyyymmdd (see dayOf())
+     * @param granularityMillis the granularity
+     * @return the chart, or null if the loader has no such chart
+     * @throws InvalidStateException if the load failed
+     */
+    public ISymbolChart get(final String symbol, final int day, final int granularityMillis) throws InvalidStateException {
+        final ChartKey key = new ChartKey(symbol, day, granularityMillis);
+        ISymbolChart chart = getIfPresent(key);
+        if (chart != null) {
+            return chart;
+        }
+
+        FutureTask<ISymbolChart> load = new FutureTask<ISymbolChart>(new Callable<ISymbolChart>() {
+            @Override
+            public ISymbolChart call() throws InvalidStateException {
+                ISymbolChart loaded = peek(key); // another thread may have loaded it since the miss
+                return loaded != null ? loaded : loader.load(symbol, day, granularityMillis);
+            }
+        });
+        FutureTask<ISymbolChart> running = loading.putIfAbsent(key, load);
+        if (running == null) {
+            load.run();
+            try {
+                chart = result(load, key, true);
+                if (chart != null && peek(key) != chart) {
+                    put(key, chart);
+                }
+            }
+            finally {
+                loading.remove(key, load);
+            }
+            return chart;
+        }
+        synchronized (this) {
+            coalescedCount++;
+        }
+        return result(running, key, false);
+    }
+
+    /**
+     * @param loaded true in the thread that ran the load, which is the only one to count a failure
+     */
+    private ISymbolChart result(FutureTask<ISymbolChart> load, ChartKey key, boolean loaded) throws InvalidStateException {
+        try {
+            return load.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InvalidStateException("Interrupted while waiting for the chart "+key+" to load", e);
+        }
+        catch (ExecutionException e) {
+            if (loaded) {
+                synchronized (this) {
+                    loadFailureCount++;
+                }
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof InvalidStateException) {
+                throw (InvalidStateException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new InvalidStateException("Failed to load the chart "+key+": "+cause, cause);
+        }
+    }
+
+    /**
+     * @param symbol the symbol
+     * @param day the day as yyyymmdd (see dayOf())
+     * @param granularityMillis the granularity
+     * @return the cached chart, or null if it is not cached (does not load)
+     */
+    public ISymbolChart getIfPresent(String symbol, int day, int granularityMillis) {
+        return getIfPresent(new ChartKey(symbol, day, granularityMillis));
+    }
+
+    private synchronized ISymbolChart peek(ChartKey key) {
+        Entry entry = index.get(key);
+        return entry == null ? null : entry.chart;
+    }
+
+    private synchronized ISymbolChart getIfPresent(ChartKey key) {
+        Entry entry = protectedSegment.get(key);
+        if (entry != null) {
+            hitCount++;
+            return entry.chart;
+        }
+        entry = probation.remove(key);
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        probationBytes -= entry.bytes;
+        protectedSegment.put(key, entry);
+        protectedBytes += entry.bytes;
+        while (protectedBytes > maxProtectedBytes && protectedSegment.size() > 1) {
+            Iterator<Map.Entry<ChartKey,Entry>> eldest = protectedSegment.entrySet().iterator();
+            Map.Entry<ChartKey,Entry> demoted = eldest.next();
+            eldest.remove();
+            protectedBytes -= demoted.getValue().bytes;
+            probation.put(demoted.getKey(), demoted.getValue());
+            probationBytes += demoted.getValue().bytes;
+        }
+        evict();
+        return entry.chart;
+    }
+
+    /**
+     * Adds a chart to the cache (e.g. one that was just built), replacing a cached chart with the same key
+     * @param symbol the symbol
+     * @param day the day as yyyymmdd (see dayOf())
+     * @param granularityMillis the granularity
+     * @param chart the chart
+     */
+    public void put(String symbol, int day, int granularityMillis, ISymbolChart chart) {
+        put(new ChartKey(symbol, day, granularityMillis), chart);
+    }
+
+    private synchronized void put(ChartKey key, ISymbolChart chart) {
+        remove(key);
+        Entry entry = new Entry(chart, estimateBytes(chart));
+        probation.put(key, entry);
+        index.put(key, entry);
+        probationBytes += entry.bytes;
+        evict();
+    }
+
+    /**
+     * Drops a chart from the cache
+     * @param symbol the symbol
+     * @param day the day as yyyymmdd (see dayOf())
+     * @param granularityMillis the granularity
+     */
+    public synchronized void invalidate(String symbol, int day, int granularityMillis) {
+        remove(new ChartKey(symbol, day, granularityMillis));
+    }
+
+    private void remove(ChartKey key) {
+        index.remove(key);
+        Entry entry = probation.remove(key);
+        if (entry != null) {
+            probationBytes -= entry.bytes;
+        }
+        entry = protectedSegment.remove(key);
+        if (entry != null) {
+            protectedBytes -= entry.bytes;
+        }
+    }
+
+    /**
+     * Evicts from the least recently used end of probation (and of the protected segment once probation is empty)
+     * until the charts fit. A single chart larger than the whole cache is evicted right away.
+     */
+    private void evict() {
+        while (probationBytes + protectedBytes > maxBytes) {
+            LinkedHashMap<ChartKey,Entry> segment = probation.isEmpty() ? protectedSegment : probation;
+            Iterator<Map.Entry<ChartKey,Entry>> eldest = segment.entrySet().iterator();
+            Map.Entry<ChartKey,Entry> evicted = eldest.next();
+            eldest.remove();
+            index.remove(evicted.getKey());
+            Entry entry = evicted.getValue();
+            if (segment == probation) {
+                probationBytes -= entry.bytes;
+            }
+            else {
+                protectedBytes -= entry.bytes;
+            }
+            evictionCount++;
+        }
+    }
+
+    public synchronized void clear() {
+        probation.clear();
+        protectedSegment.clear();
+        index.clear();
+        probationBytes = 0;
+        protectedBytes = 0;
+    }
+
+    public synchronized int size() {
+        return probation.size() + protectedSegment.size();
+    }
+
+    /**
+     * @return the estimated memory taken by the cached charts
+     */
+    public synchronized long getWeightedBytes() {
+        return probationBytes + protectedBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return the number of misses that waited for a load started by another thread instead of loading themselves
+     */
+    public synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public synchronized long getLoadFailureCount() {
+        return loadFailureCount;
+    }
+
+    /**
+     * Publishes the counts
+     */
+    @Override
+    protected void publishStats(IStatsService stats, String prefix) {
+        synchronized (this) {
+            stats.setStat(prefix + " hits", hitCount);
+            stats.setStat(prefix + " misses", missCount);
+            stats.setStat(prefix + " coalesced loads", coalescedCount);
+            stats.setStat(prefix + " evictions", evictionCount);
+            stats.setStat(prefix + " load failures", loadFailureCount);
+            stats.setStat(prefix + " bytes", probationBytes + protectedBytes);
+            stats.setStat(prefix + " charts", (long) (probation.size() + protectedSegment.size()));
+        }
+    }
+
+    private static class Entry {
+        final ISymbolChart chart;
+        final long bytes;
+
+        Entry(ISymbolChart chart, long bytes) {
+            this.chart = chart;
+            this.bytes = bytes;
+        }
+    }
+
+    private static final class ChartKey {
+        private final String symbol;
+        private final int day;
+        private final int granularityMillis;
+
+        ChartKey(String symbol, int day, int granularityMillis) {
+            this.symbol = symbol;
+            this.day = day;
+            this.granularityMillis = granularityMillis;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ChartKey)) {
+                return false;
+            }
+            ChartKey other = (ChartKey) o;
+            return day == other.day && granularityMillis == other.granularityMillis && symbol.equals(other.symbol);
+        }
+
+        @Override
+        public int hashCode() {
+            return (symbol.hashCode() * 31 + day) * 31 + granularityMillis;
+        }
+
+        @Override
+        public String toString() {
+            return symbol + " " + day + " " + granularityMillis + "ms";
+        }
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.persistence;
+
+import com.moscona.exceptions.InvalidArgumentException;
+import com.moscona.exceptions.InvalidStateException;
+import com.moscona.trading.elements.ColumnarSymbolChart;
+import com.moscona.trading.elements.SymbolChart;
+import com.moscona.trading.elements.TimeSlotBar;
+import com.moscona.trading.streaming.SymbolDictionary;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static com.moscona.trading.persistence.VarIntHelper.getVarInt;
+import static com.moscona.trading.persistence.VarIntHelper.getZigZag;
+
+/**
+ * Reads a chart file written by SymbolChartFileWriter. The file is memory mapped and only the directory is read when
+ * it is opened, so opening a day is quick no matter how many symbols it has; the blocks of a symbol are decoded (and
+ * their pages faulted in) when its chart is asked for. Charts can be read whole or for a range of slots, in which
+ * case only the blocks that overlap the range are decoded.
+ * Not thread safe. Each thread should use its own reader (the mapping is cheap to share through the OS page cache).
+ */
+public class SymbolChartFileReader {
+    private final File file;
+    private final ByteBuffer buffer;
+    private final boolean tickCounts;
+    private final int startTimeStamp;
+    private final int endTimeStamp;
+    private final int granularityMillis;
+    private final int blockSize;
+    private final int[] codes;          // sorted symbol codes
+    private final String[] symbols;     // parallel to codes
+    private final int[] barCounts;      // parallel to codes
+    private final int[] firstBlock;     // index of the first block of each symbol, plus one last entry for the end
+    private final int[] blockOffsets;
+    private final int[] blockFirstSlots;
+    private final int[] blockLastSlots;
+    private final HashMap<String,Integer> symbolToCode = new HashMap<String,Integer>();
+
+    /**
+     * @param file the chart file
+     * @throws IOException if the file could not be read
+     * @throws InvalidStateException if the file is not a valid chart file
+     */
+    public SymbolChartFileReader(File file) throws IOException, InvalidStateException {
+        this.file = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < SymbolChartFileWriter.HEADER_LENGTH || raf.length() > SymbolChartFileWriter.MAX_FILE_LENGTH) {
+                throw new InvalidStateException("Invalid chart file size for "+file.getAbsolutePath());
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        finally {
+            raf.close();
+        }
+
+        if (buffer.getInt(0) != SymbolChartFileWriter.MAGIC || buffer.getShort(4) != SymbolChartFileWriter.VERSION) {
+            throw new InvalidStateException("Not a version "+SymbolChartFileWriter.VERSION+" chart file: "+file.getAbsolutePath());
+        }
+        tickCounts = (buffer.getShort(6) & SymbolChartFileWriter.FLAG_TICK_COUNTS) != 0;
+        startTimeStamp = buffer.getInt(8);
+        endTimeStamp = buffer.getInt(12);
+        granularityMillis = buffer.getInt(16);
+        blockSize = buffer.getInt(20);
+        int symbolCount = buffer.getInt(24);
+        long directoryOffset = buffer.getLong(32);
+        if (directoryOffset < SymbolChartFileWriter.HEADER_LENGTH || directoryOffset > buffer.capacity() || symbolCount < 0
+                || granularityMillis < 1 || endTimeStamp < startTimeStamp + granularityMillis) {
+            throw new InvalidStateException("Corrupt chart file header in "+file.getAbsolutePath());
+        }
+
+        codes = new int[symbolCount];
+        symbols = new String[symbolCount];
+        barCounts = new int[symbolCount];
+        firstBlock = new int[symbolCount + 1];
+        int totalBlocks = (int) ((buffer.capacity() - directoryOffset) / 16);
+        int[] offsets = new int[totalBlocks];
+        int[] firstSlots = new int[totalBlocks];
+        int[] lastSlots = new int[totalBlocks];
+        int blocks = 0;
+        try {
+            ByteBuffer directory = buffer.duplicate();
+            directory.position((int) directoryOffset);
+            for (int s = 0; s < symbolCount; s++) {
+                codes[s] = directory.getInt();
+                barCounts[s] = directory.getInt();
+                byte[] name = new byte[directory.getShort()];
+                directory.get(name);
+                symbols[s] = new String(name, StandardCharsets.US_ASCII);
+                symbolToCode.put(symbols[s], codes[s]);
+                int blockCount = directory.getInt();
+                firstBlock[s] = blocks;
+                for (int b = 0; b < blockCount; b++) {
+                    offsets[blocks] = (int) directory.getLong();
+                    firstSlots[blocks] = directory.getInt();
+                    lastSlots[blocks] = directory.getInt();
+                    blocks++;
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            throw new InvalidStateException("Corrupt chart file directory in "+file.getAbsolutePath()+": "+e, e);
+        }
+        firstBlock[symbolCount] = blocks;
+        blockOffsets = Arrays.copyOf(offsets, blocks);
+        blockFirstSlots = Arrays.copyOf(firstSlots, blocks);
+        blockLastSlots = Arrays.copyOf(lastSlots, blocks);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getStartTimeStamp() {
+        return startTimeStamp;
+    }
+
+    public int getEndTimeStamp() {
+        return endTimeStamp;
+    }
+
+    public int getGranularityMillis() {
+        return granularityMillis;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @return true if the bars were stored with their tick counts and missing data marks
+     */
+    public boolean hasTickCounts() {
+        return tickCounts;
+    }
+
+    /**
+     * @return the codes of all the symbols in the file, sorted
+     */
+    public int[] getSymbolCodes() {
+        return codes.clone();
+    }
+
+    /**
+     * @param symbolCode a symbol code
+     * @return the symbol of the chart stored for the code, or null if there is none
+     */
+    public String getSymbol(int symbolCode) {
+        int s = Arrays.binarySearch(codes, symbolCode);
+        return s < 0 ? null : symbols[s];
+    }
+
+    /**
+     * @param symbol a symbol
+     * @return the code its chart was stored with, or SymbolDictionary.MISSING if there is none
+     */
+    public int getCode(String symbol) {
+        Integer code = symbolToCode.get(symbol);
+        return code == null ? SymbolDictionary.MISSING : code;
+    }
+
+    /**
+     * @param symbolCode a symbol code
+     * @return the number of bars stored for the symbol
+     */
+    public int getBarCount(int symbolCode) {
+        int s = Arrays.binarySearch(codes, symbolCode);
+        return s < 0 ? 0 : barCounts[s];
+    }
+
+    /**
+     * Reads the chart of a symbol into a new SymbolChart of closed TimeSlotBars
+     * @param symbolCode the symbol code
+     * @return the chart, or null if the file has no chart for the symbol
+     */
+    public SymbolChart<TimeSlotBar> readChart(int symbolCode) {
+        int s = Arrays.binarySearch(codes, symbolCode);
+        if (s < 0) {
+            return null;
+        }
+        SymbolChart<TimeSlotBar> chart;
+        try {
+            chart = new SymbolChart<TimeSlotBar>(symbols[s], startTimeStamp, endTimeStamp, granularityMillis);
+        }
+        catch (InvalidArgumentException e) {
+            throw new IllegalStateException("Could not create a chart for "+symbols[s], e); // the header was validated
+        }
+        BlockCursor cursor = new BlockCursor();
+        for (int b = firstBlock[s]; b < firstBlock[s + 1]; b++) {
+            cursor.startBlock(b);
+            while (cursor.next()) {
+                chart.setBar(cursor.newBar(), cursor.slot);
+            }
+        }
+        return chart;
+    }
+
+    /**
+     * Reads the chart of a symbol into a new ColumnarSymbolChart
+     * @param symbolCode the symbol code
+     * @return the chart, or null if the file has no chart for the symbol
+     */
+    public ColumnarSymbolChart readColumnarChart(int symbolCode) {
+        int s = Arrays.binarySearch(codes, symbolCode);
+        if (s < 0) {
+            return null;
+        }
+        ColumnarSymbolChart chart;
+        try {
+            chart = new ColumnarSymbolChart(symbols[s], startTimeStamp, endTimeStamp, granularityMillis);
+        }
+        catch (InvalidArgumentException e) {
+            throw new IllegalStateException("Could not create a chart for "+symbols[s], e); // the header was validated
+        }
+        read(symbolCode, 0, chart.capacity(), chart);
+        return chart;
+    }
+
+    /**
+     * Reads the bars of a symbol in a range of slots into an existing columnar chart with the same time range. Only
+     * the blocks that overlap the range are decoded.
+     * @param symbolCode the symbol code
+     * @param fromSlot the first slot
+     * @param toSlot the last slot (exclusive)
+     * @param chart the chart to write the bars to
+     * @return the number of bars read
+     */
+    public int read(int symbolCode, int fromSlot, int toSlot, ColumnarSymbolChart chart) {
+        int s = Arrays.binarySearch(codes, symbolCode);
+        if (s < 0) {
+            return 0;
+        }
+        int count = 0;
+        BlockCursor cursor = new BlockCursor();
+        for (int b = firstBlock[s]; b < firstBlock[s + 1]; b++) {
+            if (blockLastSlots[b] < fromSlot || blockFirstSlots[b] >= toSlot) {
+                continue;
+            }
+            cursor.startBlock(b);
+            while (cursor.next()) {
+                if (cursor.slot >= fromSlot && cursor.slot < toSlot) {
+                    chart.setBar(cursor.slot, cursor.open, cursor.high, cursor.low, cursor.close, cursor.volume);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Decodes the bars of a block one by one into its fields
+     */
+    private class BlockCursor {
+        private final ByteBuffer in = buffer.duplicate();
+        private int remaining = 0;
+        int slot;
+        int open;
+        int close;
+        int high;
+        int low;
+        int volume;
+        int ticks;
+        boolean missing;
+
+        void startBlock(int block) {
+            in.position(blockOffsets[block]);
+            remaining = getVarInt(in);
+            slot = blockFirstSlots[block] - blockFirstSlots[block] % blockSize - 1;
+            close = 0;
+            volume = 0;
+        }
+
+        boolean next() {
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+            slot += getVarInt(in) + 1;
+            open = close + getZigZag(in);
+            close = open + getZigZag(in);
+            high = Math.max(open, close) + getVarInt(in);
+            low = Math.min(open, close) - getVarInt(in);
+            volume += getZigZag(in);
+            if (tickCounts) {
+                int encoded = getVarInt(in);
+                ticks = encoded >>> 1;
+                missing = (encoded & 1) != 0;
+            }
+            return true;
+        }
+
+        TimeSlotBar newBar() {
+            TimeSlotBar bar;
+            try {
+                bar = new TimeSlotBar();
+            }
+            catch (InvalidArgumentException e) {
+                throw new IllegalStateException("Could not create an empty bar", e); // never happens: all values are 0
+            }
+            bar.restore(open, close, high, low, volume, ticks, missing);
+            return bar;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.persistence;
+
+import com.moscona.exceptions.InvalidArgumentException;
+import com.moscona.trading.elements.IBar;
+import com.moscona.trading.elements.ICumulativeBar;
+import com.moscona.trading.elements.ISymbolChart;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import static com.moscona.trading.persistence.VarIntHelper.putVarInt;
+import static com.moscona.trading.persistence.VarIntHelper.putZigZag;
+
+/**
+ * Writes the charts of a day (all with the same time range and granularity) to a compressed binary chart file, so
+ * that past days can be reopened without rebuilding the charts from ticks. Works with any ISymbolChart - SymbolChart
+ * or ColumnarSymbolChart.
+ * Each symbol is written as a sequence of blocks of up to blockSize slots. Only the slots that have a bar are stored:
+ * <ul>
+ *     <li>the slot as a varint gap from the previous bar</li>
+ *     <li>the open as a zig-zag varint delta from the previous close, the close as a delta from the open</li>
+ *     <li>the high and the low as varint distances above the higher and below the lower of open and close</li>
+ *     <li>the volume as a zig-zag varint delta from the previous volume</li>
+ *     <li>for cumulative bars, the tick count and the missing data mark in one varint</li>
+ * </ul>
+ * Prices of consecutive bars are close to each other, so a typical bar takes 6 to 10 bytes instead of 20. Every block
+ * starts from zero, so a block can be decoded on its own. A directory at the end of the file lists the symbols with
+ * their blocks and slot ranges, which lets the reader map the file and decode only the symbols (and slot ranges) it
+ * is asked for.
+ * File layout (big endian): a 40 byte header, the blocks, the directory. See SymbolChartFileReader.
+ * The writer keeps references to the charts until write() is called - they must not change in between.
+ */
+public class SymbolChartFileWriter {
+    public static final int MAGIC = 0x53434846; // "SCHF"
+    public static final short VERSION = 1;
+    public static final int HEADER_LENGTH = 40;
+    public static final short FLAG_TICK_COUNTS = 1;
+    public static final int DEFAULT_BLOCK_SIZE = 512;
+    public static final String FILE_SUFFIX = ".schf";
+    public static final long MAX_FILE_LENGTH = Integer.MAX_VALUE; // the reader maps the whole file into one buffer
+
+    private final int startTimeStamp;
+    private final int endTimeStamp;
+    private final int granularityMillis;
+    private final int blockSize;
+    private final int capacity;
+    private ISymbolChart[] charts = new ISymbolChart[256];
+    private int chartCount = 0;
+
+    /**
+     * @param startTimeStamp the start time stamp of all the charts
+     * @param endTimeStamp the end time stamp of all the charts
+     * @param granularityMillis the granularity of all the charts
+     * @param blockSize the maximum number of slots per block. Smaller blocks give finer random access.
+     * @throws InvalidArgumentException if the time range does not hold a slot
+     */
+    public SymbolChartFileWriter(int startTimeStamp, int endTimeStamp, int granularityMillis, int blockSize) throws InvalidArgumentException {
+        if (granularityMillis < 1 || endTimeStamp < startTimeStamp + granularityMillis) {
+            throw new InvalidArgumentException("The space between the end time stamp and the start timestamp does not even allow for one bar given the granularity");
+        }
+        this.startTimeStamp = startTimeStamp;
+        this.endTimeStamp = endTimeStamp;
+        this.granularityMillis = granularityMillis;
+        this.blockSize = Math.max(1, blockSize);
+        this.capacity = (endTimeStamp - startTimeStamp) / granularityMillis;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getChartCount() {
+        return chartCount;
+    }
+
+    /**
+     * Adds the chart of a symbol
+     * @param symbolCode the symbol code
+     * @param chart the chart (not copied)
+     * @throws InvalidArgumentException if the code is negative or the chart does not have the time range of the file
+     */
+    public void add(int symbolCode, ISymbolChart chart) throws InvalidArgumentException {
+        if (symbolCode < 0) {
+            throw new InvalidArgumentException("Invalid symbol code "+symbolCode);
+        }
+        if (chart.getStartTimeStamp() != startTimeStamp || chart.getGranularityMillis() != granularityMillis || chart.capacity() != capacity) {
+            throw new InvalidArgumentException("The chart of "+chart.getSymbol()+" does not have the time range and granularity of the file");
+        }
+        if (symbolCode >= charts.length) {
+            charts = Arrays.copyOf(charts, Math.max(symbolCode + 1, charts.length * 2));
+        }
+        if (charts[symbolCode] == null) {
+            chartCount++;
+        }
+        charts[symbolCode] = chart;
+    }
+
+    /**
+     * Writes the file. It is written to a temporary file next to it, which then replaces it, so readers never see a
+     * partly written file.
+     * @param file the file to write (replaced if it exists)
+     * @throws IOException if writing failed or the file would be longer than MAX_FILE_LENGTH (the file is left as it
+     * was)
+     */
+    public void write(File file) throws IOException {
+        boolean tickCounts = false;
+        int directoryLength = 0;
+        byte[][] names = new byte[charts.length][];
+        for (int code = 0; code < charts.length; code++) {
+            ISymbolChart chart = charts[code];
+            if (chart != null) {
+                names[code] = chart.getSymbol() == null ? new byte[0] : chart.getSymbol().getBytes(StandardCharsets.US_ASCII);
+                directoryLength += 14 + names[code].length + 16 * ((capacity + blockSize - 1) / blockSize);
+                IBar first = firstBar(chart);
+                tickCounts |= first instanceof ICumulativeBar;
+            }
+        }
+        ByteBuffer block = ByteBuffer.allocate(VarIntHelper.MAX_VAR_INT_LENGTH * 7 * blockSize);
+        ByteBuffer directory = ByteBuffer.allocate(directoryLength);
+
+        File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        boolean written = false;
+        try {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            long position = HEADER_LENGTH;
+            int symbolCount = 0;
+            long[] offsets = new long[(capacity + blockSize - 1) / blockSize];
+            int[] firstSlots = new int[offsets.length];
+            int[] lastSlots = new int[offsets.length];
+            for (int code = 0; code < charts.length; code++) {
+                ISymbolChart chart = charts[code];
+                if (chart == null) {
+                    continue;
+                }
+                int blocks = 0;
+                int bars = 0;
+                for (int start = 0; start <= chart.getLastAvailableBarIndex(); start += blockSize) {
+                    block.clear();
+                    int end = Math.min(capacity, start + blockSize);
+                    int count = encodeBlock(block, chart, start, end, tickCounts);
+                    if (count == 0) {
+                        continue;
+                    }
+                    block.flip();
+                    if (position + block.remaining() + directoryLength > MAX_FILE_LENGTH) {
+                        throw new IOException("The charts do not fit in a chart file of at most "+MAX_FILE_LENGTH+" bytes");
+                    }
+                    offsets[blocks] = position;
+                    firstSlots[blocks] = firstSlotOf(chart, start, end);
+                    lastSlots[blocks] = lastSlotOf(chart, start, end);
+                    position += writeFully(channel, block, position);
+                    bars += count;
+                    blocks++;
+                }
+                directory.putInt(code);
+                directory.putInt(bars);
+                directory.putShort((short) names[code].length);
+                directory.put(names[code]);
+                directory.putInt(blocks);
+                for (int b = 0; b < blocks; b++) {
+                    directory.putLong(offsets[b]);
+                    directory.putInt(firstSlots[b]);
+                    directory.putInt(lastSlots[b]);
+                }
+                symbolCount++;
+            }
+            directory.flip();
+            long directoryOffset = position;
+            writeFully(channel, directory, directoryOffset);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.putInt(MAGIC);
+            header.putShort(VERSION);
+            header.putShort(tickCounts ? FLAG_TICK_COUNTS : 0);
+            header.putInt(startTimeStamp);
+            header.putInt(endTimeStamp);
+            header.putInt(granularityMillis);
+            header.putInt(blockSize);
+            header.putInt(symbolCount);
+            header.putInt(0); // reserved
+            header.putLong(directoryOffset);
+            header.flip();
+            writeFully(channel, header, 0);
+            channel.force(true);
+            written = true;
+        }
+        finally {
+            raf.close();
+            if (!written) {
+                Files.deleteIfExists(tmp.toPath());
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static IBar firstBar(ISymbolChart chart) {
+        for (int i = 0; i <= chart.getLastAvailableBarIndex(); i++) {
+            IBar bar = chart.getBar(i);
+            if (bar != null) {
+                return bar;
+            }
+        }
+        return null;
+    }
+
+    private static int firstSlotOf(ISymbolChart chart, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (chart.getBar(i) != null) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastSlotOf(ISymbolChart chart, int start, int end) {
+        for (int i = Math.min(end, chart.getLastAvailableBarIndex() + 1) - 1; i >= start; i--) {
+            if (chart.getBar(i) != null) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of bars encoded
+     */
+    private static int encodeBlock(ByteBuffer block, ISymbolChart chart, int start, int end, boolean tickCounts) {
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            if (chart.getBar(i) != null) {
+                count++;
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        putVarInt(block, count);
+        int previousSlot = start - 1;
+        int previousClose = 0;
+        int previousVolume = 0;
+        for (int i = start; i < end; i++) {
+            IBar bar = chart.getBar(i);
+            if (bar == null) {
+                continue;
+            }
+            int open = bar.getOpenCents();
+            int close = bar.getCloseCents();
+            putVarInt(block, i - previousSlot - 1);
+            putZigZag(block, open - previousClose);
+            putZigZag(block, close - open);
+            putVarInt(block, bar.getHighCents() - Math.max(open, close));
+            putVarInt(block, Math.min(open, close) - bar.getLowCents());
+            putZigZag(block, bar.getVolume() - previousVolume);
+            if (tickCounts) {
+                int ticks = 0;
+                boolean missing = false;
+                if (bar instanceof ICumulativeBar) {
+                    ticks = ((ICumulativeBar) bar).getTickCount();
+                    missing = ((ICumulativeBar) bar).isMarkedMissingData();
+                }
+                putVarInt(block, (ticks << 1) | (missing ? 1 : 0));
+            }
+            previousSlot = i;
+            previousClose = close;
+            previousVolume = bar.getVolume();
+        }
+        return count;
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+        return written;
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.persistence;
+
+import com.moscona.exceptions.InvalidArgumentException;
+import com.moscona.exceptions.InvalidStateException;
+import com.moscona.trading.streaming.FlyweightTickStreamRecord;
+import com.moscona.trading.ITickStreamRecord;
+import com.moscona.trading.streaming.ITickConsumer;
+import com.moscona.trading.streaming.ITickSource;
+import com.moscona.trading.streaming.SymbolDictionary;
+import com.moscona.trading.streaming.TickRecordCodec;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import static com.moscona.trading.persistence.VarIntHelper.getVarInt;
+import static com.moscona.trading.persistence.VarIntHelper.getZigZag;
+
+/**
+ * Reads a compressed tick archive written by TickArchiveWriter. The file is memory mapped and decoded in place;
+ * replayed ticks are delivered through a single reusable flyweight record, so decoding does not allocate per tick.
+ * Ticks can be replayed per symbol (in arrival order), per symbol within a time range (using the block directory
+ * to skip blocks outside the range), or for all symbols merged by transaction timestamp.
+ * Not thread safe. Each thread should use its own reader (the mapping is cheap to share through the OS page cache).
+ */
+public class TickArchiveReader {
+    private final File file;
+    private final ByteBuffer buffer;
+    private final boolean insertionTimestamps;
+    private final int blockSize;
+    private final long tickCount;
+    private final int[] codes;         // sorted symbol codes
+    private final int[] symbolTicks;   // tick count per symbol (parallel to codes)
+    private final int[] firstBlock;    // index of the first block of each symbol, plus one last entry for the end
+    private final int[] blockOffsets;
+    private final int[] blockMinTs;
+    private final int[] blockMaxTs;
+    private final TickRecordCodec codec;
+    private final FlyweightTickStreamRecord record;
+
+    /**
+     * @param file the archive file
+     * @param dictionary the dictionary used to translate symbol codes of the replayed records (may be null)
+     * @throws IOException if the file could not be read
+     * @throws InvalidStateException if the file is not a valid archive
+     */
+    public TickArchiveReader(File file, SymbolDictionary dictionary) throws IOException, InvalidStateException {
+        this.file = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < TickArchiveWriter.HEADER_LENGTH || raf.length() > Integer.MAX_VALUE) {
+                throw new InvalidStateException("Invalid tick archive size for "+file.getAbsolutePath());
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        finally {
+            raf.close();
+        }
+
+        if (buffer.getInt(0) != TickArchiveWriter.MAGIC || buffer.getShort(4) != TickArchiveWriter.VERSION) {
+            throw new InvalidStateException("Not a version "+TickArchiveWriter.VERSION+" tick archive: "+file.getAbsolutePath());
+        }
+        insertionTimestamps = (buffer.getShort(6) & TickArchiveWriter.FLAG_INSERTION_TIMESTAMPS) != 0;
+        blockSize = buffer.getInt(8);
+        int symbolCount = buffer.getInt(12);
+        long directoryOffset = buffer.getLong(16);
+        tickCount = buffer.getLong(24);
+        if (directoryOffset < TickArchiveWriter.HEADER_LENGTH || directoryOffset > buffer.capacity() || symbolCount < 0) {
+            throw new InvalidStateException("Corrupt tick archive header in "+file.getAbsolutePath());
+        }
+
+        codes = new int[symbolCount];
+        symbolTicks = new int[symbolCount];
+        firstBlock = new int[symbolCount + 1];
+        int totalBlocks = (int) ((buffer.capacity() - directoryOffset) / 20);
+        int[] offsets = new int[totalBlocks];
+        int[] minTs = new int[totalBlocks];
+        int[] maxTs = new int[totalBlocks];
+        int blocks = 0;
+        try {
+            ByteBuffer directory = buffer.duplicate();
+            directory.position((int) directoryOffset);
+            for (int s = 0; s < symbolCount; s++) {
+                codes[s] = directory.getInt();
+                symbolTicks[s] = directory.getInt();
+                int blockCount = directory.getInt();
+                firstBlock[s] = blocks;
+                for (int b = 0; b < blockCount; b++) {
+                    offsets[blocks] = (int) directory.getLong();
+                    directory.getInt(); // tick count in block - also stored in the block itself
+                    minTs[blocks] = directory.getInt();
+                    maxTs[blocks] = directory.getInt();
+                    blocks++;
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            throw new InvalidStateException("Corrupt tick archive directory in "+file.getAbsolutePath()+": "+e, e);
+        }
+        firstBlock[symbolCount] = blocks;
+        blockOffsets = Arrays.copyOf(offsets, blocks);
+        blockMinTs = Arrays.copyOf(minTs, blocks);
+        blockMaxTs = Arrays.copyOf(maxTs, blocks);
+
+        // the codes are sorted, so the last one tells whether the replayed records need the wide layout
+        codec = symbolCount == 0 || TickRecordCodec.COMPACT.canHold(codes[symbolCount - 1]) ? TickRecordCodec.COMPACT : TickRecordCodec.WIDE;
+        record = new FlyweightTickStreamRecord(codec, dictionary).wrap(FlyweightTickStreamRecord.allocateDirect(1, codec), 0);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public boolean hasInsertionTimestamps() {
+        return insertionTimestamps;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public long getTickCount() {
+        return tickCount;
+    }
+
+    /**
+     * @return the codes of all the symbols in the archive, sorted
+     */
+    public int[] getSymbolCodes() {
+        return codes.clone();
+    }
+
+    /**
+     * @param symbolCode a symbol code
+     * @return the number of ticks archived for the symbol
+     */
+    public int getTickCount(int symbolCode) {
+        int s = Arrays.binarySearch(codes, symbolCode);
+        return s < 0 ? 0 : symbolTicks[s];
+    }
+
+    /**
+     * Replays all the ticks of a symbol in their original order
+     * @param symbolCode the symbol code
+     * @param consumer the consumer
+     * @return the number of ticks replayed
+     * @throws InvalidArgumentException if the consumer rejected a tick
+     */
+    public long replay(int symbolCode, ITickConsumer consumer) throws InvalidArgumentException {
+        return replay(symbolCode, Integer.MIN_VALUE, Integer.MAX_VALUE, consumer);
+    }
+
+    /**
+     * Replays the ticks of a symbol with a transaction timestamp in a range, in their original order. Only blocks
+     * that overlap the range are decoded.
+     * @param symbolCode the symbol code
+     * @param fromTimestamp the start of the range (inclusive)
+     * @param untilTimestamp the end of the range (exclusive)
+     * @param consumer the consumer
+     * @return the number of ticks replayed
+     * @throws InvalidArgumentException if the consumer rejected a tick
+     */
+    public long replay(int symbolCode, int fromTimestamp, int untilTimestamp, ITickConsumer consumer) throws InvalidArgumentException {
+        int s = Arrays.binarySearch(codes, symbolCode);
+        if (s < 0) {
+            return 0;
+        }
+        long count = 0;
+        BlockCursor cursor = new BlockCursor(s);
+        for (int b = firstBlock[s]; b < firstBlock[s + 1]; b++) {
+            if (blockMaxTs[b] < fromTimestamp || blockMinTs[b] >= untilTimestamp) {
+                continue;
+            }
+            cursor.startBlock(b);
+            while (cursor.next()) {
+                if (cursor.ts >= fromTimestamp && cursor.ts < untilTimestamp) {
+                    consumer.onTick(cursor.load(record));
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Replays the ticks of all symbols, merged by transaction timestamp (ties in symbol code order). Assumes the
+     * ticks of each symbol are in time order - out of order ticks are delivered as soon as their symbol gets to them.
+     * @param consumer the consumer
+     * @return the number of ticks replayed
+     * @throws InvalidArgumentException if the consumer rejected a tick
+     */
+    public long replayAll(ITickConsumer consumer) throws InvalidArgumentException {
+        MergedSource merged = new MergedSource();
+        long count = 0;
+        while (merged.next()) {
+            consumer.onTick(merged.getRecord());
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * A pull style source over all the ticks of the archive, merged by transaction timestamp as in replayAll().
+     * Each source has its own cursors and flyweight, so several sources may be used at the same time.
+     * @param dictionary the dictionary used to translate symbol codes of the returned records (may be null)
+     * @return a new source positioned before the first tick
+     */
+    public ITickSource newMergedSource(SymbolDictionary dictionary) {
+        return new MergedSource(dictionary);
+    }
+
+    private static void siftDown(BlockCursor[] heap, int size, int i) {
+        BlockCursor moving = heap[i];
+        if (moving == null) {
+            return;
+        }
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1].before(heap[child])) {
+                child++;
+            }
+            if (!heap[child].before(moving)) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = moving;
+    }
+
+    /**
+     * A k-way merge of the symbols, using a binary min heap of cursors keyed by (current timestamp, symbol index)
+     */
+    private class MergedSource implements ITickSource {
+        private final BlockCursor[] heap = new BlockCursor[codes.length];
+        private final FlyweightTickStreamRecord target;
+        private int size = 0;
+        private boolean started = false;
+
+        MergedSource() {
+            target = record;
+        }
+
+        MergedSource(SymbolDictionary dictionary) {
+            target = new FlyweightTickStreamRecord(codec, dictionary).wrap(FlyweightTickStreamRecord.allocateDirect(1, codec), 0);
+        }
+
+        @Override
+        public boolean next() {
+            if (!started) {
+                started = true;
+                for (int s = 0; s < codes.length; s++) {
+                    BlockCursor cursor = new BlockCursor(s);
+                    if (cursor.advance()) {
+                        heap[size++] = cursor;
+                    }
+                }
+                for (int i = size / 2 - 1; i >= 0; i--) {
+                    siftDown(heap, size, i);
+                }
+            }
+            else if (size > 0) {
+                if (!heap[0].advance()) {
+                    heap[0] = heap[--size];
+                    heap[size] = null;
+                }
+                siftDown(heap, size, 0);
+            }
+            if (size == 0) {
+                return false;
+            }
+            heap[0].load(target);
+            return true;
+        }
+
+        @Override
+        public ITickStreamRecord getRecord() {
+            return target;
+        }
+
+        @Override
+        public void close() {
+            size = 0;
+        }
+    }
+
+    /**
+     * Decodes the blocks of one symbol
+     */
+    private class BlockCursor {
+        private final int symbolIndex;
+        private final int code;
+        private final ByteBuffer in;
+        private int block;
+        private int remaining = 0;
+        private boolean first;
+        private int delta;
+        int ts;
+        int price;
+        int quantity;
+        int insertion;
+
+        BlockCursor(int symbolIndex) {
+            this.symbolIndex = symbolIndex;
+            this.code = codes[symbolIndex];
+            this.in = buffer.duplicate();
+            this.block = firstBlock[symbolIndex] - 1;
+        }
+
+        void startBlock(int b) {
+            block = b;
+            in.position(blockOffsets[b]);
+            remaining = getVarInt(in);
+            first = true;
+        }
+
+        /**
+         * Decodes the next tick of the current block
+         */
+        boolean next() {
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+            if (first) {
+                first = false;
+                delta = 0;
+                ts = getZigZag(in);
+                price = getZigZag(in);
+            }
+            else {
+                delta += getZigZag(in);
+                ts += delta;
+                price += getZigZag(in);
+            }
+            quantity = TickArchiveWriter.decodeQuantity(getVarInt(in));
+            insertion = insertionTimestamps ? ts + getZigZag(in) : 0;
+            return true;
+        }
+
+        /**
+         * Decodes the next tick, moving on to the next block of the symbol when needed
+         */
+        boolean advance() {
+            while (!next()) {
+                if (block + 1 >= firstBlock[symbolIndex + 1]) {
+                    return false;
+                }
+                startBlock(block + 1);
+            }
+            return true;
+        }
+
+        boolean before(BlockCursor other) {
+            return ts < other.ts || (ts == other.ts && symbolIndex < other.symbolIndex);
+        }
+
+        FlyweightTickStreamRecord load(FlyweightTickStreamRecord target) {
+            try {
+                target.write(ts, code, price, quantity);
+            }
+            catch (InvalidArgumentException e) {
+                throw new IllegalStateException("Could not load tick of symbol code "+code, e); // the layout was chosen to fit all the codes
+            }
+            target.setInsertionTimestamp(insertion);
+            return target;
+        }
+    }
+}
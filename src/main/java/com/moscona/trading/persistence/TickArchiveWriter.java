@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.persistence;
+
+import com.moscona.exceptions.InvalidArgumentException;
+import com.moscona.exceptions.InvalidStateException;
+import com.moscona.trading.ITickStreamRecord;
+import com.moscona.trading.streaming.ITickConsumer;
+import com.moscona.trading.streaming.SymbolDictionary;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import static com.moscona.trading.persistence.VarIntHelper.putVarInt;
+import static com.moscona.trading.persistence.VarIntHelper.putZigZag;
+
+/**
+ * Writes a compressed tick archive (typically one per day) from a stream of ticks, for instance a replayed journal.
+ * Ticks are regrouped by symbol code and each symbol is written as a sequence of blocks of up to blockSize ticks:
+ * <ul>
+ *     <li>transaction timestamps as zig-zag varint deltas-of-deltas (mostly a single byte)</li>
+ *     <li>prices as zig-zag varint deltas in cents</li>
+ *     <li>quantities as varints, in round lots of 100 when possible (see encodeQuantity())</li>
+ *     <li>optionally, insertion timestamps as zig-zag varints relative to the transaction timestamp</li>
+ * </ul>
+ * Every block starts from absolute values, so a block can be decoded on its own. A directory at the end of the file
+ * lists the blocks of every symbol with their time range, which gives the reader block level random access.
+ * File layout (big endian): a 32 byte header, the blocks, the directory. See TickArchiveReader.
+ * The writer holds the day in memory as primitive arrays (16 bytes per tick) until write() is called.
+ */
+public class TickArchiveWriter implements ITickConsumer {
+    public static final int MAGIC = 0x54415243; // "TARC"
+    public static final short VERSION = 1;
+    public static final int HEADER_LENGTH = 32;
+    public static final short FLAG_INSERTION_TIMESTAMPS = 1;
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+    public static final String FILE_SUFFIX = ".tarc";
+    public static final int MAX_ODD_LOT_QUANTITY = Integer.MAX_VALUE >>> 1; // shifted left with the low bit set
+
+    private final int blockSize;
+    private final boolean keepInsertionTimestamps;
+    private SymbolTicks[] symbols = new SymbolTicks[256];
+    private long tickCount = 0;
+
+    /**
+     * A writer with the default block size that drops insertion timestamps
+     */
+    public TickArchiveWriter() {
+        this(DEFAULT_BLOCK_SIZE, false);
+    }
+
+    /**
+     * @param blockSize the maximum number of ticks per block. Smaller blocks give finer random access, larger blocks
+     *                  compress slightly better.
+     * @param keepInsertionTimestamps whether to archive the insertion timestamps as well
+     */
+    public TickArchiveWriter(int blockSize, boolean keepInsertionTimestamps) {
+        this.blockSize = Math.max(1, blockSize);
+        this.keepInsertionTimestamps = keepInsertionTimestamps;
+    }
+
+    /**
+     * Archives a whole journal
+     * @param journalDirectory the journal directory
+     * @param archive the archive file to write
+     * @param blockSize the maximum number of ticks per block
+     * @param keepInsertionTimestamps whether to archive the insertion timestamps as well
+     * @return the number of ticks archived
+     * @throws IOException if reading or writing failed
+     * @throws InvalidStateException if the journal is not valid
+     */
+    public static long archiveJournal(File journalDirectory, File archive, int blockSize, boolean keepInsertionTimestamps) throws IOException, InvalidStateException {
+        TickArchiveWriter writer = new TickArchiveWriter(blockSize, keepInsertionTimestamps);
+        TickJournalReader reader = new TickJournalReader(journalDirectory, (SymbolDictionary) null);
+        try {
+            reader.replay(writer);
+        }
+        catch (InvalidArgumentException e) {
+            throw new InvalidStateException("Invalid record in journal "+journalDirectory.getAbsolutePath()+": "+e, e);
+        }
+        finally {
+            reader.close();
+        }
+        writer.write(archive);
+        return writer.getTickCount();
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public boolean isKeepingInsertionTimestamps() {
+        return keepInsertionTimestamps;
+    }
+
+    public long getTickCount() {
+        return tickCount;
+    }
+
+    /**
+     * Adds a tick to the archive
+     * @param record the tick (not retained)
+     * @throws InvalidArgumentException if the record has a negative symbol code or a quantity that cannot be archived
+     */
+    @Override
+    public void onTick(ITickStreamRecord record) throws InvalidArgumentException {
+        add(record.getSymbolCode(), record.getTransactionTimestamp(), record.getPriceCents(), record.getQuantity(),
+                record.getInsertionTimestamp());
+    }
+
+    /**
+     * Adds a tick to the archive
+     * @param symbolCode the symbol code
+     * @param transactionTimestamp the transaction timestamp
+     * @param priceCents the price in cents
+     * @param quantity the quantity
+     * @param insertionTimestamp the insertion timestamp (ignored unless insertion timestamps are kept)
+     * @throws InvalidArgumentException if the symbol code is negative or the quantity cannot be archived (see
+     *                                  encodeQuantity())
+     */
+    public void add(int symbolCode, int transactionTimestamp, int priceCents, int quantity, int insertionTimestamp) throws InvalidArgumentException {
+        if (symbolCode < 0) {
+            throw new InvalidArgumentException("Invalid symbol code "+symbolCode);
+        }
+        if (quantity < 0 || (quantity % 100 != 0 && quantity > MAX_ODD_LOT_QUANTITY)) {
+            throw new InvalidArgumentException("Cannot archive a quantity of "+quantity+" (negative, or not a round lot and over "+MAX_ODD_LOT_QUANTITY+")");
+        }
+        if (symbolCode >= symbols.length) {
+            symbols = Arrays.copyOf(symbols, Math.max(symbolCode + 1, symbols.length * 2));
+        }
+        SymbolTicks ticks = symbols[symbolCode];
+        if (ticks == null) {
+            ticks = new SymbolTicks();
+            symbols[symbolCode] = ticks;
+        }
+        ticks.add(transactionTimestamp, priceCents, quantity, keepInsertionTimestamps ? insertionTimestamp : 0);
+        tickCount++;
+    }
+
+    /**
+     * Writes the archive
+     * @param file the file to write (replaced if it exists)
+     * @throws IOException if writing failed
+     */
+    public void write(File file) throws IOException {
+        int symbolCount = 0;
+        int directoryLength = 0;
+        for (SymbolTicks ticks: symbols) {
+            if (ticks != null) {
+                symbolCount++;
+                directoryLength += 12 + 20 * ((ticks.size + blockSize - 1) / blockSize);
+            }
+        }
+        long[] blockOffsets = new long[(int) Math.min(Integer.MAX_VALUE, tickCount / blockSize + symbolCount)];
+        ByteBuffer block = ByteBuffer.allocate(VarIntHelper.MAX_VAR_INT_LENGTH * (5 + 4 * blockSize));
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            long position = HEADER_LENGTH;
+            int blockNumber = 0;
+            for (SymbolTicks ticks: symbols) {
+                if (ticks == null) {
+                    continue;
+                }
+                for (int start = 0; start < ticks.size; start += blockSize) {
+                    block.clear();
+                    encodeBlock(block, ticks, start, Math.min(ticks.size, start + blockSize));
+                    block.flip();
+                    blockOffsets[blockNumber++] = position;
+                    position += writeFully(channel, block, position);
+                }
+            }
+
+            ByteBuffer directory = ByteBuffer.allocate(directoryLength);
+            blockNumber = 0;
+            for (int code = 0; code < symbols.length; code++) {
+                SymbolTicks ticks = symbols[code];
+                if (ticks == null) {
+                    continue;
+                }
+                directory.putInt(code);
+                directory.putInt(ticks.size);
+                directory.putInt((ticks.size + blockSize - 1) / blockSize);
+                for (int start = 0; start < ticks.size; start += blockSize) {
+                    int end = Math.min(ticks.size, start + blockSize);
+                    int min = Integer.MAX_VALUE;
+                    int max = Integer.MIN_VALUE;
+                    for (int i = start; i < end; i++) {
+                        min = Math.min(min, ticks.timestamps[i]);
+                        max = Math.max(max, ticks.timestamps[i]);
+                    }
+                    directory.putLong(blockOffsets[blockNumber++]);
+                    directory.putInt(end - start);
+                    directory.putInt(min);
+                    directory.putInt(max);
+                }
+            }
+            directory.flip();
+            long directoryOffset = position;
+            writeFully(channel, directory, directoryOffset);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.putInt(MAGIC);
+            header.putShort(VERSION);
+            header.putShort(keepInsertionTimestamps ? FLAG_INSERTION_TIMESTAMPS : 0);
+            header.putInt(blockSize);
+            header.putInt(symbolCount);
+            header.putLong(directoryOffset);
+            header.putLong(tickCount);
+            header.flip();
+            writeFully(channel, header, 0);
+            channel.force(true);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    private void encodeBlock(ByteBuffer block, SymbolTicks ticks, int start, int end) {
+        putVarInt(block, end - start);
+        int previousTs = ticks.timestamps[start];
+        int previousDelta = 0;
+        int previousPrice = ticks.prices[start];
+        putZigZag(block, previousTs);
+        putZigZag(block, previousPrice);
+        putVarInt(block, encodeQuantity(ticks.quantities[start]));
+        if (keepInsertionTimestamps) {
+            putZigZag(block, ticks.insertionTimestamps[start] - previousTs);
+        }
+        for (int i = start + 1; i < end; i++) {
+            int ts = ticks.timestamps[i];
+            int delta = ts - previousTs;
+            putZigZag(block, delta - previousDelta);
+            putZigZag(block, ticks.prices[i] - previousPrice);
+            putVarInt(block, encodeQuantity(ticks.quantities[i]));
+            if (keepInsertionTimestamps) {
+                putZigZag(block, ticks.insertionTimestamps[i] - ts);
+            }
+            previousTs = ts;
+            previousDelta = delta;
+            previousPrice = ticks.prices[i];
+        }
+    }
+
+    /**
+     * Most trades are in round lots, so a quantity divisible by 100 is stored as the number of lots (low bit clear)
+     * and any other quantity as is (low bit set). Round lots fit up to Integer.MAX_VALUE, other quantities only up to
+     * MAX_ODD_LOT_QUANTITY - add() rejects anything else, and negative quantities.
+     * @param quantity the quantity (not negative)
+     * @return the encoded quantity
+     */
+    static int encodeQuantity(int quantity) {
+        return quantity % 100 == 0 ? (quantity / 100) << 1 : (quantity << 1) | 1;
+    }
+
+    static int decodeQuantity(int encoded) {
+        return (encoded & 1) == 0 ? (encoded >>> 1) * 100 : encoded >>> 1;
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    /**
+     * The ticks of one symbol, in arrival order
+     */
+    private static class SymbolTicks {
+        int[] timestamps = new int[64];
+        int[] prices = new int[64];
+        int[] quantities = new int[64];
+        int[] insertionTimestamps = new int[64];
+        int size = 0;
+
+        void add(int ts, int price, int quantity, int insertion) {
+            if (size == timestamps.length) {
+                int newLength = size * 2;
+                timestamps = Arrays.copyOf(timestamps, newLength);
+                prices = Arrays.copyOf(prices, newLength);
+                quantities = Arrays.copyOf(quantities, newLength);
+                insertionTimestamps = Arrays.copyOf(insertionTimestamps, newLength);
+            }
+            timestamps[size] = ts;
+            prices[size] = price;
+            quantities[size] = quantity;
+            insertionTimestamps[size] = insertion;
+            size++;
+        }
+    }
+}
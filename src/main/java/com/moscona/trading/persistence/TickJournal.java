@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.persistence;
+
+import com.moscona.exceptions.InvalidArgumentException;
+import com.moscona.exceptions.InvalidStateException;
+import com.moscona.trading.ITickStreamRecord;
+import com.moscona.trading.streaming.FlyweightTickStreamRecord;
+import com.moscona.trading.streaming.TickRecordCodec;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Calendar;
+
+/**
+ * A daily, append-only journal of raw tick record frames. The journal is a directory of pre-sized, memory-mapped
+ * segment files (see TickJournalSegment) that are rolled automatically when full. Appending is a copy into the mapped
+ * file - no system calls (unless the flush policy requires them) and no allocation per tick.
+ * A journal has a single writer. Use TickJournalReader to replay it (also while it is being written).
+ * Reopening an existing journal directory continues after the last committed record.
+ * Each segment has a sparse time index (see TickJournalIndex) that is saved when the segment is rolled, on flush()
+ * and on close(), and is extended from the segment itself when the journal is reopened after a crash.
+ * New segments are written in the journal's record layout (compact unless told otherwise - see TickRecordCodec).
+ * Records in other layouts are converted on append. Reopening a journal with a different layout starts a new segment,
+ * so a journal may hold segments of both layouts; the reader handles each segment in its own layout.
+ */
+public class TickJournal {
+    public static final int DEFAULT_SEGMENT_CAPACITY = 4 * 1024 * 1024; // records (72MB per segment)
+    public static final String SEGMENT_PREFIX = "segment-";
+
+    private final File directory;
+    private final int segmentCapacity;
+    private final FlushPolicy flushPolicy;
+    private final TickRecordCodec codec;
+    private final ByteBuffer scratch; // for encoding records that are not backed by a buffer
+    private int nextSegmentNumber = 0;
+    private int flushInterval = 10000;
+    private int unflushed = 0;
+    private TickJournalSegment current = null;
+    private TickJournalIndex currentIndex = null;
+    private int recordsPerIndexEntry = TickJournalIndex.DEFAULT_RECORDS_PER_ENTRY;
+    private int millisPerIndexEntry = TickJournalIndex.DEFAULT_MILLIS_PER_ENTRY;
+    private long recordCount = 0;
+    private boolean closed = false;
+
+    /**
+     * Opens (or creates) a journal with default settings
+     * @param directory the directory of the journal (typically one per day - see dayDirectory())
+     * @throws IOException if the directory or the segments could not be opened
+     * @throws InvalidStateException if an existing segment is not valid
+     * @throws InvalidArgumentException if the directory is not usable
+     */
+    public TickJournal(File directory) throws IOException, InvalidStateException, InvalidArgumentException {
+        this(directory, DEFAULT_SEGMENT_CAPACITY, FlushPolicy.ON_ROLL);
+    }
+
+    /**
+     * Opens (or creates) a journal
+     * @param directory the directory of the journal (typically one per day - see dayDirectory())
+     * @param segmentCapacity the number of records in each new segment
+     * @param flushPolicy when to force the segments to the storage device
+     * @throws IOException if the directory or the segments could not be opened
+     * @throws InvalidStateException if an existing segment is not valid
+     * @throws InvalidArgumentException if the directory is not usable or the capacity is not positive
+     */
+    public TickJournal(File directory, int segmentCapacity, FlushPolicy flushPolicy) throws IOException, InvalidStateException, InvalidArgumentException {
+        this(directory, segmentCapacity, flushPolicy, TickRecordCodec.COMPACT);
+    }
+
+    /**
+     * Opens (or creates) a journal
+     * @param directory the directory of the journal (typically one per day - see dayDirectory())
+     * @param segmentCapacity the number of records in each new segment
+     * @param flushPolicy when to force the segments to the storage device
+     * @param codec the record layout of new segments
+     * @throws IOException if the directory or the segments could not be opened
+     * @throws InvalidStateException if an existing segment is not valid
+     * @throws InvalidArgumentException if the directory is not usable or the capacity is not positive
+     */
+    public TickJournal(File directory, int segmentCapacity, FlushPolicy flushPolicy, TickRecordCodec codec) throws IOException, InvalidStateException, InvalidArgumentException {
+        if (segmentCapacity < 1) {
+            throw new InvalidArgumentException("The segment capacity must be positive. Got "+segmentCapacity);
+        }
+        if (flushPolicy == null) {
+            throw new InvalidArgumentException("flush policy may not be null");
+        }
+        if (codec == null) {
+            throw new InvalidArgumentException("record codec may not be null");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new InvalidArgumentException("Could not create the journal directory "+directory.getAbsolutePath());
+        }
+        this.directory = directory;
+        this.segmentCapacity = segmentCapacity;
+        this.flushPolicy = flushPolicy;
+        this.codec = codec;
+        this.scratch = ByteBuffer.allocate(codec.getRecordLength());
+
+        File[] existing = listSegments(directory);
+        for (File file: existing) {
+            TickJournalSegment segment = TickJournalSegment.open(file, true);
+            recordCount += segment.getCommittedCount();
+            segment.close();
+        }
+        if (existing.length > 0) {
+            TickJournalSegment last = TickJournalSegment.open(existing[existing.length - 1], false);
+            nextSegmentNumber = last.getNumber() + 1;
+            if (last.getCodec() == codec && !last.isSealed()) {
+                current = last;
+                currentIndex = TickJournalIndex.open(current, recordsPerIndexEntry, millisPerIndexEntry);
+            }
+            else {
+                // continue in a new segment with the requested layout
+                if (!last.isSealed()) {
+                    last.seal();
+                }
+                last.force();
+                last.close();
+            }
+        }
+    }
+
+    /**
+     * The conventional directory for a day's journal under a root directory
+     * @param root the root of all journals
+     * @param day the trading day
+     * @return root/yyyyMMdd
+     */
+    public static File dayDirectory(File root, Calendar day) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
+        format.setTimeZone(day.getTimeZone());
+        return new File(root, format.format(day.getTime()));
+    }
+
+    /**
+     * Lists the segment files of a journal, in order
+     * @param directory the journal directory
+     * @return the segment files, sorted by segment number
+     */
+    public static File[] listSegments(File directory) {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(TickJournalSegment.FILE_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files); // the segment number is zero padded
+        return files;
+    }
+
+    /**
+     * The file name of a segment
+     * @param number the segment number
+     * @return the file name
+     */
+    public static String segmentFileName(int number) {
+        return String.format("%s%06d%s", SEGMENT_PREFIX, number, TickJournalSegment.FILE_SUFFIX);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public int getSegmentCapacity() {
+        return segmentCapacity;
+    }
+
+    public FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    public TickRecordCodec getCodec() {
+        return codec;
+    }
+
+    public int getFlushInterval() {
+        return flushInterval;
+    }
+
+    /**
+     * @param flushInterval the number of records between forces when using FlushPolicy.EVERY_N_RECORDS
+     */
+    public void setFlushInterval(int flushInterval) {
+        this.flushInterval = Math.max(1, flushInterval);
+    }
+
+    public int getRecordsPerIndexEntry() {
+        return recordsPerIndexEntry;
+    }
+
+    public int getMillisPerIndexEntry() {
+        return millisPerIndexEntry;
+    }
+
+    /**
+     * Sets the density of the time index of new segments (see TickJournalIndex)
+     * @param recordsPerEntry the maximum number of records between index entries
+     * @param millisPerEntry the maximum number of milliseconds of transaction time between index entries
+     */
+    public void setIndexInterval(int recordsPerEntry, int millisPerEntry) {
+        this.recordsPerIndexEntry = Math.max(1, recordsPerEntry);
+        this.millisPerIndexEntry = Math.max(1, millisPerEntry);
+    }
+
+    /**
+     * @return the total number of records in the journal
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Appends a record to the journal. Flyweights are copied straight from their buffer; other records are encoded
+     * from their accessors, as not all of them have a backing array (see HeavyTickStreamRecord.toBytes()).
+     * @param record the record to append
+     * @throws IOException if a new segment could not be created
+     * @throws InvalidStateException if the journal is closed
+     * @throws InvalidArgumentException if the record has no symbol code or one that the journal's layout cannot hold
+     */
+    public void append(ITickStreamRecord record) throws IOException, InvalidStateException, InvalidArgumentException {
+        if (record instanceof FlyweightTickStreamRecord) {
+            FlyweightTickStreamRecord flyweight = (FlyweightTickStreamRecord) record;
+            append(flyweight.getCodec(), flyweight.getBuffer(), flyweight.getOffset());
+            return;
+        }
+        int symbolCode = record.getSymbolCode();
+        if (symbolCode < 0 || symbolCode > codec.getMaxSymbolCode()) {
+            throw new InvalidArgumentException("Cannot journal a record with symbol code "+symbolCode+" ("+record.getSymbol()+") in the "+codec+" layout");
+        }
+        codec.write(scratch, 0, record.getTransactionTimestamp(), symbolCode, record.getPriceCents(), record.getQuantity());
+        codec.setInsertionTimestamp(scratch, 0, record.getInsertionTimestamp());
+        append(scratch, 0);
+    }
+
+    /**
+     * Appends a raw record frame in the journal's layout from a buffer (for instance a ring buffer slot)
+     * @param source the buffer holding the record
+     * @param offset the offset of the record in the buffer
+     * @throws IOException if a new segment could not be created
+     * @throws InvalidStateException if the journal is closed
+     */
+    public void append(ByteBuffer source, int offset) throws IOException, InvalidStateException {
+        if (!writableSegment().append(source, offset)) {
+            roll().append(source, offset);
+        }
+        appended(codec.getTransactionTimestamp(source, offset));
+    }
+
+    /**
+     * Appends a record frame from a buffer, converting it to the journal's layout if needed
+     * @param sourceCodec the layout of the source record
+     * @param source the buffer holding the record
+     * @param offset the offset of the record in the buffer
+     * @throws IOException if a new segment could not be created
+     * @throws InvalidStateException if the journal is closed
+     * @throws InvalidArgumentException if the symbol code does not fit the journal's layout (nothing was written)
+     */
+    public void append(TickRecordCodec sourceCodec, ByteBuffer source, int offset) throws IOException, InvalidStateException, InvalidArgumentException {
+        if (sourceCodec == codec) {
+            append(source, offset);
+            return;
+        }
+        int symbolCode = sourceCodec.getSymbolCode(source, offset);
+        if (!codec.canHold(symbolCode)) {
+            throw new InvalidArgumentException("Symbol code "+symbolCode+" does not fit the "+codec+" layout of the journal");
+        }
+        if (!writableSegment().append(sourceCodec, source, offset)) {
+            roll().append(sourceCodec, source, offset);
+        }
+        appended(sourceCodec.getTransactionTimestamp(source, offset));
+    }
+
+    private TickJournalSegment writableSegment() throws IOException, InvalidStateException {
+        if (closed) {
+            throw new InvalidStateException("The journal at "+directory.getAbsolutePath()+" is closed");
+        }
+        if (current == null) {
+            current = createSegment(nextSegmentNumber);
+        }
+        return current;
+    }
+
+    private TickJournalSegment createSegment(int number) throws IOException, InvalidStateException {
+        try {
+            TickJournalSegment segment = TickJournalSegment.create(new File(directory, segmentFileName(number)), number, segmentCapacity, codec);
+            nextSegmentNumber = number + 1;
+            currentIndex = new TickJournalIndex(recordsPerIndexEntry, millisPerIndexEntry);
+            return segment;
+        }
+        catch (InvalidArgumentException e) {
+            throw new InvalidStateException("Could not create journal segment "+number+": "+e, e);
+        }
+    }
+
+    private TickJournalSegment roll() throws IOException, InvalidStateException {
+        int number = current.getNumber() + 1;
+        if (flushPolicy != FlushPolicy.OS_MANAGED) {
+            current.force();
+        }
+        saveIndex();
+        current.close();
+        unflushed = 0;
+        current = createSegment(number);
+        return current;
+    }
+
+    private void appended(int transactionTimestamp) {
+        currentIndex.add(transactionTimestamp);
+        recordCount++;
+        switch (flushPolicy) {
+            case EVERY_RECORD:
+                current.force();
+                break;
+            case EVERY_N_RECORDS:
+                if (++unflushed >= flushInterval) {
+                    current.force();
+                    unflushed = 0;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void saveIndex() throws IOException {
+        currentIndex.save(TickJournalIndex.indexFile(current.getFile()));
+    }
+
+    /**
+     * Forces whatever was written so far to the storage device, regardless of the flush policy, and saves the index
+     * of the current segment
+     * @throws IOException if the index could not be saved
+     */
+    public void flush() throws IOException {
+        if (current != null) {
+            current.force();
+            unflushed = 0;
+            saveIndex();
+        }
+    }
+
+    /**
+     * Closes the journal, forcing it to storage unless the policy is OS_MANAGED
+     * @throws IOException if closing the segment failed
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (current != null) {
+            if (flushPolicy != FlushPolicy.OS_MANAGED) {
+                current.force();
+            }
+            saveIndex();
+            current.close();
+            current = null;
+            currentIndex = null;
+        }
+    }
+}
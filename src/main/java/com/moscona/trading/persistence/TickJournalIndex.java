@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.persistence;
+
+import com.moscona.exceptions.InvalidStateException;
+import com.moscona.trading.streaming.TickRecordCodec;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * A sparse time index over one tick journal segment. An entry is added every N records, or whenever the transaction
+ * timestamp advanced by M milliseconds since the last entry, whichever comes first. Each entry holds a record index
+ * and the maximum transaction timestamp of all the records before it, so the index stays correct even if ticks arrive
+ * slightly out of order: all records before an entry whose maximum is lower than T are known to be earlier than T.
+ * The index is kept in memory while the segment is written and saved next to it (segment-NNNNNN.idx). It also
+ * records how many records it covers, so after a crash it can be extended (or rebuilt) from the segment itself.
+ */
+public class TickJournalIndex {
+    public static final int MAGIC = 0x544A4958; // "TJIX"
+    public static final short VERSION = 1;
+    public static final String FILE_SUFFIX = ".idx";
+    public static final int DEFAULT_RECORDS_PER_ENTRY = 4096;
+    public static final int DEFAULT_MILLIS_PER_ENTRY = 1000;
+
+    private final int recordsPerEntry;
+    private final int millisPerEntry;
+    private int[] recordIndexes;
+    private int[] maxTimestampsBefore;
+    private int size = 0;
+    private int indexedCount = 0;             // the number of records covered by the index
+    private int maxTimestamp = Integer.MIN_VALUE; // the maximum timestamp of the covered records
+    private int lastEntryRecord = 0;
+    private int lastEntryTimestamp = 0;
+
+    public TickJournalIndex(int recordsPerEntry, int millisPerEntry) {
+        this.recordsPerEntry = Math.max(1, recordsPerEntry);
+        this.millisPerEntry = Math.max(1, millisPerEntry);
+        recordIndexes = new int[64];
+        maxTimestampsBefore = new int[64];
+    }
+
+    /**
+     * The index file that goes with a segment file
+     * @param segmentFile the segment file
+     * @return the index file
+     */
+    public static File indexFile(File segmentFile) {
+        String name = segmentFile.getName();
+        if (name.endsWith(TickJournalSegment.FILE_SUFFIX)) {
+            name = name.substring(0, name.length() - TickJournalSegment.FILE_SUFFIX.length());
+        }
+        return new File(segmentFile.getParentFile(), name + FILE_SUFFIX);
+    }
+
+    public int getRecordsPerEntry() {
+        return recordsPerEntry;
+    }
+
+    public int getMillisPerEntry() {
+        return millisPerEntry;
+    }
+
+    /**
+     * @return the number of entries in the index
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of segment records covered by the index
+     */
+    public int getIndexedCount() {
+        return indexedCount;
+    }
+
+    /**
+     * @return the maximum transaction timestamp of the covered records (Integer.MIN_VALUE if there are none)
+     */
+    public int getMaxTimestamp() {
+        return maxTimestamp;
+    }
+
+    /**
+     * Adds the next record of the segment to the index (records must be added in segment order)
+     * @param transactionTimestamp the transaction timestamp of the record
+     */
+    public void add(int transactionTimestamp) {
+        int record = indexedCount;
+        if (size == 0 || record - lastEntryRecord >= recordsPerEntry ||
+                (long) transactionTimestamp - lastEntryTimestamp >= millisPerEntry) {
+            if (size == recordIndexes.length) {
+                recordIndexes = Arrays.copyOf(recordIndexes, size * 2);
+                maxTimestampsBefore = Arrays.copyOf(maxTimestampsBefore, size * 2);
+            }
+            recordIndexes[size] = record;
+            maxTimestampsBefore[size] = maxTimestamp;
+            size++;
+            lastEntryRecord = record;
+            lastEntryTimestamp = transactionTimestamp;
+        }
+        if (transactionTimestamp > maxTimestamp) {
+            maxTimestamp = transactionTimestamp;
+        }
+        indexedCount++;
+    }
+
+    /**
+     * Finds where to start scanning for the first record with a transaction timestamp at or after a given time.
+     * All the records before the returned index are earlier than the timestamp. Binary search - O(log n).
+     * @param transactionTimestamp the timestamp to look for (internal time stamp)
+     * @return the record index to start scanning from
+     */
+    public int findStart(int transactionTimestamp) {
+        // maxTimestampsBefore is non decreasing: find the last entry with a maximum lower than the timestamp
+        int low = 0;
+        int high = size - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (maxTimestampsBefore[mid] < transactionTimestamp) {
+                found = mid;
+                low = mid + 1;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+        return found < 0 ? 0 : recordIndexes[found];
+    }
+
+    /**
+     * Brings the index up to date with the committed records of a segment
+     * @param segment the segment
+     * @return the number of records added to the index
+     */
+    public int extend(TickJournalSegment segment) {
+        ByteBuffer buffer = segment.getBuffer();
+        int committed = segment.getCommittedCount();
+        TickRecordCodec codec = segment.getCodec();
+        int added = 0;
+        while (indexedCount < committed) {
+            add(codec.getTransactionTimestamp(buffer, segment.offsetOf(indexedCount)));
+            added++;
+        }
+        return added;
+    }
+
+    /**
+     * Rebuilds an index from scratch by scanning a segment
+     * @param segment the segment
+     * @param recordsPerEntry the maximum number of records between entries
+     * @param millisPerEntry the maximum number of milliseconds between entries
+     * @return the new index
+     */
+    public static TickJournalIndex rebuild(TickJournalSegment segment, int recordsPerEntry, int millisPerEntry) {
+        TickJournalIndex index = new TickJournalIndex(recordsPerEntry, millisPerEntry);
+        index.extend(segment);
+        return index;
+    }
+
+    /**
+     * Loads the index of a segment and extends it to cover all the committed records. If the index file is missing,
+     * unreadable or was built with different intervals the index is rebuilt from the segment.
+     * Nothing is written - call save() to persist a rebuilt index.
+     * @param segment the segment
+     * @param recordsPerEntry the maximum number of records between entries
+     * @param millisPerEntry the maximum number of milliseconds between entries
+     * @return an index covering all the committed records of the segment
+     */
+    public static TickJournalIndex open(TickJournalSegment segment, int recordsPerEntry, int millisPerEntry) {
+        File file = indexFile(segment.getFile());
+        if (file.exists()) {
+            try {
+                TickJournalIndex index = load(file);
+                if (index.recordsPerEntry == Math.max(1, recordsPerEntry) &&
+                        index.millisPerEntry == Math.max(1, millisPerEntry) &&
+                        index.indexedCount <= segment.getCommittedCount()) {
+                    index.extend(segment);
+                    return index;
+                }
+            }
+            catch (IOException e) {
+                // fall through to rebuild
+            }
+            catch (InvalidStateException e) {
+                // fall through to rebuild
+            }
+        }
+        return rebuild(segment, recordsPerEntry, millisPerEntry);
+    }
+
+    /**
+     * Loads an index file
+     * @param file the file
+     * @return the index
+     * @throws IOException if the file could not be read
+     * @throws InvalidStateException if the file is not a valid index
+     */
+    public static TickJournalIndex load(File file) throws IOException, InvalidStateException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+                throw new InvalidStateException("Not a version "+VERSION+" journal index: "+file.getAbsolutePath());
+            }
+            in.readShort(); // reserved
+            TickJournalIndex index = new TickJournalIndex(in.readInt(), in.readInt());
+            index.indexedCount = in.readInt();
+            index.maxTimestamp = in.readInt();
+            index.lastEntryRecord = in.readInt();
+            index.lastEntryTimestamp = in.readInt();
+            int size = in.readInt();
+            if (size < 0 || index.indexedCount < 0) {
+                throw new InvalidStateException("Corrupt journal index: "+file.getAbsolutePath());
+            }
+            index.recordIndexes = new int[Math.max(64, size)];
+            index.maxTimestampsBefore = new int[Math.max(64, size)];
+            for (int i=0; i<size; i++) {
+                index.recordIndexes[i] = in.readInt();
+                index.maxTimestampsBefore[i] = in.readInt();
+            }
+            index.size = size;
+            return index;
+        }
+        catch (EOFException e) {
+            throw new InvalidStateException("Truncated journal index: "+file.getAbsolutePath(), e);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Saves the index to a file. The file is written to a temporary file first and then renamed, so a crash never
+     * leaves a partially written index behind.
+     * @param file the index file
+     * @throws IOException if the file could not be written
+     */
+    public void save(File file) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(0);
+            out.writeInt(recordsPerEntry);
+            out.writeInt(millisPerEntry);
+            out.writeInt(indexedCount);
+            out.writeInt(maxTimestamp);
+            out.writeInt(lastEntryRecord);
+            out.writeInt(lastEntryTimestamp);
+            out.writeInt(size);
+            for (int i=0; i<size; i++) {
+                out.writeInt(recordIndexes[i]);
+                out.writeInt(maxTimestampsBefore[i]);
+            }
+        }
+        finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.persistence;
+
+import com.moscona.exceptions.InvalidArgumentException;
+import com.moscona.exceptions.InvalidStateException;
+import com.moscona.trading.streaming.FlyweightTickStreamRecord;
+import com.moscona.trading.streaming.ITickConsumer;
+import com.moscona.trading.streaming.ITickSource;
+import com.moscona.trading.streaming.SymbolDictionary;
+import com.moscona.trading.streaming.TickRecordCodec;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.Arrays;
+
+/**
+ * Sequential replay of a tick journal through a single reusable flyweight record - nothing is allocated per tick.
+ * The reader only sees committed records, so it can follow a journal while it is still being written: next() returns
+ * false at the current end and returns true again once more records were appended.
+ * seek() uses the time index of the segments to start from a given time of day without scanning the whole day.
+ * Each segment is read in the record layout recorded in its header, so journals of either layout (or both) replay
+ * through the same reader.
+ * Not thread safe. Each thread should use its own reader.
+ */
+public class TickJournalReader implements ITickSource {
+    private final File directory;
+    private final FlyweightTickStreamRecord record;
+    private File[] segmentFiles;
+    private int segmentIndex = -1;
+    private TickJournalSegment segment = null;
+    private int recordIndex = 0;       // the index of the next record to read in the current segment
+    private int committed = 0;         // cached committed count of the current segment
+    private int recordsPerIndexEntry = TickJournalIndex.DEFAULT_RECORDS_PER_ENTRY;
+    private int millisPerIndexEntry = TickJournalIndex.DEFAULT_MILLIS_PER_ENTRY;
+
+    /**
+     * @param directory the journal directory
+     * @param dictionary the dictionary used to translate symbol codes of the replayed records
+     */
+    public TickJournalReader(File directory, SymbolDictionary dictionary) {
+        this(directory, new FlyweightTickStreamRecord(dictionary));
+    }
+
+    /**
+     * @param directory the journal directory
+     * @param forwardMap the map to translate symbols to integers
+     * @param backwardMap the map to translate integers to symbols
+     */
+    public TickJournalReader(File directory, AbstractMap<String,Integer> forwardMap, AbstractMap<Integer,String> backwardMap) {
+        this(directory, new FlyweightTickStreamRecord(forwardMap, backwardMap));
+    }
+
+    private TickJournalReader(File directory, FlyweightTickStreamRecord record) {
+        this.directory = directory;
+        this.record = record;
+        this.segmentFiles = TickJournal.listSegments(directory);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the reusable record, positioned at the last record returned by next()
+     */
+    @Override
+    public FlyweightTickStreamRecord getRecord() {
+        return record;
+    }
+
+    /**
+     * Advances to the next committed record
+     * @return true if the record (see getRecord()) now points at a new record, false if there are no more records for now
+     * @throws IOException if a segment could not be opened
+     * @throws InvalidStateException if a segment is not valid
+     */
+    @Override
+    public boolean next() throws IOException, InvalidStateException {
+        while (true) {
+            if (segment != null) {
+                if (recordIndex >= committed) {
+                    committed = segment.getCommittedCount();
+                }
+                if (recordIndex < committed) {
+                    record.moveTo(segment.offsetOf(recordIndex++));
+                    return true;
+                }
+                if (!segment.isComplete()) {
+                    return false; // this is the segment being written
+                }
+                committed = segment.getCommittedCount(); // final now
+                if (recordIndex < committed) {
+                    continue;
+                }
+            }
+            if (!openNextSegment()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Replays all the currently committed records (from the current position) to a consumer
+     * @param consumer the consumer
+     * @return the number of records replayed
+     * @throws IOException if a segment could not be opened
+     * @throws InvalidStateException if a segment is not valid
+     * @throws InvalidArgumentException if the consumer rejected a record
+     */
+    public long replay(ITickConsumer consumer) throws IOException, InvalidStateException, InvalidArgumentException {
+        long count = 0;
+        while (next()) {
+            consumer.onTick(record);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Replays committed records (from the current position) to a consumer until the first record with a transaction
+     * timestamp at or after a given time. That record is not replayed and will be returned by the next call to next().
+     * @param consumer the consumer
+     * @param untilTimestamp the (exclusive) end time as an internal time stamp
+     * @return the number of records replayed
+     * @throws IOException if a segment could not be opened
+     * @throws InvalidStateException if a segment is not valid
+     * @throws InvalidArgumentException if the consumer rejected a record
+     */
+    public long replay(ITickConsumer consumer, int untilTimestamp) throws IOException, InvalidStateException, InvalidArgumentException {
+        long count = 0;
+        while (next()) {
+            if (record.getTransactionTimestamp() >= untilTimestamp) {
+                recordIndex--; // push it back
+                break;
+            }
+            consumer.onTick(record);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Sets the index density the reader expects. If a segment's index file was built with different settings (or
+     * is missing) the reader rebuilds the index in memory from the segment.
+     * @param recordsPerEntry the maximum number of records between index entries
+     * @param millisPerEntry the maximum number of milliseconds of transaction time between index entries
+     */
+    public void setIndexInterval(int recordsPerEntry, int millisPerEntry) {
+        this.recordsPerIndexEntry = recordsPerEntry;
+        this.millisPerIndexEntry = millisPerEntry;
+    }
+
+    /**
+     * Positions the reader at the first committed record with a transaction timestamp at or after a given time, so
+     * that the next call to next() returns it. Segments that end before the time are skipped using their index, and
+     * within the segment a binary search in the index limits the scan to at most one index interval.
+     * @param transactionTimestamp the time to seek to as an internal time stamp
+     * @return true if such a record was found. If not the reader is left at the end of the journal.
+     * @throws IOException if a segment could not be opened
+     * @throws InvalidStateException if a segment is not valid
+     */
+    public boolean seek(int transactionTimestamp) throws IOException, InvalidStateException {
+        segmentFiles = TickJournal.listSegments(directory);
+        for (int i=0; i<segmentFiles.length; i++) {
+            openSegment(i, 0);
+            TickJournalIndex index = TickJournalIndex.open(segment, recordsPerIndexEntry, millisPerIndexEntry);
+            if (index.getMaxTimestamp() < transactionTimestamp) {
+                continue;
+            }
+            ByteBuffer buffer = record.getBuffer();
+            TickRecordCodec codec = segment.getCodec();
+            int end = index.getIndexedCount();
+            for (int r = index.findStart(transactionTimestamp); r < end; r++) {
+                if (codec.getTransactionTimestamp(buffer, segment.offsetOf(r)) >= transactionTimestamp) {
+                    recordIndex = r;
+                    return true;
+                }
+            }
+        }
+        if (segment != null) {
+            recordIndex = committed;
+        }
+        return false;
+    }
+
+    /**
+     * Positions the reader so that the next call to next() returns the given record
+     * @param segmentIndex the index of the segment in the journal (0 based, in file order)
+     * @param recordIndex the index of the record in the segment
+     * @throws IOException if the segment could not be opened
+     * @throws InvalidStateException if the segment is not valid
+     * @throws InvalidArgumentException if there is no such segment
+     */
+    public void position(int segmentIndex, int recordIndex) throws IOException, InvalidStateException, InvalidArgumentException {
+        if (segmentIndex >= segmentFiles.length) {
+            segmentFiles = TickJournal.listSegments(directory);
+        }
+        if (segmentIndex < 0 || segmentIndex >= segmentFiles.length) {
+            throw new InvalidArgumentException("No segment "+segmentIndex+" in journal "+directory.getAbsolutePath());
+        }
+        openSegment(segmentIndex, Math.max(0, recordIndex));
+    }
+
+    /**
+     * Moves on to the segment after the current one. The next segment is looked up by its number rather than in a
+     * directory listing, as a listing taken while the writer creates segments may leave some of them out. The
+     * listing is only trusted for gaps in the numbering.
+     * @return false if there is no next segment yet
+     */
+    private boolean openNextSegment() throws IOException, InvalidStateException {
+        if (segment == null) {
+            segmentFiles = TickJournal.listSegments(directory);
+            if (segmentIndex + 1 >= segmentFiles.length) {
+                return false;
+            }
+            openSegment(segmentIndex + 1, 0);
+            return true;
+        }
+        File successor = new File(directory, TickJournal.segmentFileName(segment.getNumber() + 1));
+        if (!successor.exists()) {
+            File current = segment.getFile();
+            File next = null;
+            for (File file: TickJournal.listSegments(directory)) {
+                if (file.getName().compareTo(current.getName()) > 0) {
+                    next = file;
+                    break;
+                }
+            }
+            if (next == null) {
+                return false;
+            }
+            if (!successor.exists()) {
+                successor = next; // a real gap in the numbering
+            }
+        }
+        segmentFiles = TickJournal.listSegments(directory);
+        int index = Arrays.asList(segmentFiles).indexOf(successor);
+        if (index < 0) {
+            index = -Arrays.binarySearch(segmentFiles, successor) - 1;
+            File[] files = new File[segmentFiles.length + 1];
+            System.arraycopy(segmentFiles, 0, files, 0, index);
+            files[index] = successor;
+            System.arraycopy(segmentFiles, index, files, index + 1, segmentFiles.length - index);
+            segmentFiles = files;
+        }
+        openSegment(index, 0);
+        return true;
+    }
+
+    private void openSegment(int index, int recordIndex) throws IOException, InvalidStateException {
+        if (index != segmentIndex || segment == null) {
+            closeSegment();
+            segment = TickJournalSegment.open(segmentFiles[index], true);
+            segmentIndex = index;
+            record.setCodec(segment.getCodec()).wrap(segment.getBuffer(), TickJournalSegment.HEADER_LENGTH);
+        }
+        this.recordIndex = recordIndex;
+        committed = segment.getCommittedCount();
+    }
+
+    private void closeSegment() throws IOException {
+        if (segment != null) {
+            segment.close();
+            segment = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeSegment();
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.persistence;
+
+import com.moscona.exceptions.InvalidArgumentException;
+import com.moscona.exceptions.InvalidStateException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.moscona.trading.streaming.TickRecordCodec;
+
+/**
+ * One pre-sized, memory-mapped file of a tick journal. The file starts with a fixed header followed by room for
+ * a fixed number of raw tick record frames in one layout (see TickRecordCodec). The header holds the number of
+ * committed records, which is updated after every append, so after a crash the segment is readable up to the last
+ * fully written record.
+ * Header layout (big endian):
+ * <pre>
+ *     0  int   magic
+ *     4  short version
+ *     6  short record length
+ *     8  int   capacity (records)
+ *     12 int   committed record count
+ *     16 int   segment number
+ *     20 byte  record layout version (0 in segments written before there was more than one layout means compact)
+ *     21 byte  1 if the segment was sealed before it was full (no more records will be appended)
+ *     22..31   reserved
+ * </pre>
+ * A segment has a single writer. Readers get their own view through getBuffer() or their own mapping of the file.
+ * The committed count and the sealed flag are written after a store fence and read before a load fence (see
+ * MemoryFences), so a reader in the same process that sees a record counted also sees its bytes.
+ */
+public class TickJournalSegment {
+    public static final int MAGIC = 0x544A524E; // "TJRN"
+    public static final short VERSION = 1;
+    public static final int HEADER_LENGTH = 32;
+    public static final String FILE_SUFFIX = ".ticks";
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int RECORD_LENGTH_OFFSET = 6;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int COUNT_OFFSET = 12;
+    private static final int NUMBER_OFFSET = 16;
+    private static final int LAYOUT_OFFSET = 20;
+    private static final int SEALED_OFFSET = 21;
+
+    private final File file;
+    private final int number;
+    private final int capacity;
+    private final TickRecordCodec codec;
+    private final int recordLength;
+    private final boolean readOnly;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int count; // writer's view of the committed count
+
+    private TickJournalSegment(File file, int number, int capacity, TickRecordCodec codec, boolean readOnly) {
+        this.file = file;
+        this.number = number;
+        this.capacity = capacity;
+        this.codec = codec;
+        this.recordLength = codec.getRecordLength();
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Creates a new segment file of compact records, sized for its full capacity
+     * @param file the file to create. Must not exist.
+     * @param number the sequential number of the segment in its journal
+     * @param capacity the number of records the segment can hold
+     * @return the new segment, open for writing
+     * @throws IOException if the file could not be created or mapped
+     * @throws InvalidArgumentException if the file already exists or the capacity is invalid
+     */
+    public static TickJournalSegment create(File file, int number, int capacity) throws IOException, InvalidArgumentException {
+        return create(file, number, capacity, TickRecordCodec.COMPACT);
+    }
+
+    /**
+     * Creates a new segment file, sized for its full capacity
+     * @param file the file to create. Must not exist.
+     * @param number the sequential number of the segment in its journal
+     * @param capacity the number of records the segment can hold
+     * @param codec the layout of the records
+     * @return the new segment, open for writing
+     * @throws IOException if the file could not be created or mapped
+     * @throws InvalidArgumentException if the file already exists or the capacity is invalid
+     */
+    public static TickJournalSegment create(File file, int number, int capacity, TickRecordCodec codec) throws IOException, InvalidArgumentException {
+        int recordLength = codec.getRecordLength();
+        if (capacity < 1 || (long) capacity * recordLength + HEADER_LENGTH > Integer.MAX_VALUE) {
+            throw new InvalidArgumentException("Invalid segment capacity: "+capacity);
+        }
+        if (file.exists()) {
+            throw new InvalidArgumentException("Journal segment already exists: "+file.getAbsolutePath());
+        }
+        // the header is written under a temporary name so that a reader following the journal never finds the
+        // segment without its header
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(temp, "rw");
+        try {
+            out.setLength(HEADER_LENGTH + (long) capacity * recordLength);
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(recordLength);
+            out.writeInt(capacity);
+            out.writeInt(0); // count
+            out.writeInt(number);
+            out.writeByte(codec.getVersion());
+        }
+        finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not rename "+temp.getAbsolutePath()+" to "+file.getName());
+        }
+        TickJournalSegment segment = new TickJournalSegment(file, number, capacity, codec, false);
+        segment.map(HEADER_LENGTH + capacity * recordLength);
+        segment.count = 0;
+        return segment;
+    }
+
+    /**
+     * Opens an existing segment file
+     * @param file the segment file
+     * @param readOnly whether to map it read only. A writable segment continues appending after the last committed record.
+     * @return the segment
+     * @throws IOException if the file could not be mapped
+     * @throws InvalidStateException if the file is not a valid journal segment
+     */
+    public static TickJournalSegment open(File file, boolean readOnly) throws IOException, InvalidStateException {
+        int capacity;
+        int number;
+        TickRecordCodec codec;
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            if (in.length() < HEADER_LENGTH) {
+                throw new InvalidStateException("Journal segment is too short: "+file.getAbsolutePath());
+            }
+            int magic = in.readInt();
+            short version = in.readShort();
+            short recordLength = in.readShort();
+            capacity = in.readInt();
+            in.readInt(); // count
+            number = in.readInt();
+            int layout = in.readByte();
+            if (magic != MAGIC || version != VERSION) {
+                throw new InvalidStateException("Not a version "+VERSION+" journal segment: "+file.getAbsolutePath());
+            }
+            try {
+                codec = layout == 0 ? TickRecordCodec.COMPACT : TickRecordCodec.forVersion(layout);
+            }
+            catch (InvalidArgumentException e) {
+                throw new InvalidStateException("Unsupported record layout in journal segment "+file.getAbsolutePath()+": "+e.getMessage(), e);
+            }
+            if (recordLength != codec.getRecordLength()) {
+                throw new InvalidStateException("Record length "+recordLength+" does not match the record layout "+codec+" in journal segment "+file.getAbsolutePath());
+            }
+            if (in.length() < HEADER_LENGTH + (long) capacity * recordLength) {
+                throw new InvalidStateException("Journal segment is truncated: "+file.getAbsolutePath());
+            }
+        }
+        finally {
+            in.close();
+        }
+
+        TickJournalSegment segment = new TickJournalSegment(file, number, capacity, codec, readOnly);
+        segment.map(HEADER_LENGTH + capacity * codec.getRecordLength());
+        segment.count = segment.getCommittedCount();
+        if (segment.count < 0 || segment.count > capacity) {
+            segment.close();
+            throw new InvalidStateException("Invalid record count "+segment.count+" in journal segment "+file.getAbsolutePath());
+        }
+        return segment;
+    }
+
+    private void map(int size) throws IOException {
+        raf = new RandomAccessFile(file, readOnly ? "r" : "rw");
+        channel = raf.getChannel();
+        buffer = channel.map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getNumber() {
+        return number;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public TickRecordCodec getCodec() {
+        return codec;
+    }
+
+    public int getRecordLength() {
+        return recordLength;
+    }
+
+    public boolean isFull() {
+        return count >= capacity;
+    }
+
+    /**
+     * @return true if no more records will be appended to the segment: it is full or it was sealed (may be written by
+     * another thread)
+     */
+    public boolean isComplete() {
+        return getCommittedCount() >= capacity || isSealed();
+    }
+
+    public boolean isSealed() {
+        boolean sealed = buffer.get(SEALED_OFFSET) != 0;
+        MemoryFences.loadFence();
+        return sealed;
+    }
+
+    /**
+     * Marks the segment as complete although it is not full, so that readers move on to the next segment. Writer only.
+     */
+    public void seal() {
+        MemoryFences.storeFence();
+        buffer.put(SEALED_OFFSET, (byte) 1);
+    }
+
+    /**
+     * @return the number of records committed so far, as recorded in the header (may be written by another thread)
+     */
+    public int getCommittedCount() {
+        int committed = buffer.getInt(COUNT_OFFSET);
+        MemoryFences.loadFence();
+        return committed;
+    }
+
+    /**
+     * The byte offset of a record in the mapped buffer
+     * @param index the record index in this segment
+     * @return the byte offset
+     */
+    public int offsetOf(int index) {
+        return HEADER_LENGTH + index * recordLength;
+    }
+
+    /**
+     * @return a new independent view of the mapped file (for a reader)
+     */
+    public ByteBuffer getBuffer() {
+        return buffer.duplicate();
+    }
+
+    /**
+     * Appends a raw frame. Writer only.
+     * @param frame the bytes of the record, in the segment's layout
+     * @return false if the segment is full (nothing was written)
+     */
+    public boolean append(byte[] frame) {
+        if (count >= capacity) {
+            return false;
+        }
+        buffer.position(offsetOf(count));
+        buffer.put(frame, 0, recordLength);
+        commit();
+        return true;
+    }
+
+    /**
+     * Appends a raw frame copied from a buffer, without disturbing the source buffer's position. Writer only.
+     * @param source the buffer holding the record in the segment's layout (must use the default big endian byte order)
+     * @param offset the offset of the record in the source buffer
+     * @return false if the segment is full (nothing was written)
+     */
+    public boolean append(ByteBuffer source, int offset) {
+        if (count >= capacity) {
+            return false;
+        }
+        codec.copy(source, offset, buffer, offsetOf(count));
+        commit();
+        return true;
+    }
+
+    /**
+     * Appends a record in another layout, converting it to the segment's layout. Writer only.
+     * @param sourceCodec the layout of the source record
+     * @param source the buffer holding the record
+     * @param offset the offset of the record in the source buffer
+     * @return false if the segment is full (nothing was written)
+     * @throws InvalidArgumentException if the symbol code does not fit the segment's layout (nothing was written)
+     */
+    public boolean append(TickRecordCodec sourceCodec, ByteBuffer source, int offset) throws InvalidArgumentException {
+        if (count >= capacity) {
+            return false;
+        }
+        codec.transcode(sourceCodec, source, offset, buffer, offsetOf(count));
+        commit();
+        return true;
+    }
+
+    private void commit() {
+        count++;
+        MemoryFences.storeFence(); // the record bytes before the count that publishes them
+        buffer.putInt(COUNT_OFFSET, count);
+    }
+
+    /**
+     * Forces the written records to the storage device
+     */
+    public void force() {
+        if (! readOnly) {
+            buffer.force();
+        }
+    }
+
+    /**
+     * Closes the file. The mapping itself is released when the buffer is garbage collected.
+     * @throws IOException if closing the file failed
+     */
+    public void close() throws IOException {
+        if (raf != null) {
+            channel.close();
+            raf.close();
+            raf = null;
+            channel = null;
+        }
+    }
+}
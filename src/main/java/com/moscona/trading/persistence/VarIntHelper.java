@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.persistence;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Static helpers for the variable length integer encodings used by the compact file formats: zig-zag encoding (maps
+ * small signed values to small unsigned values) and LEB128 style varints (7 bits per byte, high bit set on all bytes
+ * but the last). All values are treated as unsigned 32 bit quantities, so any int round trips in at most 5 bytes.
+ */
+public class VarIntHelper {
+    public static final int MAX_VAR_INT_LENGTH = 5;
+
+    private VarIntHelper() {
+
+    }
+
+    public static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    public static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Writes an unsigned varint at the buffer's position
+     * @param buffer the buffer
+     * @param value the value (treated as unsigned)
+     */
+    public static void putVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Reads an unsigned varint from the buffer's position
+     * @param buffer the buffer
+     * @return the value
+     */
+    public static int getVarInt(ByteBuffer buffer) {
+        int b = buffer.get();
+        if (b >= 0) {
+            return b;
+        }
+        int value = b & 0x7F;
+        int shift = 7;
+        do {
+            b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0 && shift < 35);
+        return value;
+    }
+
+    public static void putZigZag(ByteBuffer buffer, int value) {
+        putVarInt(buffer, zigZag(value));
+    }
+
+    public static int getZigZag(ByteBuffer buffer) {
+        return unZigZag(getVarInt(buffer));
+    }
+
+    /**
+     * @param value the value (treated as unsigned)
+     * @return the number of bytes putVarInt() would use
+     */
+    public static int varIntLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+}
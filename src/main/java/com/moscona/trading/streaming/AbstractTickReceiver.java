@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.streaming;
+
+import com.moscona.exceptions.InvalidArgumentException;
+import com.moscona.util.TimeHelper;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Common code of the network tick receivers: validating batches, sequence checking and publishing the records into
+ * the ring buffer with a single bulk copy per batch (batches in a record layout other than the ring's are converted
+ * record by record). A receiver is the ring's single producer, so it must be polled
+ * by one thread only.
+ */
+public abstract class AbstractTickReceiver {
+    protected final TickRingBuffer ring;
+    private boolean stampingInsertionTimestamps = true;
+    private long rejectedBatches = 0;
+    private long publishedRecords = 0;
+    private FeedGapDetector gapDetector = null;
+
+    protected AbstractTickReceiver(TickRingBuffer ring) {
+        this.ring = ring;
+    }
+
+    public TickRingBuffer getRing() {
+        return ring;
+    }
+
+    public boolean isStampingInsertionTimestamps() {
+        return stampingInsertionTimestamps;
+    }
+
+    /**
+     * @param stampingInsertionTimestamps if true (the default) all the records of a batch get the time it was
+     *                                    received (TimeHelper.now()) as their insertion timestamp
+     */
+    public void setStampingInsertionTimestamps(boolean stampingInsertionTimestamps) {
+        this.stampingInsertionTimestamps = stampingInsertionTimestamps;
+    }
+
+    /**
+     * @return the number of batches that were dropped because they were malformed or had symbol codes that do not fit
+     * the ring's record layout
+     */
+    public long getRejectedBatchCount() {
+        return rejectedBatches;
+    }
+
+    /**
+     * @return the number of records published into the ring
+     */
+    public long getPublishedRecordCount() {
+        return publishedRecords;
+    }
+
+    public FeedGapDetector getGapDetector() {
+        return gapDetector;
+    }
+
+    /**
+     * @param gapDetector a detector to report records lost by the upstream (sequence gaps in the batches) to. The
+     *                    detector itself typically runs on a ring reader's thread. Gaps are not reported for wide
+     *                    batches received into a wide ring: their records keep their sequence numbers, so the
+     *                    detector finds those gaps on its own.
+     */
+    public void setGapDetector(FeedGapDetector gapDetector) {
+        this.gapDetector = gapDetector;
+    }
+
+    protected void rejected() {
+        rejectedBatches++;
+    }
+
+    /**
+     * Publishes the new records of a complete batch. The buffer position must be at the batch header and is left
+     * after the batch.
+     * @param buffer the buffer holding the batch
+     * @param tracker the sequence tracker of the connection the batch came from
+     * @return the number of records published
+     */
+    protected int publishBatch(ByteBuffer buffer, FeedSequenceTracker tracker) {
+        int start = buffer.position();
+        int count = TickFrameBatch.getCount(buffer, start);
+        TickRecordCodec codec = TickFrameBatch.getCodec(buffer, start);
+        long missingBefore = tracker.getMissingRecordCount();
+        int skip = tracker.onBatch(TickFrameBatch.getFirstSequence(buffer, start), count);
+        boolean sequencedRecords = codec == TickRecordCodec.WIDE && ring.getCodec() == TickRecordCodec.WIDE;
+        if (gapDetector != null && !sequencedRecords && tracker.getMissingRecordCount() != missingBefore) {
+            gapDetector.reportMissing(tracker.getMissingRecordCount() - missingBefore);
+        }
+        int published = count - skip;
+        buffer.position(start + TickFrameBatch.length(skip, codec));
+        if (published > 0) {
+            try {
+                ring.publishFrames(codec, buffer, published, stampingInsertionTimestamps ? TimeHelper.now() : 0);
+            }
+            catch (InvalidArgumentException e) {
+                // wide symbol codes for a compact ring: nothing was published
+                rejected();
+                buffer.position(start + TickFrameBatch.length(count, codec));
+                return 0;
+            }
+            publishedRecords += published;
+        }
+        else {
+            buffer.position(start + TickFrameBatch.length(count, codec));
+        }
+        return published;
+    }
+}
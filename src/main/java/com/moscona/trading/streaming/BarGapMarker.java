@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.streaming;
+
+import com.moscona.trading.elements.ICumulativeBar;
+
+/**
+ * Marks the open bars affected by data gaps as missing data (see ICumulativeBar.markMissingData()). The bars are the
+ * ones currently being accumulated, indexed by symbol code, for the time slot [slotStart, slotEnd). A gap for one
+ * symbol marks that symbol's bar; a gap of the whole feed marks all the open bars in one pass over the array - O(symbols)
+ * per gap and nothing per tick.
+ * Gaps that do not overlap the current slot are ignored: the bars of earlier slots are closed already.
+ * Not thread safe - call it from the thread that updates the bars.
+ */
+public class BarGapMarker implements IDataGapListener {
+    private ICumulativeBar[] bars;
+    private int slotStart = Integer.MIN_VALUE;
+    private int slotEnd = Integer.MAX_VALUE;
+    private long gapCount = 0;
+    private long markedCount = 0;
+
+    /**
+     * @param bars the open bars indexed by symbol code (null entries are allowed)
+     */
+    public BarGapMarker(ICumulativeBar[] bars) {
+        this.bars = bars;
+    }
+
+    /**
+     * Switches to the bars of a new time slot
+     * @param bars the open bars indexed by symbol code (null entries are allowed)
+     * @param slotStart the (inclusive) start of the slot as an internal timestamp
+     * @param slotEnd the (exclusive) end of the slot as an internal timestamp
+     */
+    public void setBars(ICumulativeBar[] bars, int slotStart, int slotEnd) {
+        this.bars = bars;
+        this.slotStart = slotStart;
+        this.slotEnd = slotEnd;
+    }
+
+    public ICumulativeBar[] getBars() {
+        return bars;
+    }
+
+    /**
+     * @return the number of gaps that affected the current bars
+     */
+    public long getGapCount() {
+        return gapCount;
+    }
+
+    /**
+     * @return the number of times a bar was marked (a bar may be marked by more than one gap)
+     */
+    public long getMarkedCount() {
+        return markedCount;
+    }
+
+    @Override
+    public void onDataGap(int symbolCode, int fromTimestamp, int toTimestamp, long missingRecords) {
+        if (bars == null || toTimestamp < slotStart || fromTimestamp >= slotEnd) {
+            return;
+        }
+        gapCount++;
+        if (symbolCode != ALL_SYMBOLS) {
+            if (symbolCode >= 0 && symbolCode < bars.length) {
+                mark(bars[symbolCode]);
+            }
+            return;
+        }
+        for (ICumulativeBar bar: bars) {
+            mark(bar);
+        }
+    }
+
+    private void mark(ICumulativeBar bar) {
+        if (bar != null && !bar.isClosed()) {
+            bar.markMissingData();
+            markedCount++;
+        }
+    }
+}
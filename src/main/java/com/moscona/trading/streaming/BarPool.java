@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.streaming;
+
+import com.moscona.exceptions.InvalidArgumentException;
+import com.moscona.trading.elements.ICumulativeBar;
+import com.moscona.trading.elements.TimeSlotBar;
+
+import java.util.Arrays;
+
+/**
+ * A pool of reusable bars, so that aggregation does not allocate a bar per symbol per slot. Bars are taken with
+ * acquire() and handed back with release(), which resets them (see ICumulativeBar.reset()). Both come in bulk
+ * versions for the slot roll, where all the bars of a slot go back at once.
+ * The free bars are kept in a stack, so the bars acquired next are the ones released last and are likely still in the
+ * cache. reserve() allocates a slab of bars up front - reserve the peak number of bars per slot and the steady state
+ * does not allocate at all.
+ * Not thread safe - a pool belongs to the thread that aggregates with it.
+ * @param <T> the bar type
+ */
+public abstract class BarPool<T extends ICumulativeBar> {
+    private ICumulativeBar[] free;
+    private int freeCount = 0;
+    private long allocatedCount = 0;
+
+    protected BarPool(int initialCapacity) {
+        free = new ICumulativeBar[Math.max(initialCapacity, 16)];
+    }
+
+    /**
+     * @param reserved the number of bars to allocate up front
+     * @return a pool of TimeSlotBars
+     */
+    public static BarPool<TimeSlotBar> timeSlotBars(int reserved) {
+        BarPool<TimeSlotBar> pool = new BarPool<TimeSlotBar>(reserved) {
+            @Override
+            protected TimeSlotBar newBar() throws InvalidArgumentException {
+                return new TimeSlotBar();
+            }
+        };
+        pool.reserve(reserved);
+        return pool;
+    }
+
+    /**
+     * @param reserved the number of bars to allocate up front
+     * @return a pool of TimeSlotBarWithTimeStamps
+     */
+    public static BarPool<TimeSlotBarWithTimeStamp> timeSlotBarsWithTimeStamp(int reserved) {
+        BarPool<TimeSlotBarWithTimeStamp> pool = new BarPool<TimeSlotBarWithTimeStamp>(reserved) {
+            @Override
+            protected TimeSlotBarWithTimeStamp newBar() throws InvalidArgumentException {
+                return new TimeSlotBarWithTimeStamp();
+            }
+        };
+        pool.reserve(reserved);
+        return pool;
+    }
+
+    /**
+     * Creates a new empty bar when the pool runs out
+     * @return a new bar
+     * @throws InvalidArgumentException if the bar could not be created
+     */
+    protected abstract T newBar() throws InvalidArgumentException;
+
+    private T allocate() {
+        try {
+            allocatedCount++;
+            return newBar();
+        }
+        catch (InvalidArgumentException e) {
+            throw new IllegalStateException("Could not create an empty bar", e); // never happens: all values are 0
+        }
+    }
+
+    /**
+     * Makes sure that at least a number of bars are free, allocating the missing ones in one go
+     * @param count the number of free bars wanted
+     */
+    public void reserve(int count) {
+        ensureCapacity(count);
+        while (freeCount < count) {
+            free[freeCount++] = allocate();
+        }
+    }
+
+    private void ensureCapacity(int count) {
+        if (count > free.length) {
+            free = Arrays.copyOf(free, Math.max(count, free.length * 2));
+        }
+    }
+
+    /**
+     * @return an empty open bar
+     */
+    @SuppressWarnings("unchecked") // only T instances are ever put in the free list
+    public T acquire() {
+        if (freeCount == 0) {
+            return allocate();
+        }
+        T bar = (T) free[--freeCount];
+        free[freeCount] = null;
+        return bar;
+    }
+
+    /**
+     * Fills an array with empty open bars
+     * @param bars the array to fill
+     * @param from the first index to fill
+     * @param count the number of bars to acquire
+     */
+    @SuppressWarnings("unchecked") // only T instances are ever put in the free list
+    public void acquire(T[] bars, int from, int count) {
+        int fromPool = Math.min(count, freeCount);
+        for (int i = 0; i < fromPool; i++) {
+            bars[from + i] = (T) free[--freeCount];
+            free[freeCount] = null;
+        }
+        for (int i = fromPool; i < count; i++) {
+            bars[from + i] = allocate();
+        }
+    }
+
+    /**
+     * Resets a bar and returns it to the pool. The caller must not use the bar after this.
+     * @param bar the bar
+     */
+    public void release(T bar) {
+        bar.reset();
+        ensureCapacity(freeCount + 1);
+        free[freeCount++] = bar;
+    }
+
+    /**
+     * Resets bars and returns them to the pool, clearing their array entries
+     * @param bars the bars
+     * @param from the index of the first bar to release
+     * @param count the number of bars to release
+     */
+    public void release(T[] bars, int from, int count) {
+        ensureCapacity(freeCount + count);
+        for (int i = from; i < from + count; i++) {
+            T bar = bars[i];
+            bars[i] = null;
+            bar.reset();
+            free[freeCount++] = bar;
+        }
+    }
+
+    /**
+     * @return the number of bars ready to be acquired
+     */
+    public int getFreeCount() {
+        return freeCount;
+    }
+
+    /**
+     * @return the number of bars this pool ever allocated. Does not grow in a steady state.
+     */
+    public long getAllocatedCount() {
+        return allocatedCount;
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.streaming;
+
+import com.moscona.exceptions.InvalidArgumentException;
+import com.moscona.trading.elements.ICumulativeBar;
+import com.moscona.trading.elements.SymbolChart;
+import com.moscona.trading.elements.TimeSlotBar;
+
+import java.util.Arrays;
+
+/**
+ * One level of a bar rollup hierarchy: folds closed bars of a fine granularity into bars of a coarser granularity,
+ * kept in a SymbolChart per symbol. Each level is an IBarCloseListener of the level below it (the finest level
+ * listens to a MarketBarAggregator), and passes its own bars on to its listeners when they close, so a hierarchy like
+ * 1s -> 1m -> 5m -> 30m -> day does O(1) work per closed bar per level and never goes back to the ticks.
+ * A coarse bar is put in its chart when it opens, so the charts can be queried at any resolution while the day is
+ * in progress - the last bar of a chart is open (not closed) until its slot ends. Tick counts add up, and a coarse bar
+ * is marked as missing data when any of the bars folded into it was.
+ * A coarse slot closes when the last fine slot in it closes, or when a bar of a later coarse slot shows up. Closing
+ * the aggregator at the end of the day closes all levels.
+ * Not thread safe - the levels run on the thread of the aggregator that feeds them.
+ */
+public class BarRollup implements IBarCloseListener {
+    private final SymbolDictionary dictionary;
+    private final int startTimeStamp;
+    private final int endTimeStamp;
+    private final int dayEndTimeStamp;
+    private final int fineGranularityMillis;
+    private final int granularityMillis;
+    private final int slotCount;
+    private SymbolChart<TimeSlotBar>[] charts = newCharts(0);
+    private TimeSlotBar[] openBars = new TimeSlotBar[0];
+    private int[] touched = new int[64];    // the codes with an open bar in the current slot
+    private int touchedCount = 0;
+    private IBarCloseListener[] listeners = new IBarCloseListener[0];
+    private int currentSlot = -1;
+    private boolean slotOpen = false;
+    private long closedBarCount = 0;
+
+    /**
+     * @param dictionary the symbol dictionary, used to name the charts (may be null, naming the charts by code)
+     * @param startTimeStamp the start of the day as a server internal timestamp
+     * @param endTimeStamp the end of the day as a server internal timestamp
+     * @param fineGranularityMillis the granularity of the bars coming in
+     * @param granularityMillis the granularity of this level. Must be a multiple of the fine granularity. If the day is
+     *                          not a multiple of it the last slot is a short one.
+     * @throws InvalidArgumentException if the granularities do not fit
+     */
+    public BarRollup(SymbolDictionary dictionary, int startTimeStamp, int endTimeStamp, int fineGranularityMillis, int granularityMillis) throws InvalidArgumentException {
+        if (fineGranularityMillis < 1 || granularityMillis <= fineGranularityMillis || granularityMillis % fineGranularityMillis != 0) {
+            throw new InvalidArgumentException("The granularity must be a multiple of the fine granularity ("+fineGranularityMillis+"). Got "+granularityMillis);
+        }
+        if (endTimeStamp <= startTimeStamp) {
+            throw new InvalidArgumentException("The end time stamp must come after the start time stamp");
+        }
+        this.dictionary = dictionary;
+        this.dayEndTimeStamp = endTimeStamp;
+        this.startTimeStamp = startTimeStamp;
+        this.fineGranularityMillis = fineGranularityMillis;
+        this.granularityMillis = granularityMillis;
+        this.slotCount = (int) (((long) endTimeStamp - startTimeStamp + granularityMillis - 1) / granularityMillis);
+        this.endTimeStamp = startTimeStamp + slotCount * granularityMillis;
+    }
+
+    /**
+     * Builds a rollup hierarchy on top of an aggregator
+     * @param aggregator the aggregator producing the finest bars
+     * @param granularities the granularities of the levels, finest first. Each must be a multiple of the one before it.
+     *                      The length of the aggregator's day makes a level with a single daily bar.
+     * @return the levels, in the order of the granularities
+     * @throws InvalidArgumentException if the granularities do not fit
+     */
+    public static BarRollup[] attach(MarketBarAggregator aggregator, int... granularities) throws InvalidArgumentException {
+        BarRollup[] levels = new BarRollup[granularities.length];
+        int fine = aggregator.getGranularityMillis();
+        for (int i = 0; i < granularities.length; i++) {
+            levels[i] = new BarRollup(aggregator.getDictionary(), aggregator.getStartTimeStamp(), aggregator.getEndTimeStamp(), fine, granularities[i]);
+            if (i == 0) {
+                aggregator.addListener(levels[i]);
+            }
+            else {
+                levels[i - 1].addListener(levels[i]);
+            }
+            fine = granularities[i];
+        }
+        return levels;
+    }
+
+    /**
+     * Closes the current slot. Not needed when the aggregator below was closed, as that closes the whole hierarchy.
+     */
+    public void close() {
+        closeCurrentSlot();
+    }
+
+    /**
+     * @param listener a listener to get the closed bars of this level (e.g. the next level)
+     */
+    public synchronized void addListener(IBarCloseListener listener) {
+        IBarCloseListener[] updated = Arrays.copyOf(listeners, listeners.length + 1);
+        updated[listeners.length] = listener;
+        listeners = updated;
+    }
+
+    public int getStartTimeStamp() {
+        return startTimeStamp;
+    }
+
+    public int getEndTimeStamp() {
+        return endTimeStamp;
+    }
+
+    public int getGranularityMillis() {
+        return granularityMillis;
+    }
+
+    public long getClosedBarCount() {
+        return closedBarCount;
+    }
+
+    /**
+     * @param code a symbol code
+     * @return the symbol's chart at this level, or null if no bar of the symbol was rolled up yet
+     */
+    public SymbolChart<TimeSlotBar> getChart(int code) {
+        return code >= 0 && code < charts.length ? charts[code] : null;
+    }
+
+    @Override
+    public void onBarClose(int symbolCode, int slotStartTimeStamp, ICumulativeBar bar) {
+        int slot = slotOf(slotStartTimeStamp);
+        if (slot < 0 || symbolCode < 0) {
+            return;
+        }
+        if (slot != currentSlot) {
+            if (slot < currentSlot) {
+                return; // the aggregator does not close bars out of order
+            }
+            closeCurrentSlot();
+            currentSlot = slot;
+            slotOpen = true;
+        }
+        openBar(symbolCode).merge(bar);
+        charts[symbolCode].barChanged(currentSlot); // keeps a range index of the chart up to date
+    }
+
+    @Override
+    public void onSlotClose(int slotStartTimeStamp, int barCount) {
+        int slot = slotOf(slotStartTimeStamp);
+        if (slot < 0 || slot < currentSlot) {
+            return;
+        }
+        if (slot > currentSlot) {
+            closeCurrentSlot();
+            currentSlot = slot;
+            slotOpen = true;
+        }
+        int fineEnd = slotStartTimeStamp + fineGranularityMillis;
+        if (fineEnd >= slotStart(slot) + granularityMillis || fineEnd + fineGranularityMillis > dayEndTimeStamp) {
+            closeCurrentSlot();
+        }
+    }
+
+    private int slotOf(int timeStamp) {
+        if (timeStamp < startTimeStamp) {
+            return -1;
+        }
+        int slot = (timeStamp - startTimeStamp) / granularityMillis;
+        return slot < slotCount ? slot : -1;
+    }
+
+    private int slotStart(int slot) {
+        return startTimeStamp + slot * granularityMillis;
+    }
+
+    private TimeSlotBar openBar(int code) {
+        if (code >= openBars.length) {
+            grow(Math.max(code + 1, openBars.length * 2));
+        }
+        TimeSlotBar bar = openBars[code];
+        if (bar == null) {
+            bar = newBar();
+            openBars[code] = bar;
+            chart(code).setBar(bar, currentSlot);
+            if (touchedCount == touched.length) {
+                touched = Arrays.copyOf(touched, touchedCount * 2);
+            }
+            touched[touchedCount++] = code;
+        }
+        return bar;
+    }
+
+    private void closeCurrentSlot() {
+        if (!slotOpen) {
+            return;
+        }
+        slotOpen = false;
+        int slotStart = slotStart(currentSlot);
+        IBarCloseListener[] listeners = this.listeners;
+        for (int i = 0; i < touchedCount; i++) {
+            int code = touched[i];
+            TimeSlotBar bar = openBars[code];
+            openBars[code] = null; // the bar stays in the chart, the next slot gets a new one
+            bar.close();
+            for (IBarCloseListener listener: listeners) {
+                listener.onBarClose(code, slotStart, bar);
+            }
+        }
+        closedBarCount += touchedCount;
+        for (IBarCloseListener listener: listeners) {
+            listener.onSlotClose(slotStart, touchedCount);
+        }
+        touchedCount = 0;
+    }
+
+    private void grow(int size) {
+        openBars = Arrays.copyOf(openBars, size);
+        charts = Arrays.copyOf(charts, size);
+    }
+
+    private SymbolChart<TimeSlotBar> chart(int code) {
+        SymbolChart<TimeSlotBar> chart = charts[code];
+        if (chart == null) {
+            String symbol = dictionary != null ? dictionary.getSymbol(code) : null;
+            try {
+                chart = new SymbolChart<>(symbol != null ? symbol : Integer.toString(code), startTimeStamp, endTimeStamp, granularityMillis);
+            }
+            catch (InvalidArgumentException e) {
+                throw new IllegalStateException("Could not create a chart for symbol code "+code, e); // the range was validated up front
+            }
+            charts[code] = chart;
+        }
+        return chart;
+    }
+
+    private static TimeSlotBar newBar() {
+        try {
+            return new TimeSlotBar();
+        }
+        catch (InvalidArgumentException e) {
+            throw new IllegalStateException("Could not create an empty bar", e); // never happens: all values are 0
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"}) // generic array creation
+    private static SymbolChart<TimeSlotBar>[] newCharts(int size) {
+        return (SymbolChart<TimeSlotBar>[]) new SymbolChart[size];
+    }
+}
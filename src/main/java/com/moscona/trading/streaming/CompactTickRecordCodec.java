@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.streaming;
+
+import com.moscona.exceptions.InvalidArgumentException;
+
+import java.nio.ByteBuffer;
+
+import static com.moscona.trading.streaming.TickStreamRecord.*;
+
+/**
+ * The original 18 byte TickStreamRecord layout (version 1). See TickStreamRecord for the field offsets.
+ */
+class CompactTickRecordCodec extends TickRecordCodec {
+    static final int VERSION = 1;
+
+    @Override
+    public int getVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public int getRecordLength() {
+        return RECORD_LENGTH;
+    }
+
+    @Override
+    public int getMaxSymbolCode() {
+        return Short.MAX_VALUE;
+    }
+
+    @Override
+    public boolean canHold(int symbolCode) {
+        return (short) symbolCode == symbolCode;
+    }
+
+    @Override
+    public int getTransactionTimestamp(ByteBuffer buffer, int offset) {
+        return buffer.getInt(offset + TRANSACTION_TS_FIELD_OFFSET);
+    }
+
+    @Override
+    public long getTransactionMicros(ByteBuffer buffer, int offset) {
+        return buffer.getInt(offset + TRANSACTION_TS_FIELD_OFFSET) * 1000L;
+    }
+
+    @Override
+    public int getSymbolCode(ByteBuffer buffer, int offset) {
+        return buffer.getShort(offset + SYMBOL_FIELD_OFFSET);
+    }
+
+    @Override
+    public int getPriceCents(ByteBuffer buffer, int offset) {
+        return buffer.getInt(offset + PRICE_FIELD_OFFSET);
+    }
+
+    @Override
+    public int getQuantity(ByteBuffer buffer, int offset) {
+        return buffer.getInt(offset + QUANTITY_FIELD_OFFSET);
+    }
+
+    @Override
+    public int getInsertionTimestamp(ByteBuffer buffer, int offset) {
+        return buffer.getInt(offset + INSERTION_TS_FIELD_OFFSET);
+    }
+
+    @Override
+    public long getSequence(ByteBuffer buffer, int offset) {
+        return 0L;
+    }
+
+    @Override
+    public void setInsertionTimestamp(ByteBuffer buffer, int offset, int internalTimestamp) {
+        buffer.putInt(offset + INSERTION_TS_FIELD_OFFSET, internalTimestamp);
+    }
+
+    @Override
+    public void write(ByteBuffer buffer, int offset, long transactionMicros, int symbolCode, int priceCents, int quantity, long sequence) throws InvalidArgumentException {
+        write(buffer, offset, (int) (transactionMicros / 1000), symbolCode, priceCents, quantity);
+    }
+
+    @Override
+    public void write(ByteBuffer buffer, int offset, int internalTimestamp, int symbolCode, int priceCents, int quantity) throws InvalidArgumentException {
+        if (!canHold(symbolCode)) {
+            throw new InvalidArgumentException("Symbol code "+symbolCode+" does not fit the compact tick record layout (up to "+Short.MAX_VALUE+"). Use the wide layout.");
+        }
+        buffer.putInt(offset + TRANSACTION_TS_FIELD_OFFSET, internalTimestamp);
+        buffer.putShort(offset + SYMBOL_FIELD_OFFSET, (short) symbolCode);
+        buffer.putInt(offset + PRICE_FIELD_OFFSET, priceCents);
+        buffer.putInt(offset + QUANTITY_FIELD_OFFSET, quantity);
+        buffer.putInt(offset + INSERTION_TS_FIELD_OFFSET, 0);
+    }
+
+    @Override
+    public void copy(ByteBuffer from, int fromOffset, ByteBuffer to, int toOffset) {
+        // RECORD_LENGTH is 18 = 8 + 8 + 2
+        to.putLong(toOffset, from.getLong(fromOffset));
+        to.putLong(toOffset + 8, from.getLong(fromOffset + 8));
+        to.putShort(toOffset + 16, from.getShort(fromOffset + 16));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.streaming;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+
+/**
+ * Receives batches of tick frames (see TickFrameBatch) over UDP and publishes them into a ring buffer. The channel is
+ * non-blocking and datagrams are received into a single direct buffer that is reused, so nothing is allocated per
+ * tick. Each sender gets its own sequence tracker; if the receiver is connected to a single upstream address the
+ * lookup is skipped altogether.
+ * Poll it from the ring's producer thread, either in a busy loop with poll() or with await().
+ */
+public class DatagramTickReceiver extends AbstractTickReceiver {
+    private final DatagramChannel channel;
+    private final ByteBuffer receiveBuffer;
+    private final HashMap<SocketAddress, FeedSequenceTracker> trackers = new HashMap<SocketAddress, FeedSequenceTracker>();
+    private FeedSequenceTracker connectedTracker = null;
+    private Selector selector = null;
+
+    /**
+     * @param ring the ring to publish into
+     * @param bindAddress the local address to receive on (port 0 picks a free port)
+     * @throws IOException if the channel could not be opened
+     */
+    public DatagramTickReceiver(TickRingBuffer ring, InetSocketAddress bindAddress) throws IOException {
+        super(ring);
+        channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+        channel.configureBlocking(false);
+        channel.bind(bindAddress);
+        receiveBuffer = ByteBuffer.allocateDirect(TickFrameBatch.MAX_DATAGRAM_LENGTH);
+    }
+
+    /**
+     * Only accepts datagrams from a single upstream collector
+     * @param upstream the address of the collector
+     * @throws IOException if connecting failed
+     */
+    public void connect(SocketAddress upstream) throws IOException {
+        channel.connect(upstream);
+        connectedTracker = new FeedSequenceTracker();
+    }
+
+    public InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    /**
+     * @param sender a sender address (ignored when connected)
+     * @return the sequence tracker of the sender, or null if nothing was received from it
+     */
+    public FeedSequenceTracker getTracker(SocketAddress sender) {
+        return connectedTracker != null ? connectedTracker : trackers.get(sender);
+    }
+
+    /**
+     * Receives and publishes all the datagrams that are waiting, without blocking
+     * @return the number of records published
+     * @throws IOException if receiving failed
+     */
+    public int poll() throws IOException {
+        int published = 0;
+        while (true) {
+            receiveBuffer.clear();
+            FeedSequenceTracker tracker;
+            if (connectedTracker != null) {
+                if (channel.read(receiveBuffer) <= 0) {
+                    return published;
+                }
+                tracker = connectedTracker;
+            }
+            else {
+                SocketAddress sender = channel.receive(receiveBuffer);
+                if (sender == null) {
+                    return published;
+                }
+                tracker = trackers.get(sender);
+                if (tracker == null) {
+                    tracker = new FeedSequenceTracker();
+                    trackers.put(sender, tracker);
+                }
+            }
+            receiveBuffer.flip();
+            if (receiveBuffer.remaining() < TickFrameBatch.HEADER_LENGTH || !TickFrameBatch.isValidHeader(receiveBuffer, 0) ||
+                    receiveBuffer.remaining() != TickFrameBatch.getLength(receiveBuffer, 0)) {
+                rejected();
+                continue;
+            }
+            published += publishBatch(receiveBuffer, tracker);
+        }
+    }
+
+    /**
+     * Waits for datagrams to arrive and then polls
+     * @param timeoutMillis the maximum time to wait (0 waits forever)
+     * @return the number of records published
+     * @throws IOException if receiving failed
+     */
+    public int await(long timeoutMillis) throws IOException {
+        if (selector == null) {
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        }
+        if (selector.select(timeoutMillis) > 0) {
+            selector.selectedKeys().clear();
+        }
+        return poll();
+    }
+
+    public void close() throws IOException {
+        if (selector != null) {
+            selector.close();
+        }
+        channel.close();
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.streaming;
+
+import com.moscona.exceptions.InvalidArgumentException;
+import com.moscona.trading.AbstractStatsPublisher;
+import com.moscona.trading.ITickStreamRecord;
+import com.moscona.util.monitoring.stats.IStatsService;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pass-through pipeline stage that detects lost ticks in the stream of one feed and reports them to an
+ * IDataGapListener. Three kinds of evidence are used:
+ * <ul>
+ *     <li>Feed sequence numbers of wide records (see TickRecordCodec.WIDE): a record whose sequence number is higher
+ *     than expected means records were lost. The gap is reported for all symbols.</li>
+ *     <li>Losses reported out of band with reportMissing(), for instance by the FeedSequenceTracker of a receiver for
+ *     compact batches. The gap is reported for all symbols when the next tick arrives; since the report may come
+ *     from another thread it is only as precise as the hand off between the threads.</li>
+ *     <li>Inter-arrival anomalies: a symbol that was silent for much longer than usual (a multiple of its moving
+ *     average inter-arrival time, and at least a minimum silence) while the feed kept ticking. The gap is reported
+ *     for that symbol only, when it ticks again.</li>
+ * </ul>
+ * The happy path costs a couple of array reads and writes per tick and allocates nothing (except growing the per
+ * symbol arrays when a higher symbol code shows up).
+ * Not thread safe, except for reportMissing() - a stage belongs to the thread that feeds it.
+ */
+public class FeedGapDetector extends AbstractStatsPublisher implements ITickConsumer {
+    public static final String DEFAULT_STAT_PREFIX = "feed gaps";
+    public static final float DEFAULT_SILENCE_FACTOR = 50.0f;
+    public static final int DEFAULT_MIN_SILENCE_MILLIS = 10000;
+    /** the number of ticks of a symbol before its inter-arrival average is trusted */
+    public static final int WARMUP_TICKS = 16;
+    private static final float AVERAGE_WEIGHT = 1.0f / 16; // the weight of the newest interval in the moving average
+
+    private final ITickConsumer next;
+    private final IDataGapListener listener;
+    private float silenceFactor = DEFAULT_SILENCE_FACTOR;
+    private int minSilenceMillis = DEFAULT_MIN_SILENCE_MILLIS;
+    private boolean detectingSilence = true;
+    private final AtomicLong reportedMissing = new AtomicLong(0);
+
+    private long expectedSequence = -1;
+    private int lastTimestamp = Integer.MIN_VALUE;
+    private int[] lastBySymbol = new int[0];
+    private float[] averageIntervalBySymbol = new float[0];
+    private int[] ticksBySymbol = new int[0];
+
+    private long tickCount = 0;
+    private long feedGapCount = 0;
+    private long symbolGapCount = 0;
+    private long missingRecordCount = 0;
+
+    /**
+     * @param next the next stage, which gets all the ticks (may be null for a detector at the end of a pipeline)
+     * @param listener the listener to notify of gaps
+     * @throws InvalidArgumentException if there is no listener
+     */
+    public FeedGapDetector(ITickConsumer next, IDataGapListener listener) throws InvalidArgumentException {
+        super(DEFAULT_STAT_PREFIX);
+        if (listener == null) {
+            throw new InvalidArgumentException("The gap detector requires a listener");
+        }
+        this.next = next;
+        this.listener = listener;
+    }
+
+    public boolean isDetectingSilence() {
+        return detectingSilence;
+    }
+
+    /**
+     * @param detectingSilence whether to report symbols that were silent for much longer than usual (default true)
+     */
+    public void setDetectingSilence(boolean detectingSilence) {
+        this.detectingSilence = detectingSilence;
+    }
+
+    public float getSilenceFactor() {
+        return silenceFactor;
+    }
+
+    public int getMinSilenceMillis() {
+        return minSilenceMillis;
+    }
+
+    /**
+     * Sets what counts as an anomalous silence of a symbol
+     * @param factor the multiple of the symbol's average inter-arrival time
+     * @param minSilenceMillis the minimum silence in milliseconds, regardless of the average
+     */
+    public void setSilenceThreshold(float factor, int minSilenceMillis) {
+        this.silenceFactor = factor;
+        this.minSilenceMillis = minSilenceMillis;
+    }
+
+    public long getTickCount() {
+        return tickCount;
+    }
+
+    /**
+     * @return the number of gaps reported for the whole feed
+     */
+    public long getFeedGapCount() {
+        return feedGapCount;
+    }
+
+    /**
+     * @return the number of gaps reported for single symbols
+     */
+    public long getSymbolGapCount() {
+        return symbolGapCount;
+    }
+
+    /**
+     * @return the number of records known to be lost
+     */
+    public long getMissingRecordCount() {
+        return missingRecordCount;
+    }
+
+    /**
+     * Reports records lost by the feed, as detected elsewhere. The gap is reported to the listener when the next tick
+     * arrives. May be called from any thread.
+     * @param missingRecords the number of records lost
+     */
+    public void reportMissing(long missingRecords) {
+        if (missingRecords > 0) {
+            reportedMissing.addAndGet(missingRecords);
+        }
+    }
+
+    @Override
+    public void onTick(ITickStreamRecord record) throws InvalidArgumentException {
+        tickCount++;
+        int ts = record.getTransactionTimestamp();
+        long missing = 0;
+        if (record instanceof FlyweightTickStreamRecord && ((FlyweightTickStreamRecord) record).getCodec() == TickRecordCodec.WIDE) {
+            missing = checkSequence(((FlyweightTickStreamRecord) record).getSequence());
+        }
+        if (reportedMissing.get() != 0) {
+            missing += reportedMissing.getAndSet(0);
+        }
+        if (missing > 0 && lastTimestamp != Integer.MIN_VALUE) {
+            feedGapCount++;
+            missingRecordCount += missing;
+            listener.onDataGap(IDataGapListener.ALL_SYMBOLS, lastTimestamp, ts, missing);
+        }
+        if (detectingSilence) {
+            checkSilence(record.getSymbolCode(), ts);
+        }
+        if (ts > lastTimestamp) {
+            lastTimestamp = ts;
+        }
+        if (next != null) {
+            next.onTick(record);
+        }
+    }
+
+    private long checkSequence(long sequence) {
+        long missing = 0;
+        if (expectedSequence >= 0 && sequence > expectedSequence) {
+            missing = sequence - expectedSequence;
+        }
+        if (sequence >= expectedSequence || sequence == 0) { // older sequences are duplicates; 0 is a restart
+            expectedSequence = sequence + 1;
+        }
+        return missing;
+    }
+
+    private void checkSilence(int code, int ts) {
+        if (code < 0) {
+            return;
+        }
+        if (code >= lastBySymbol.length) {
+            int length = Math.max(code + 1, Math.max(64, lastBySymbol.length * 2));
+            lastBySymbol = Arrays.copyOf(lastBySymbol, length);
+            averageIntervalBySymbol = Arrays.copyOf(averageIntervalBySymbol, length);
+            ticksBySymbol = Arrays.copyOf(ticksBySymbol, length);
+        }
+        int count = ticksBySymbol[code];
+        if (count > 0) {
+            int last = lastBySymbol[code];
+            int interval = ts - last;
+            if (interval <= 0) {
+                return; // out of order or the same millisecond: nothing to learn
+            }
+            float average = averageIntervalBySymbol[code];
+            if (count >= WARMUP_TICKS && interval > minSilenceMillis && interval > average * silenceFactor) {
+                symbolGapCount++;
+                listener.onDataGap(code, last, ts, 0);
+            }
+            else {
+                // anomalies are kept out of the average so that one gap does not hide the next
+                averageIntervalBySymbol[code] = count == 1 ? interval : average + (interval - average) * AVERAGE_WEIGHT;
+            }
+        }
+        lastBySymbol[code] = ts;
+        if (count < WARMUP_TICKS) {
+            ticksBySymbol[code] = count + 1;
+        }
+    }
+
+    /**
+     * Publishes the counts
+     */
+    @Override
+    protected void publishStats(IStatsService stats, String prefix) {
+        stats.setStat(prefix + " feed", feedGapCount);
+        stats.setStat(prefix + " symbol", symbolGapCount);
+        stats.setStat(prefix + " missing records", missingRecordCount);
+    }
+}
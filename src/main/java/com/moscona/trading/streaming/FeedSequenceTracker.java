@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.streaming;
+
+/**
+ * Checks the record sequence numbers of one upstream connection. Every record a sender sends has a sequence number
+ * one higher than the previous one, so a batch that starts after the expected sequence means records were lost and
+ * a batch that starts before it is (at least partly) a duplicate. A batch starting at 0 after other batches is taken
+ * to mean that the sender restarted.
+ * Not thread safe - a tracker belongs to the thread that reads its connection.
+ */
+public class FeedSequenceTracker {
+    private long expected = -1; // unknown until the first batch
+    private long batches = 0;
+    private long records = 0;
+    private long gaps = 0;
+    private long missingRecords = 0;
+    private long duplicateRecords = 0;
+    private long restarts = 0;
+
+    /**
+     * Records a batch and decides how much of it is new
+     * @param firstSequence the sequence number of the first record in the batch
+     * @param count the number of records in the batch
+     * @return the number of leading records in the batch that were already seen and should be skipped (count if
+     * the whole batch is a duplicate)
+     */
+    public int onBatch(long firstSequence, int count) {
+        batches++;
+        int skip = 0;
+        if (expected >= 0 && firstSequence != expected) {
+            if (firstSequence > expected) {
+                gaps++;
+                missingRecords += firstSequence - expected;
+            }
+            else if (firstSequence == 0) {
+                restarts++;
+            }
+            else {
+                skip = (int) Math.min(count, expected - firstSequence);
+                duplicateRecords += skip;
+            }
+        }
+        long end = firstSequence + count;
+        if (skip < count) {
+            expected = end;
+            records += count - skip;
+        }
+        return skip;
+    }
+
+    /**
+     * @return the sequence number expected in the next batch (-1 before the first batch)
+     */
+    public long getExpectedSequence() {
+        return expected;
+    }
+
+    public long getBatchCount() {
+        return batches;
+    }
+
+    /**
+     * @return the number of new records accepted
+     */
+    public long getRecordCount() {
+        return records;
+    }
+
+    public long getGapCount() {
+        return gaps;
+    }
+
+    public long getMissingRecordCount() {
+        return missingRecords;
+    }
+
+    public long getDuplicateRecordCount() {
+        return duplicateRecords;
+    }
+
+    public long getRestartCount() {
+        return restarts;
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.moscona.trading.streaming;
+
+import com.moscona.exceptions.InvalidArgumentException;
+import com.moscona.trading.ITickStreamRecord;
+import com.moscona.trading.excptions.MissingSymbolException;
+import com.moscona.util.TimeHelper;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+
+import static com.moscona.trading.streaming.TickStreamRecord.*;
+
+/**
+ * A flyweight ITickStreamRecord: a cursor that points at an offset in a (typically large, direct or mapped) shared
+ * buffer holding records in the same layout as TickStreamRecord. Moving the cursor, decoding and encoding do not
+ * allocate, so a single instance can walk over millions of records.
+ * The layout is given by a TickRecordCodec (COMPACT, the TickStreamRecord layout, unless told otherwise). The wide
+ * layout adds microsecond timestamps and a feed sequence number, accessible through getTransactionMicros() and
+ * getSequence().
+ * The cursor is not thread safe. Each thread should have its own cursor over the shared buffer.
+ */
+public class FlyweightTickStreamRecord implements IDictionaryTickStreamRecord {
+    private static final double HALF_TICK = 0.05;
+
+    private ByteBuffer buffer = null;
+    private int offset = 0;
+    private TickRecordCodec codec = TickRecordCodec.COMPACT;
+    private int recordLength = RECORD_LENGTH;
+    private AbstractMap<String,Integer> symbolToCode = null;
+    private AbstractMap<Integer,String> codeToSymbol = null;
+    private SymbolDictionary dictionary = null;
+    private byte[] scratch = null; // lazily created, used only by toBytes() when there is no backing array to expose
+
+    public FlyweightTickStreamRecord() {
+
+    }
+
+    public FlyweightTickStreamRecord(AbstractMap<String,Integer> forwardMap,
+                                     AbstractMap<Integer,String> backwardMap) {
+        symbolToCode = forwardMap;
+        codeToSymbol = backwardMap;
+    }
+
+    public FlyweightTickStreamRecord(SymbolDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    public FlyweightTickStreamRecord(TickRecordCodec codec) {
+        setCodec(codec);
+    }
+
+    public FlyweightTickStreamRecord(TickRecordCodec codec, SymbolDictionary dictionary) {
+        setCodec(codec);
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Allocates a direct buffer big enough for the requested number of records
+     * @param records the number of records the buffer should hold
+     * @return a new direct buffer
+     */
+    public static ByteBuffer allocateDirect(int records) {
+        return ByteBuffer.allocateDirect(records * RECORD_LENGTH);
+    }
+
+    /**
+     * Allocates a direct buffer big enough for the requested number of records in the given layout
+     * @param records the number of records the buffer should hold
+     * @param codec the layout of the records
+     * @return a new direct buffer
+     */
+    public static ByteBuffer allocateDirect(int records, TickRecordCodec codec) {
+        return ByteBuffer.allocateDirect(records * codec.getRecordLength());
+    }
+
+    /**
+     * Points the cursor at a record in the buffer
+     * @param buffer the shared buffer
+     * @param offset the byte offset of the record in the buffer
+     * @return this
+     */
+    public FlyweightTickStreamRecord wrap(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+        return this;
+    }
+
+    /**
+     * Moves the cursor to another record in the same buffer
+     * @param offset the byte offset of the record in the buffer
+     * @return this
+     */
+    public FlyweightTickStreamRecord moveTo(int offset) {
+        this.offset = offset;
+        return this;
+    }
+
+    /**
+     * Moves the cursor to the record with the given index, assuming records are packed from the start of the buffer
+     * @param index the record index
+     * @return this
+     */
+    public FlyweightTickStreamRecord moveToRecord(int index) {
+        this.offset = index * recordLength;
+        return this;
+    }
+
+    public TickRecordCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Changes the layout the cursor reads and writes. Records already in the buffer are not converted.
+     * @param codec the layout
+     * @return this
+     */
+    public FlyweightTickStreamRecord setCodec(TickRecordCodec codec) {
+        this.codec = codec;
+        recordLength = codec.getRecordLength();
+        if (scratch != null && scratch.length != recordLength) {
+            scratch = null;
+        }
+        return this;
+    }
+
+    public int getRecordLength() {
+        return recordLength;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public SymbolDictionary getSymbolDictionary() {
+        return dictionary;
+    }
+
+    public void setSymbolDictionary(SymbolDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Writes a record at the current position
+     * @param transactionTimestampOffset - the transaction time offset in milliseconds from the Epoch in US/Eastern time zone.
+     * @param symbol - the symbol to use. Must already exist in the symbol table
+     * @param price - the price of the transaction
+     * @param quantity - the number of shares traded
+     * @param forwardMap - the map to translate symbols to integers
+     * @param backwardMap - the map to translate integers to symbols
+     * @throws com.moscona.exceptions.InvalidArgumentException if any of the conversions don't work
+     * @return this
+     */
+    @Override
+    @SuppressWarnings({"MethodWithTooManyParameters", "AssignmentToCollectionOrArrayFieldFromParameter"})
+    public ITickStreamRecord init(long transactionTimestampOffset, String symbol, float price, int quantity,
+                                  AbstractMap<String, Integer> forwardMap,
+                                  AbstractMap<Integer, String> backwardMap)
+            throws InvalidArgumentException, MissingSymbolException {
+        symbolToCode = forwardMap;
+        codeToSymbol = backwardMap;
+        dictionary = null;
+        Integer code = forwardMap.get(symbol);
+        if (code==null) {
+            throw new MissingSymbolException(symbol,"","No code found for symbol '"+symbol+"' in market tree (could be because of a new symbol and market tree update is in progress)");
+        }
+        write(TimeHelper.convertToInternalTs(transactionTimestampOffset), code, priceToCents(price), quantity);
+        return this;
+    }
+
+    /**
+     * Writes a record at the current position
+     * @param transactionTimestampOffset - the transaction time offset in milliseconds from the Epoch in US/Eastern time zone.
+     * @param symbol - the symbol to use. Must already exist in the symbol table
+     * @param price - the price of the transaction
+     * @param quantity - the number of shares traded
+     * @param dictionary - the dictionary to translate between symbols and codes
+     * @throws com.moscona.exceptions.InvalidArgumentException if any of the conversions don't work, or the dictionary
+     * has codes that do not fit the record layout (a wide dictionary with a compact record)
+     * @return this
+     */
+    @Override
+    public ITickStreamRecord init(long transactionTimestampOffset, String symbol, float price, int quantity,
+                                  SymbolDictionary dictionary)
+            throws InvalidArgumentException, MissingSymbolException {
+        codec.checkDictionary(dictionary);
+        this.dictionary = dictionary;
+        int code = dictionary.getCode(symbol);
+        if (code == SymbolDictionary.MISSING) {
+            throw new MissingSymbolException(symbol,"","No code found for symbol '"+symbol+"' in market tree (could be because of a new symbol and market tree update is in progress)");
+        }
+        write(TimeHelper.convertToInternalTs(transactionTimestampOffset), code, priceToCents(price), quantity);
+        return this;
+    }
+
+    /**
+     * Writes a record at the current position without any conversions. The insertion timestamp is cleared.
+     * @param internalTimestamp - the transaction time as an internal server timestamp
+     * @param symbolCode - the symbol code
+     * @param priceCents - the price of the transaction in cents
+     * @param quantity - the number of shares traded
+     * @return this
+     * @throws IllegalArgumentException if the record layout cannot hold the symbol code
+     */
+    @Override
+    public ITickStreamRecord init(int internalTimestamp, int symbolCode, int priceCents, int quantity) {
+        try {
+            return write(internalTimestamp, symbolCode, priceCents, quantity);
+        }
+        catch (InvalidArgumentException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Writes a record at the current position without any conversions. The insertion timestamp is cleared.
+     * @param internalTimestamp the transaction time as an internal server timestamp
+     * @param symbolCode the code of the symbol
+     * @param priceCents the price in cents
+     * @param quantity the number of shares traded
+     * @return this
+     * @throws InvalidArgumentException if the record layout cannot hold the symbol code
+     */
+    public FlyweightTickStreamRecord write(int internalTimestamp, int symbolCode, int priceCents, int quantity) throws InvalidArgumentException {
+        codec.write(buffer, offset, internalTimestamp, symbolCode, priceCents, quantity);
+        return this;
+    }
+
+    /**
+     * Writes a record at the current position with microsecond precision and a feed sequence number. The insertion
+     * timestamp is cleared. The compact layout truncates the time to milliseconds and drops the sequence number.
+     * @param transactionMicros the transaction time in microseconds since midnight
+     * @param symbolCode the code of the symbol
+     * @param priceCents the price in cents
+     * @param quantity the number of shares traded
+     * @param sequence the feed sequence number
+     * @return this
+     * @throws InvalidArgumentException if the record layout cannot hold the symbol code
+     */
+    public FlyweightTickStreamRecord write(long transactionMicros, int symbolCode, int priceCents, int quantity, long sequence) throws InvalidArgumentException {
+        codec.write(buffer, offset, transactionMicros, symbolCode, priceCents, quantity, sequence);
+        return this;
+    }
+
+    /**
+     * Copies the record another cursor points at to the current position, converting it if the layouts differ
+     * @param other the cursor to copy from
+     * @return this
+     * @throws InvalidArgumentException if this record's layout cannot hold the other record's symbol code
+     */
+    public FlyweightTickStreamRecord copyFrom(FlyweightTickStreamRecord other) throws InvalidArgumentException {
+        codec.transcode(other.codec, other.buffer, other.offset, buffer, offset);
+        return this;
+    }
+
+    private static int priceToCents(float price) throws InvalidArgumentException {
+        float cents = price * 100.0f;
+        if (cents < 0.0f || cents > Integer.MAX_VALUE) {
+            throw new InvalidArgumentException("Price out of range: "+price);
+        }
+        return Math.round(cents);
+    }
+
+    /**
+     * Returns the raw bytes of the record. If the cursor covers exactly the whole backing array of a heap buffer then
+     * that array is returned (as in TickStreamRecord). Otherwise the record is copied into a scratch array that is
+     * owned by this cursor and overwritten by the next call.
+     * @return the bytes of the record
+     */
+    @Override
+    public byte[] toBytes() {
+        if (buffer.hasArray() && offset == 0 && buffer.arrayOffset() == 0 && buffer.array().length == recordLength) {
+            return buffer.array();
+        }
+        if (scratch == null) {
+            scratch = new byte[recordLength];
+        }
+        for (int i=0; i<recordLength; i++) {
+            scratch[i] = buffer.get(offset+i);
+        }
+        return scratch;
+    }
+
+    @Override
+    public ITickStreamRecord replaceBytes(byte[] newValue) throws InvalidArgumentException {
+        if (newValue.length != recordLength) {
+            throw new InvalidArgumentException("Invalid value. Length must be "+recordLength);
+        }
+        for (int i=0; i<recordLength; i++) {
+            buffer.put(offset+i, newValue[i]);
+        }
+        return this;
+    }
+
+    @Override
+    public int getTransactionTimestamp() {
+        return codec.getTransactionTimestamp(buffer, offset);
+    }
+
+    /**
+     * @return the transaction time in microseconds since midnight
+     */
+    public long getTransactionMicros() {
+        return codec.getTransactionMicros(buffer, offset);
+    }
+
+    /**
+     * @return the feed sequence number (0 in the compact layout)
+     */
+    public long getSequence() {
+        return codec.getSequence(buffer, offset);
+    }
+
+    @Override
+    public int getSymbolCode() {
+        return codec.getSymbolCode(buffer, offset);
+    }
+
+    @Override
+    public String getSymbol() {
+        if (dictionary != null) {
+            return dictionary.getSymbol(getSymbolCode());
+        }
+        return codeToSymbol.get(getSymbolCode());
+    }
+
+    @Override
+    public float getPrice() throws InvalidArgumentException {
+        return ((float) getPriceCents()) / 100;
+    }
+
+    @Override
+    public int getPriceCents() {
+        return codec.getPriceCents(buffer, offset);
+    }
+
+    @Override
+    public int getQuantity() {
+        return codec.getQuantity(buffer, offset);
+    }
+
+    @Override
+    public int getInsertionTimestamp() {
+        return codec.getInsertionTimestamp(buffer, offset);
+    }
+
+    /**
+     * Sets the insertion timestamp to the internal representation of right now
+     */
+    @Override
+    public void setInsertionTimestamp() {
+        setInsertionTimestamp(TimeHelper.now());
+    }
+
+    /**
+     * Sets the insertion timestamp (useful mainly for testing)
+     * @param ts the timestamp to use
+     */
+    public void setInsertionTimestamp(int ts) {
+        codec.setInsertionTimestamp(buffer, offset, ts);
+    }
+
+    @Override
+    public boolean equalsWithoutInsertionTs(ITickStreamRecord other) {
+        if (other instanceof FlyweightTickStreamRecord) {
+            FlyweightTickStreamRecord that = (FlyweightTickStreamRecord) other;
+            return getTransactionTimestamp() == that.getTransactionTimestamp() &&
+                    getSymbolCode() == that.getSymbolCode() &&
+                    getPriceCents() == that.getPriceCents() &&
+                    getQuantity() == that.getQuantity();
+        }
+        try {
+            return (Math.abs(getPrice() - other.getPrice()) < HALF_TICK) &&
+                    getQuantity() == other.getQuantity() &&
+                    getTransactionTimestamp() == other.getTransactionTimestamp() &&
+                    getSymbol().equals(other.getSymbol());
+        } catch (InvalidArgumentException e) {
+            return false;
+        }
+    }
+
+    public String toString() {
+        try {
+            return "Symbol="+getSymbol()+" price="+getPrice()+" quantity="+getQuantity()+" trans.ts="+getTransactionTimestamp()+" insertion.ts="+getInsertionTimestamp();
+        } catch (InvalidArgumentException e) {
+            return "EXCEPTION!!! "+e;
+        }
+    }
+}
@@ -33,13 +33,16 @@ import java.util.AbstractMap;
  * It is used mainly when working with ticks from a historic data source, which are then fed to some other process
  * (not into the server core)
  */
-public class HeavyTickStreamRecord implements ITickStreamRecord {
+public class HeavyTickStreamRecord implements IDictionaryTickStreamRecord {
     private String symbol=null;
+    private int symbolCode=-1;
     private float price=0.0f;
+    private int priceCents=0;
     private int quantity=0;
     private int timestamp=0;
     private int insertionTimestamp=-1;
     private boolean initialized = false;
+    private SymbolDictionary dictionary = null;
     public static final double HALF_A_PENNY = 0.005;
 
     /**
@@ -56,13 +59,66 @@ public class HeavyTickStreamRecord implements ITickStreamRecord {
     @Override
     public ITickStreamRecord init(long transactionTimestampOffset, String symbol, float price, int quantity, AbstractMap<String, Integer> forwardMap, AbstractMap<Integer, String> backwardMap) throws InvalidArgumentException, MissingSymbolException {
         this.symbol = symbol;
+        this.symbolCode = -1;
         this.price = price;
+        this.priceCents = Math.round(price * 100.0f);
         this.quantity = quantity;
         this.timestamp = TimeHelper.timeStampRelativeToMidnight(transactionTimestampOffset);
         initialized = true;
         return this;
     }
 
+    /**
+     * @param transactionTimestampOffset - the transaction time offset in milliseconds from the Epoch in US/Eastern time zone.
+     * @param symbol                     - the symbol to use
+     * @param price                      - the price of the transaction
+     * @param quantity                   - the number of shares traded
+     * @param dictionary                 - used only to record the symbol code if the symbol is known (may be null)
+     * @return this
+     * @throws com.moscona.exceptions.InvalidArgumentException
+     *          if any of the conversions don't work
+     */
+    @Override
+    public ITickStreamRecord init(long transactionTimestampOffset, String symbol, float price, int quantity, SymbolDictionary dictionary) throws InvalidArgumentException, MissingSymbolException {
+        init(transactionTimestampOffset, symbol, price, quantity, (AbstractMap<String, Integer>) null, null);
+        this.dictionary = dictionary;
+        if (dictionary != null) {
+            symbolCode = dictionary.getCode(symbol);
+        }
+        return this;
+    }
+
+    /**
+     * @param internalTimestamp - the transaction time as an internal server timestamp
+     * @param symbolCode        - the symbol code. Translated to a symbol only if a dictionary was set
+     * @param priceCents        - the price of the transaction in cents
+     * @param quantity          - the number of shares traded
+     * @return this
+     */
+    @Override
+    public ITickStreamRecord init(int internalTimestamp, int symbolCode, int priceCents, int quantity) {
+        this.symbol = dictionary == null ? null : dictionary.getSymbol(symbolCode);
+        this.symbolCode = symbolCode;
+        this.priceCents = priceCents;
+        this.price = ((float) priceCents) / 100;
+        this.quantity = quantity;
+        this.timestamp = internalTimestamp;
+        initialized = true;
+        return this;
+    }
+
+    public SymbolDictionary getSymbolDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Sets the dictionary used to translate symbol codes given to init(int, int, int, int)
+     * @param dictionary the dictionary (may be null)
+     */
+    public void setSymbolDictionary(SymbolDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
     /**
      * Returns a zero length byte array. DO NOT USE THIS IMPLEMENTATION.
      *
@@ -94,11 +150,24 @@ public class HeavyTickStreamRecord implements ITickStreamRecord {
         return symbol;
     }
 
+    /**
+     * @return the symbol code if the record was initialized with a dictionary that knows the symbol, -1 otherwise
+     */
+    @Override
+    public int getSymbolCode() {
+        return symbolCode;
+    }
+
     @Override
     public float getPrice() throws InvalidArgumentException {
         return price;
     }
 
+    @Override
+    public int getPriceCents() {
+        return priceCents;
+    }
+
     @Override
     public int getQuantity() {
         return quantity;
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.streaming;
+
+import com.moscona.trading.elements.ICumulativeBar;
+
+/**
+ * Gets the bars closed by a bar aggregator (see MarketBarAggregator)
+ */
+public interface IBarCloseListener {
+    /**
+     * Called for every bar that got ticks in a slot, when the slot is closed
+     * @param symbolCode the symbol code
+     * @param slotStartTimeStamp the start of the slot as a server internal timestamp
+     * @param bar the closed bar. It is reused by the aggregator and is only valid for the duration of the call.
+     */
+    void onBarClose(int symbolCode, int slotStartTimeStamp, ICumulativeBar bar);
+
+    /**
+     * Called after all the bars of a slot were passed to onBarClose()
+     * @param slotStartTimeStamp the start of the slot as a server internal timestamp
+     * @param barCount the number of bars closed in the slot
+     */
+    void onSlotClose(int slotStartTimeStamp, int barCount);
+}
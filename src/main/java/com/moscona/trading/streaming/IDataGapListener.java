@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.streaming;
+
+/**
+ * Gets notified when ticks were (probably) lost. Typically marks the affected bars as missing data (see
+ * ICumulativeBar.markMissingData()).
+ */
+public interface IDataGapListener {
+    /**
+     * The symbol code used for gaps that affect the whole feed
+     */
+    int ALL_SYMBOLS = -1;
+
+    /**
+     * Called once per detected gap
+     * @param symbolCode the affected symbol, or ALL_SYMBOLS if the whole feed lost data
+     * @param fromTimestamp the transaction time of the last tick seen before the gap (internal timestamp)
+     * @param toTimestamp the transaction time of the first tick seen after the gap (internal timestamp)
+     * @param missingRecords the number of records known to be lost, or 0 if unknown
+     */
+    void onDataGap(int symbolCode, int fromTimestamp, int toTimestamp, long missingRecords);
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.moscona.trading.streaming;
+
+import com.moscona.exceptions.InvalidArgumentException;
+import com.moscona.trading.ITickStreamRecord;
+import com.moscona.trading.excptions.MissingSymbolException;
+
+/**
+ * A tick stream record that can translate its symbol through a SymbolDictionary instead of a pair of maps. The
+ * records of this package implement it; SymbolDictionary.init() uses it when it can and falls back to the map based
+ * init() of ITickStreamRecord otherwise.
+ */
+public interface IDictionaryTickStreamRecord extends ITickStreamRecord {
+    /**
+     * @param transactionTimestampOffset - the transaction time offset in milliseconds from the Epoch in US/Eastern time zone.
+     * @param symbol - the symbol to use
+     * @param price - the price of the transaction
+     * @param quantity - the number of shares traded
+     * @param dictionary - the dictionary to translate between symbols and codes
+     * @throws InvalidArgumentException if any of the conversions don't work
+     * @throws MissingSymbolException if the symbol is not in the dictionary and the record needs its code
+     * @return this
+     */
+    ITickStreamRecord init(long transactionTimestampOffset, String symbol, float price, int quantity,
+                           SymbolDictionary dictionary)
+            throws InvalidArgumentException, MissingSymbolException;
+}
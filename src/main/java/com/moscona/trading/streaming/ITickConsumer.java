@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.moscona.trading.streaming;
+
+import com.moscona.exceptions.InvalidArgumentException;
+import com.moscona.trading.ITickStreamRecord;
+
+/**
+ * A stage that receives ticks, one at a time. Implementations must not keep a reference to the record passed in, as
+ * it is typically a flyweight that is moved to the next record as soon as the call returns.
+ */
+public interface ITickConsumer {
+    /**
+     * Processes one tick
+     * @param record the tick. Only valid for the duration of the call.
+     * @throws InvalidArgumentException if the record could not be processed
+     */
+    void onTick(ITickStreamRecord record) throws InvalidArgumentException;
+}
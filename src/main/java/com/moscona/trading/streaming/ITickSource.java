@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.streaming;
+
+import com.moscona.exceptions.InvalidStateException;
+import com.moscona.trading.ITickStreamRecord;
+
+import java.io.IOException;
+
+/**
+ * A pull style source of ticks, such as a journal or an archive being replayed. The record returned by getRecord()
+ * is typically a flyweight that is only valid until the next call to next().
+ */
+public interface ITickSource {
+    /**
+     * Advances to the next tick
+     * @return true if getRecord() now returns a new tick, false if there are no more ticks (for now)
+     * @throws IOException if reading the underlying storage failed
+     * @throws InvalidStateException if the underlying storage is not valid
+     */
+    boolean next() throws IOException, InvalidStateException;
+
+    /**
+     * @return the current tick (after next() returned true)
+     */
+    ITickStreamRecord getRecord();
+
+    /**
+     * Releases the resources held by the source
+     * @throws IOException if closing failed
+     */
+    void close() throws IOException;
+}
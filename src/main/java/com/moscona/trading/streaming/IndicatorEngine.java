@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.streaming;
+
+import com.moscona.exceptions.InvalidArgumentException;
+import com.moscona.trading.elements.ICumulativeBar;
+
+import java.util.Arrays;
+
+/**
+ * Keeps indicators of every symbol up to date as bars close, with O(1) work per closed bar and no rescanning of the
+ * charts. Listens to a MarketBarAggregator or a BarRollup level (see IBarCloseListener). The state of all symbols is
+ * kept in primitive arrays indexed by symbol code:
+ * <ul>
+ *     <li>EMA of the close, seeded with the first close</li>
+ *     <li>SMA of the close over the last window bars, from a ring buffer of closes per symbol</li>
+ *     <li>the standard deviation of the close over the same window, with Welford's update for a sliding window
+ *     (a close entering and the oldest close leaving), which stays accurate where sum of squares would not</li>
+ *     <li>ATR with Wilder's smoothing over atrPeriod bars</li>
+ *     <li>the VWAP of the day, using each bar's typical price (high + low + close) / 3</li>
+ * </ul>
+ * Indicators that need more bars than a symbol has had are NaN. Prices are in cents.
+ * Optionally the engine also keeps the series of every indicator per symbol (one value per slot, NaN for slots where
+ * the symbol had no bar), so charts of the indicators come for free as well.
+ * Not thread safe - read the values on the thread that feeds the engine, or after the day is over.
+ */
+public class IndicatorEngine implements IBarCloseListener {
+    public enum Indicator {EMA, SMA, STDEV, ATR, VWAP}
+
+    private static final int INDICATOR_COUNT = Indicator.values().length;
+
+    private final int window;
+    private final double emaAlpha;
+    private final int atrPeriod;
+    private final int startTimeStamp;
+    private final int granularityMillis;
+    private final int slotCount;    // 0 if not keeping series
+
+    private int symbols = 0;        // the size of the arrays
+    private int[] barCount = new int[0];
+    private double[] ema = new double[0];
+    private double[] closes = new double[0];     // window closes per symbol, flattened
+    private int[] ringPosition = new int[0];
+    private double[] mean = new double[0];
+    private double[] m2 = new double[0];
+    private double[] previousClose = new double[0];
+    private double[] trueRangeSum = new double[0];
+    private double[] atr = new double[0];
+    private double[] tradedValue = new double[0];
+    private long[] volume = new long[0];
+    private double[][][] series = new double[INDICATOR_COUNT][][];  // [indicator][code][slot]
+
+    /**
+     * An engine that does not keep series
+     * @param window the number of bars in the SMA and standard deviation
+     * @param emaPeriod the period of the EMA (alpha = 2 / (period + 1))
+     * @param atrPeriod the period of the ATR
+     * @throws InvalidArgumentException if a period is not positive
+     */
+    public IndicatorEngine(int window, int emaPeriod, int atrPeriod) throws InvalidArgumentException {
+        this(window, emaPeriod, atrPeriod, 0, 1, 0);
+    }
+
+    /**
+     * @param window the number of bars in the SMA and standard deviation
+     * @param emaPeriod the period of the EMA (alpha = 2 / (period + 1))
+     * @param atrPeriod the period of the ATR
+     * @param startTimeStamp the start of the day (for the series)
+     * @param granularityMillis the granularity of the bars (for the series)
+     * @param slotCount the number of slots in the series, 0 to not keep series
+     * @throws InvalidArgumentException if a period is not positive
+     */
+    public IndicatorEngine(int window, int emaPeriod, int atrPeriod, int startTimeStamp, int granularityMillis, int slotCount) throws InvalidArgumentException {
+        if (window < 1 || emaPeriod < 1 || atrPeriod < 1 || granularityMillis < 1 || slotCount < 0) {
+            throw new InvalidArgumentException("The periods and the granularity must be positive. Got window "+window+
+                    ", EMA period "+emaPeriod+", ATR period "+atrPeriod+", granularity "+granularityMillis);
+        }
+        this.window = window;
+        this.emaAlpha = 2.0 / (emaPeriod + 1);
+        this.atrPeriod = atrPeriod;
+        this.startTimeStamp = startTimeStamp;
+        this.granularityMillis = granularityMillis;
+        this.slotCount = slotCount;
+        for (int i = 0; i < INDICATOR_COUNT; i++) {
+            series[i] = new double[0][];
+        }
+    }
+
+    /**
+     * Creates an engine that keeps series for the slots of an aggregator and subscribes it to the aggregator
+     * @param aggregator the aggregator
+     * @param window the number of bars in the SMA and standard deviation
+     * @param emaPeriod the period of the EMA
+     * @param atrPeriod the period of the ATR
+     * @return the engine
+     * @throws InvalidArgumentException if a period is not positive
+     */
+    public static IndicatorEngine attach(MarketBarAggregator aggregator, int window, int emaPeriod, int atrPeriod) throws InvalidArgumentException {
+        int slots = (aggregator.getEndTimeStamp() - aggregator.getStartTimeStamp()) / aggregator.getGranularityMillis();
+        IndicatorEngine engine = new IndicatorEngine(window, emaPeriod, atrPeriod, aggregator.getStartTimeStamp(), aggregator.getGranularityMillis(), slots);
+        aggregator.addListener(engine);
+        return engine;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public int getAtrPeriod() {
+        return atrPeriod;
+    }
+
+    public boolean isKeepingSeries() {
+        return slotCount > 0;
+    }
+
+    @Override
+    public void onBarClose(int symbolCode, int slotStartTimeStamp, ICumulativeBar bar) {
+        if (symbolCode < 0 || !bar.hasData()) {
+            return;
+        }
+        if (symbolCode >= symbols) {
+            grow(Math.max(symbolCode + 1, symbols * 2));
+        }
+        add(symbolCode, bar.getHighCents(), bar.getLowCents(), bar.getCloseCents(), bar.getVolume());
+        if (slotCount > 0) {
+            int slot = (slotStartTimeStamp - startTimeStamp) / granularityMillis;
+            if (slotStartTimeStamp >= startTimeStamp && slot < slotCount) {
+                record(symbolCode, slot);
+            }
+        }
+    }
+
+    @Override
+    public void onSlotClose(int slotStartTimeStamp, int barCount) {
+        // all the work is per bar
+    }
+
+    private void add(int code, double high, double low, double close, int barVolume) {
+        int n = ++barCount[code];
+
+        ema[code] = n == 1 ? close : ema[code] + emaAlpha * (close - ema[code]);
+
+        // sliding window Welford: the new close enters, and once the window is full the oldest close leaves
+        int base = code * window;
+        int position = ringPosition[code];
+        if (n <= window) {
+            double delta = close - mean[code];
+            mean[code] += delta / n;
+            m2[code] += delta * (close - mean[code]);
+        }
+        else {
+            double oldest = closes[base + position];
+            double oldMean = mean[code];
+            mean[code] = oldMean + (close - oldest) / window;
+            m2[code] += (close - oldest) * (close - mean[code] + oldest - oldMean);
+            if (m2[code] < 0.0) {
+                m2[code] = 0.0; // rounding
+            }
+        }
+        closes[base + position] = close;
+        ringPosition[code] = position + 1 == window ? 0 : position + 1;
+
+        double trueRange = n == 1 ? high - low :
+                Math.max(high - low, Math.max(Math.abs(high - previousClose[code]), Math.abs(low - previousClose[code])));
+        previousClose[code] = close;
+        if (n <= atrPeriod) {
+            trueRangeSum[code] += trueRange;
+            if (n == atrPeriod) {
+                atr[code] = trueRangeSum[code] / atrPeriod;
+            }
+        }
+        else {
+            atr[code] = (atr[code] * (atrPeriod - 1) + trueRange) / atrPeriod;
+        }
+
+        tradedValue[code] += (high + low + close) / 3.0 * barVolume;
+        volume[code] += barVolume;
+    }
+
+    private void record(int code, int slot) {
+        for (Indicator indicator: Indicator.values()) {
+            double[][] bySymbol = series[indicator.ordinal()];
+            double[] values = bySymbol[code];
+            if (values == null) {
+                values = new double[slotCount];
+                Arrays.fill(values, Double.NaN);
+                bySymbol[code] = values;
+            }
+            values[slot] = get(indicator, code);
+        }
+    }
+
+    private void grow(int size) {
+        barCount = Arrays.copyOf(barCount, size);
+        ema = Arrays.copyOf(ema, size);
+        closes = Arrays.copyOf(closes, size * window);
+        ringPosition = Arrays.copyOf(ringPosition, size);
+        mean = Arrays.copyOf(mean, size);
+        m2 = Arrays.copyOf(m2, size);
+        previousClose = Arrays.copyOf(previousClose, size);
+        trueRangeSum = Arrays.copyOf(trueRangeSum, size);
+        atr = Arrays.copyOf(atr, size);
+        tradedValue = Arrays.copyOf(tradedValue, size);
+        volume = Arrays.copyOf(volume, size);
+        for (int i = 0; i < INDICATOR_COUNT; i++) {
+            series[i] = Arrays.copyOf(series[i], size);
+        }
+        symbols = size;
+    }
+
+    /**
+     * @param code a symbol code
+     * @return the number of bars the symbol had
+     */
+    public int getBarCount(int code) {
+        return code >= 0 && code < symbols ? barCount[code] : 0;
+    }
+
+    /**
+     * @param indicator an indicator
+     * @param code a symbol code
+     * @return the latest value of the indicator, NaN if the symbol did not have enough bars for it yet
+     */
+    public double get(Indicator indicator, int code) {
+        switch (indicator) {
+            case EMA: return getEma(code);
+            case SMA: return getSma(code);
+            case STDEV: return getStandardDeviation(code);
+            case ATR: return getAtr(code);
+            case VWAP: return getVwap(code);
+            default: return Double.NaN;
+        }
+    }
+
+    public double getEma(int code) {
+        return getBarCount(code) > 0 ? ema[code] : Double.NaN;
+    }
+
+    /**
+     * @param code a symbol code
+     * @return the average close over the last window bars, NaN before the symbol had window bars
+     */
+    public double getSma(int code) {
+        return getBarCount(code) >= window ? mean[code] : Double.NaN;
+    }
+
+    /**
+     * @param code a symbol code
+     * @return the sample standard deviation of the close over the last window bars, NaN before the symbol had window
+     * bars (or if the window is a single bar)
+     */
+    public double getStandardDeviation(int code) {
+        return getBarCount(code) >= window && window > 1 ? Math.sqrt(m2[code] / (window - 1)) : Double.NaN;
+    }
+
+    /**
+     * @param code a symbol code
+     * @return the average true range, NaN before the symbol had atrPeriod bars
+     */
+    public double getAtr(int code) {
+        return getBarCount(code) >= atrPeriod ? atr[code] : Double.NaN;
+    }
+
+    /**
+     * @param code a symbol code
+     * @return the VWAP of the day so far, NaN if there was no volume
+     */
+    public double getVwap(int code) {
+        return getBarCount(code) > 0 && volume[code] > 0 ? tradedValue[code] / volume[code] : Double.NaN;
+    }
+
+    /**
+     * @param indicator an indicator
+     * @param code a symbol code
+     * @return the series of the indicator for the symbol, indexed by slot (NaN where there was no bar). The array is
+     * live - it is not copied. Null if series are not kept or the symbol had no bars.
+     */
+    public double[] getSeries(Indicator indicator, int code) {
+        double[][] bySymbol = series[indicator.ordinal()];
+        return code >= 0 && code < bySymbol.length ? bySymbol[code] : null;
+    }
+
+    /**
+     * Forgets all the symbols' state, for a new day. Keeps the arrays.
+     */
+    public void reset() {
+        Arrays.fill(barCount, 0);
+        Arrays.fill(ringPosition, 0);
+        Arrays.fill(mean, 0.0);
+        Arrays.fill(m2, 0.0);
+        Arrays.fill(trueRangeSum, 0.0);
+        Arrays.fill(tradedValue, 0.0);
+        Arrays.fill(volume, 0L);
+        for (int i = 0; i < INDICATOR_COUNT; i++) {
+            Arrays.fill(series[i], null);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.streaming;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free, allocation free histogram of non negative latencies (in milliseconds, or any other unit) with fixed
+ * log-linear buckets, in the spirit of HdrHistogram. Values below 2^(bits+1) are counted exactly; above that every
+ * power of two range is split into 2^bits linear buckets, so the relative error of a reported value is at most
+ * 2^-bits (about 3% with the default 5 bits). The buckets cover all non negative int values.
+ * Any number of threads may record at the same time. Reading percentiles while recording gives an approximate
+ * snapshot, which is fine for monitoring.
+ */
+public class LatencyHistogram {
+    public static final int DEFAULT_SUB_BUCKET_BITS = 5;
+
+    private final int subBucketBits;
+    private final int subBucketCount;
+    private final int linearLimit;
+    private final AtomicLongArray counts;
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong negativeCount = new AtomicLong();
+    private final AtomicLong maxValue = new AtomicLong();
+
+    public LatencyHistogram() {
+        this(DEFAULT_SUB_BUCKET_BITS);
+    }
+
+    /**
+     * @param subBucketBits the precision: every power of two range is split into 2^subBucketBits buckets (1 to 10)
+     */
+    public LatencyHistogram(int subBucketBits) {
+        this.subBucketBits = Math.max(1, Math.min(10, subBucketBits));
+        this.subBucketCount = 1 << this.subBucketBits;
+        this.linearLimit = 2 * subBucketCount;
+        this.counts = new AtomicLongArray(linearLimit + (30 - this.subBucketBits) * subBucketCount);
+    }
+
+    public int getSubBucketBits() {
+        return subBucketBits;
+    }
+
+    /**
+     * @return the number of buckets (the memory footprint is 8 bytes per bucket)
+     */
+    public int getBucketCount() {
+        return counts.length();
+    }
+
+    int bucketOf(int value) {
+        if (value < linearLimit) {
+            return value;
+        }
+        int exponent = 31 - Integer.numberOfLeadingZeros(value) - subBucketBits;
+        return linearLimit + (exponent - 1) * subBucketCount + ((value >>> exponent) - subBucketCount);
+    }
+
+    /**
+     * @param bucket a bucket index
+     * @return the highest value counted in the bucket
+     */
+    long highestValueOf(int bucket) {
+        if (bucket < linearLimit) {
+            return bucket;
+        }
+        int exponent = (bucket - linearLimit) / subBucketCount + 1;
+        long subBucket = (bucket - linearLimit) % subBucketCount + subBucketCount;
+        return ((subBucket + 1) << exponent) - 1;
+    }
+
+    /**
+     * Records a value. Negative values (clock skew between the feed and this machine) are counted as 0 and also
+     * counted separately.
+     * @param value the value
+     */
+    public void record(long value) {
+        if (value < 0) {
+            negativeCount.incrementAndGet();
+            value = 0;
+        }
+        else if (value > Integer.MAX_VALUE) {
+            value = Integer.MAX_VALUE;
+        }
+        counts.incrementAndGet(bucketOf((int) value));
+        totalCount.incrementAndGet();
+        long max;
+        while (value > (max = maxValue.get())) {
+            if (maxValue.compareAndSet(max, value)) {
+                break;
+            }
+        }
+    }
+
+    public long getTotalCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * @return the number of negative values recorded
+     */
+    public long getNegativeCount() {
+        return negativeCount.get();
+    }
+
+    public long getMaxValue() {
+        return maxValue.get();
+    }
+
+    /**
+     * @param percentile the percentile (0.0 to 100.0)
+     * @return the value at or below which the given percentage of the recorded values fall (within the histogram's
+     * precision), or 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = totalCount.get();
+        if (total == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(Math.min(100.0, Math.max(0.0, percentile)) / 100.0 * total);
+        target = Math.max(1, target);
+        long seen = 0;
+        int length = counts.length();
+        for (int i = 0; i < length; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValueOf(i), maxValue.get());
+            }
+        }
+        return maxValue.get();
+    }
+
+    /**
+     * Clears the histogram. Values recorded concurrently with the reset may or may not be kept.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+        negativeCount.set(0);
+        maxValue.set(0);
+    }
+}
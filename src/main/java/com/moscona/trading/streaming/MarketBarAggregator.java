@@ -0,0 +1,372 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.streaming;
+
+import com.moscona.exceptions.InvalidArgumentException;
+import com.moscona.trading.AbstractStatsPublisher;
+import com.moscona.trading.ITickStreamRecord;
+import com.moscona.trading.elements.ColumnarSymbolChart;
+import com.moscona.trading.elements.TimeSlotBar;
+import com.moscona.util.monitoring.stats.IStatsService;
+
+import java.util.Arrays;
+
+/**
+ * Aggregates the tick stream of the whole market into bars: keeps the bars of the current time slot in a flat array
+ * indexed by symbol code, and when the ticks move into the next slot closes the bars of the slot,
+ * copies them into a ColumnarSymbolChart per symbol and passes them to the IBarCloseListeners.
+ * Slots are granularityMillis long, starting at startTimeStamp. The aggregator expects ticks in transaction time order
+ * (see TickReorderBuffer): a tick for a slot that was already closed is counted as late and ignored, and ticks outside
+ * the charts' time range are counted and ignored. Quiet markets should call advanceTo() (e.g. from a timer) so that
+ * slots close on time, and close() at the end of the day.
+ * Only the symbols that got ticks in a slot are visited when it closes. A symbol's bar is taken from a BarPool on its
+ * first tick in a slot and all the bars of the slot go back to the pool together when it closes, so only the symbols
+ * trading in the current slot hold a bar, and once the pool has grown to the busiest slot nothing is allocated per
+ * tick or per slot.
+ * Data gaps (see IDataGapListener) mark the affected bars of the current slot as missing data: a gap of one symbol
+ * marks its bar, a gap of the whole feed marks every bar closed in the slot (and in the following slots the gap
+ * reaches into) - O(1) per gap, and the marking happens on the bars that are closed anyway.
+ * Not thread safe - an aggregator belongs to the thread that feeds it (see ShardedBarAggregator for more threads).
+ */
+public class MarketBarAggregator extends AbstractStatsPublisher implements ITickConsumer, IDataGapListener {
+    public static final String DEFAULT_STAT_PREFIX = "bar aggregation";
+
+    private final SymbolDictionary dictionary;
+    private final int startTimeStamp;
+    private final int endTimeStamp;
+    private final int granularityMillis;
+    private final int slotCount;
+    private TimeSlotBar[] bars = new TimeSlotBar[0];
+    private ColumnarSymbolChart[] charts = new ColumnarSymbolChart[0];
+    private final BarPool<TimeSlotBar> pool;
+    private int[] touched = new int[64];    // the codes touched in the current slot
+    private TimeSlotBar[] touchedBars = new TimeSlotBar[64];
+    private int touchedCount = 0;
+    private IBarCloseListener[] listeners = new IBarCloseListener[0];
+    private boolean keepingCharts = true;
+
+    private int currentSlot = -1;
+    private boolean slotMissingData = false;
+    private int missingUntil = Integer.MIN_VALUE;
+
+    private long tickCount = 0;
+    private long lateTickCount = 0;
+    private long outOfRangeTickCount = 0;
+    private long closedBarCount = 0;
+
+    /**
+     * @param dictionary the symbol dictionary (used to name the charts and to size the bar array up front). May be
+     *                   null, in which case charts are named by code and the array grows as codes show up.
+     * @param startTimeStamp the start of the first slot as a server internal timestamp
+     * @param endTimeStamp the end of the last slot as a server internal timestamp
+     * @param granularityMillis the length of a slot
+     * @throws InvalidArgumentException if the time range does not hold at least one slot
+     */
+    public MarketBarAggregator(SymbolDictionary dictionary, int startTimeStamp, int endTimeStamp, int granularityMillis) throws InvalidArgumentException {
+        super(DEFAULT_STAT_PREFIX);
+        if (granularityMillis < 1) {
+            throw new InvalidArgumentException("The granularity must be positive. Got "+granularityMillis);
+        }
+        if (endTimeStamp < startTimeStamp + granularityMillis) {
+            throw new InvalidArgumentException("The space between the end time stamp and the start timestamp does not even allow for one bar given the granularity");
+        }
+        this.dictionary = dictionary;
+        this.startTimeStamp = startTimeStamp;
+        this.endTimeStamp = endTimeStamp;
+        this.granularityMillis = granularityMillis;
+        this.slotCount = (endTimeStamp - startTimeStamp) / granularityMillis;
+        this.pool = BarPool.timeSlotBars(dictionary != null ? dictionary.size() : 0);
+        if (dictionary != null) {
+            grow(dictionary.getMaxCode() + 1);
+        }
+    }
+
+    /**
+     * @param listener a listener to get the closed bars
+     */
+    public synchronized void addListener(IBarCloseListener listener) {
+        IBarCloseListener[] updated = Arrays.copyOf(listeners, listeners.length + 1);
+        updated[listeners.length] = listener;
+        listeners = updated;
+    }
+
+    public boolean isKeepingCharts() {
+        return keepingCharts;
+    }
+
+    /**
+     * @param keepingCharts whether to copy the closed bars into a chart per symbol (default true). Turn it off when
+     *                      the listeners are the only consumers.
+     */
+    public void setKeepingCharts(boolean keepingCharts) {
+        this.keepingCharts = keepingCharts;
+    }
+
+    public SymbolDictionary getDictionary() {
+        return dictionary;
+    }
+
+    public int getStartTimeStamp() {
+        return startTimeStamp;
+    }
+
+    public int getEndTimeStamp() {
+        return endTimeStamp;
+    }
+
+    public int getGranularityMillis() {
+        return granularityMillis;
+    }
+
+    /**
+     * @return the current slot (-1 before the first tick)
+     */
+    public int getCurrentSlot() {
+        return currentSlot;
+    }
+
+    /**
+     * @param code a symbol code
+     * @return the symbol's chart, or null if it never got a tick (or charts are not kept)
+     */
+    public ColumnarSymbolChart getChart(int code) {
+        return code >= 0 && code < charts.length ? charts[code] : null;
+    }
+
+    /**
+     * @param code a symbol code
+     * @return the symbol's bar in the current slot, or null if it did not get a tick in the slot
+     */
+    public TimeSlotBar getCurrentBar(int code) {
+        return code >= 0 && code < bars.length ? bars[code] : null;
+    }
+
+    /**
+     * @return the pool the bars come from
+     */
+    public BarPool<TimeSlotBar> getBarPool() {
+        return pool;
+    }
+
+    public long getTickCount() {
+        return tickCount;
+    }
+
+    /**
+     * @return the number of ticks ignored because their slot was closed already
+     */
+    public long getLateTickCount() {
+        return lateTickCount;
+    }
+
+    /**
+     * @return the number of ticks ignored because they were outside the time range
+     */
+    public long getOutOfRangeTickCount() {
+        return outOfRangeTickCount;
+    }
+
+    public long getClosedBarCount() {
+        return closedBarCount;
+    }
+
+    @Override
+    public void onTick(ITickStreamRecord record) {
+        add(record.getSymbolCode(), record.getTransactionTimestamp(), record.getPriceCents(), record.getQuantity());
+    }
+
+    /**
+     * Adds a tick, given in the internal representation
+     * @param code the symbol code
+     * @param transactionTimestamp the transaction time as a server internal timestamp
+     * @param priceCents the price in cents
+     * @param quantity the quantity
+     */
+    public void add(int code, int transactionTimestamp, int priceCents, int quantity) {
+        tickCount++;
+        int slot = slotOf(transactionTimestamp);
+        if (slot < 0 || code < 0) {
+            outOfRangeTickCount++;
+            return;
+        }
+        if (slot != currentSlot) {
+            if (slot < currentSlot) {
+                lateTickCount++;
+                return;
+            }
+            rollTo(slot);
+        }
+        touch(code).add(priceCents, quantity);
+    }
+
+    private int slotOf(int timeStamp) {
+        if (timeStamp < startTimeStamp) {
+            return -1;
+        }
+        int slot = (timeStamp - startTimeStamp) / granularityMillis;
+        return slot < slotCount ? slot : -1;
+    }
+
+    private TimeSlotBar touch(int code) {
+        if (code >= bars.length) {
+            grow(Math.max(code + 1, bars.length * 2));
+        }
+        TimeSlotBar bar = bars[code];
+        if (bar == null) {
+            bar = pool.acquire();
+            bars[code] = bar;
+            if (touchedCount == touched.length) {
+                touched = Arrays.copyOf(touched, touchedCount * 2);
+                touchedBars = Arrays.copyOf(touchedBars, touchedCount * 2);
+            }
+            touched[touchedCount] = code;
+            touchedBars[touchedCount++] = bar;
+        }
+        return bar;
+    }
+
+    private void grow(int size) {
+        bars = Arrays.copyOf(bars, size);
+        charts = Arrays.copyOf(charts, size);
+    }
+
+    /**
+     * Closes the slots before the one that covers a time stamp, as if a tick arrived at that time. Lets quiet markets
+     * close slots on time.
+     * @param timeStamp the current time as a server internal timestamp
+     */
+    public void advanceTo(int timeStamp) {
+        int slot = slotOf(timeStamp);
+        if (slot < 0) {
+            if (timeStamp >= endTimeStamp) {
+                close();
+            }
+            return;
+        }
+        if (slot > currentSlot) {
+            rollTo(slot);
+        }
+    }
+
+    /**
+     * Closes the current slot (at the end of the day). Later ticks are counted as late. If the current slot is not the
+     * last one of the day the listeners also get an onSlotClose() for the last slot (with no bars), so that whatever
+     * they accumulate for the rest of the day closes too (see BarRollup).
+     */
+    public void close() {
+        if (currentSlot < slotCount) {
+            int lastClosed = currentSlot;
+            rollTo(slotCount);
+            if (lastClosed < slotCount - 1) {
+                for (IBarCloseListener listener: listeners) {
+                    listener.onSlotClose(slotStart(slotCount - 1), 0);
+                }
+            }
+        }
+    }
+
+    private void rollTo(int slot) {
+        if (currentSlot >= 0) {
+            closeCurrentSlot();
+        }
+        currentSlot = slot;
+        slotMissingData = slotStart(slot) <= missingUntil;
+    }
+
+    private int slotStart(int slot) {
+        return startTimeStamp + slot * granularityMillis;
+    }
+
+    private void closeCurrentSlot() {
+        int slotStart = slotStart(currentSlot);
+        IBarCloseListener[] listeners = this.listeners;
+        int closed = 0;
+        for (int i = 0; i < touchedCount; i++) {
+            int code = touched[i];
+            TimeSlotBar bar = touchedBars[i];
+            bars[code] = null;
+            if (bar.hasData()) {
+                if (slotMissingData) {
+                    bar.markMissingData();
+                }
+                bar.close();
+                if (keepingCharts) {
+                    chart(code).setBar(currentSlot, bar.getOpenCents(), bar.getHighCents(), bar.getLowCents(), bar.getCloseCents(), bar.getVolume());
+                }
+                for (IBarCloseListener listener: listeners) {
+                    listener.onBarClose(code, slotStart, bar);
+                }
+                closed++;
+            }
+        }
+        pool.release(touchedBars, 0, touchedCount);
+        touchedCount = 0;
+        closedBarCount += closed;
+        for (IBarCloseListener listener: listeners) {
+            listener.onSlotClose(slotStart, closed);
+        }
+    }
+
+    private ColumnarSymbolChart chart(int code) {
+        ColumnarSymbolChart chart = charts[code];
+        if (chart == null) {
+            String symbol = dictionary != null ? dictionary.getSymbol(code) : null;
+            try {
+                chart = new ColumnarSymbolChart(symbol != null ? symbol : Integer.toString(code), startTimeStamp, endTimeStamp, granularityMillis);
+            }
+            catch (InvalidArgumentException e) {
+                throw new IllegalStateException("Could not create a chart for symbol code "+code, e); // the range was validated up front
+            }
+            charts[code] = chart;
+        }
+        return chart;
+    }
+
+    /**
+     * Marks the bars of the current slot affected by the gap (see the class comment)
+     */
+    @Override
+    public void onDataGap(int symbolCode, int fromTimestamp, int toTimestamp, long missingRecords) {
+        if (currentSlot < 0 || currentSlot >= slotCount) {
+            return;
+        }
+        int slotEnd = slotStart(currentSlot) + granularityMillis;
+        if (symbolCode != ALL_SYMBOLS) {
+            if (symbolCode >= 0 && fromTimestamp < slotEnd && toTimestamp >= slotStart(currentSlot)) {
+                touch(symbolCode).markMissingData(); // reset when the slot closes, even if it gets no ticks
+            }
+            return;
+        }
+        if (fromTimestamp < slotEnd && toTimestamp >= slotStart(currentSlot)) {
+            slotMissingData = true;
+        }
+        if (toTimestamp > missingUntil) {
+            missingUntil = toTimestamp;
+        }
+    }
+
+    /**
+     * Publishes the counts
+     */
+    @Override
+    protected void publishStats(IStatsService stats, String prefix) {
+        stats.setStat(prefix + " ticks", tickCount);
+        stats.setStat(prefix + " late ticks", lateTickCount);
+        stats.setStat(prefix + " out of range ticks", outOfRangeTickCount);
+        stats.setStat(prefix + " closed bars", closedBarCount);
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.streaming;
+
+import com.moscona.exceptions.InvalidArgumentException;
+import com.moscona.trading.AbstractStatsPublisher;
+import com.moscona.trading.elements.ICumulativeBar;
+import com.moscona.trading.formats.deprecated.*; // on demand, so that importing the deprecated MarketTree does not warn
+import com.moscona.util.monitoring.stats.IStatsService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Market breadth, kept up to date as bars close, for the whole market and for every industry node of a MarketTree:
+ * advancers, decliners and unchanged symbols (the last close against the previous day's close), symbols making new
+ * 52 week highs and lows (against TreeEntry.getYearHigh() and getYearLow()), up volume and down volume (the day's
+ * volume of the advancers and of the decliners) and the share of the traded symbols above the previous close.
+ * The counters are incremental: when a bar of a symbol closes, the symbol's old contribution is taken out of its
+ * industry, the industry's ancestors and the market, and its new one is put in - O(depth of the tree) per closed bar,
+ * and nothing at all for symbols that did not trade. At slot close the counters already hold the breadth of the
+ * slot, so reading a snapshot costs nothing more than reading the counters.
+ * Only stocks count. The tree is read once, when the engine is created.
+ * Not thread safe - read the counters on the thread that feeds the engine (e.g. from an IBarCloseListener added to
+ * the aggregator after this one), or after the day is over.
+ */
+@SuppressWarnings("deprecation") // built on MarketTree, which has no replacement yet
+public class MarketBreadthEngine extends AbstractStatsPublisher implements IBarCloseListener {
+    public static final String DEFAULT_STAT_PREFIX = "breadth";
+    public static final int MARKET = 0;  // the node index of the whole market
+
+    private static final int UNCHANGED = 0;
+    private static final int ADVANCING = 1;
+    private static final int DECLINING = 2;
+    private static final int MAX_DEPTH = 64;
+
+    // the nodes: the market and the industries
+    private final String[] nodeNames;
+    private final HashMap<String,Integer> nodeIndexes = new HashMap<String,Integer>();
+    private final int[] symbolCount;
+    private final int[] traded;
+    private final int[] advancers;
+    private final int[] decliners;
+    private final int[] newHighs;
+    private final int[] newLows;
+    private final long[] upVolume;
+    private final long[] downVolume;
+
+    // the symbols, indexed by code
+    private final int[] ancestorStart;  // the nodes of symbol code c are ancestors[ancestorStart[c]..ancestorStart[c+1])
+    private final int[] ancestors;
+    private final int[] prevCloseCents;
+    private final int[] yearHighCents;
+    private final int[] yearLowCents;
+    private final byte[] direction;
+    private final boolean[] hasTraded;
+    private final boolean[] madeNewHigh;
+    private final boolean[] madeNewLow;
+    private final long[] dayVolume;
+
+    private int lastSlotStartTimeStamp = -1;
+    private long slotCount = 0;
+
+    /**
+     * @param tree the market tree
+     * @throws InvalidArgumentException if the tree has negative codes
+     */
+    public MarketBreadthEngine(MarketTree tree) throws InvalidArgumentException {
+        super(DEFAULT_STAT_PREFIX);
+        ArrayList<String> names = new ArrayList<String>();
+        names.add(tree.getRootNodeName());
+        nodeIndexes.put(tree.getRootNodeName(), MARKET);
+        int maxCode = -1;
+        for (Map.Entry<Integer,String> entry: tree.getCodeToSymbolMap().entrySet()) {
+            if (entry.getKey() < 0) {
+                throw new InvalidArgumentException("Negative code "+entry.getKey()+" for "+entry.getValue()+" in the market tree");
+            }
+            maxCode = Math.max(maxCode, entry.getKey());
+            MarketTree.TreeEntry treeEntry = tree.get(entry.getValue());
+            if (treeEntry != null && treeEntry.getType() == MarketTree.TreeEntry.INDUSTRY && !nodeIndexes.containsKey(treeEntry.getName())) {
+                nodeIndexes.put(treeEntry.getName(), names.size());
+                names.add(treeEntry.getName());
+            }
+        }
+        nodeNames = names.toArray(new String[names.size()]);
+        int nodes = nodeNames.length;
+        symbolCount = new int[nodes];
+        traded = new int[nodes];
+        advancers = new int[nodes];
+        decliners = new int[nodes];
+        newHighs = new int[nodes];
+        newLows = new int[nodes];
+        upVolume = new long[nodes];
+        downVolume = new long[nodes];
+
+        int symbols = maxCode + 1;
+        ancestorStart = new int[symbols + 1];
+        prevCloseCents = new int[symbols];
+        yearHighCents = new int[symbols];
+        yearLowCents = new int[symbols];
+        direction = new byte[symbols];
+        hasTraded = new boolean[symbols];
+        madeNewHigh = new boolean[symbols];
+        madeNewLow = new boolean[symbols];
+        dayVolume = new long[symbols];
+
+        int[] path = new int[MAX_DEPTH + 1];
+        int[] flat = new int[symbols * 4];
+        int size = 0;
+        for (int code = 0; code < symbols; code++) {
+            ancestorStart[code] = size;
+            String symbol = tree.getCodeToSymbolMap().get(code);
+            MarketTree.TreeEntry entry = symbol == null ? null : tree.get(symbol);
+            if (entry == null || entry.getType() != MarketTree.TreeEntry.STOCK) {
+                continue;
+            }
+            prevCloseCents[code] = Math.round(entry.getPrevClose() * 100);
+            yearHighCents[code] = Math.round(entry.getYearHigh() * 100);
+            yearLowCents[code] = Math.round(entry.getYearLow() * 100);
+            int length = pathOf(tree, entry, path);
+            if (size + length > flat.length) {
+                flat = Arrays.copyOf(flat, Math.max(size + length, flat.length * 2));
+            }
+            for (int i = 0; i < length; i++) {
+                flat[size++] = path[i];
+                symbolCount[path[i]]++;
+            }
+        }
+        ancestorStart[symbols] = size;
+        ancestors = Arrays.copyOf(flat, size);
+    }
+
+    /**
+     * @return the number of nodes written into path: the industries above the entry, closest first, and the market
+     */
+    private int pathOf(MarketTree tree, MarketTree.TreeEntry entry, int[] path) {
+        int length = 0;
+        String parent = entry.getParent();
+        String name = entry.getName();
+        while (parent != null && !parent.equals(name) && !parent.equals(tree.getRootNodeName()) && length < MAX_DEPTH) {
+            Integer node = nodeIndexes.get(parent);
+            MarketTree.TreeEntry parentEntry = tree.get(parent);
+            if (node == null || parentEntry == null) {
+                break;
+            }
+            path[length++] = node;
+            name = parent;
+            parent = parentEntry.getParent();
+        }
+        path[length++] = MARKET;
+        return length;
+    }
+
+    @Override
+    public void onBarClose(int symbolCode, int slotStartTimeStamp, ICumulativeBar bar) {
+        if (symbolCode < 0 || symbolCode >= prevCloseCents.length || ancestorStart[symbolCode] == ancestorStart[symbolCode + 1] || !bar.hasData()) {
+            return; // not a stock of the tree
+        }
+        int close = bar.getCloseCents();
+        int newDirection = close > prevCloseCents[symbolCode] ? ADVANCING : close < prevCloseCents[symbolCode] ? DECLINING : UNCHANGED;
+        boolean newHigh = madeNewHigh[symbolCode] || bar.getHighCents() > yearHighCents[symbolCode];
+        boolean newLow = madeNewLow[symbolCode] || bar.getLowCents() < yearLowCents[symbolCode];
+        boolean first = !hasTraded[symbolCode];
+        int oldDirection = direction[symbolCode];
+        long oldVolume = dayVolume[symbolCode];
+        long newVolume = oldVolume + bar.getVolume();
+        int highDelta = newHigh == madeNewHigh[symbolCode] ? 0 : 1;
+        int lowDelta = newLow == madeNewLow[symbolCode] ? 0 : 1;
+
+        for (int i = ancestorStart[symbolCode]; i < ancestorStart[symbolCode + 1]; i++) {
+            int node = ancestors[i];
+            if (first) {
+                traded[node]++;
+            }
+            else {
+                remove(node, oldDirection, oldVolume);
+            }
+            add(node, newDirection, newVolume);
+            newHighs[node] += highDelta;
+            newLows[node] += lowDelta;
+        }
+
+        hasTraded[symbolCode] = true;
+        direction[symbolCode] = (byte) newDirection;
+        dayVolume[symbolCode] = newVolume;
+        madeNewHigh[symbolCode] = newHigh;
+        madeNewLow[symbolCode] = newLow;
+    }
+
+    private void remove(int node, int direction, long volume) {
+        if (direction == ADVANCING) {
+            advancers[node]--;
+            upVolume[node] -= volume;
+        }
+        else if (direction == DECLINING) {
+            decliners[node]--;
+            downVolume[node] -= volume;
+        }
+    }
+
+    private void add(int node, int direction, long volume) {
+        if (direction == ADVANCING) {
+            advancers[node]++;
+            upVolume[node] += volume;
+        }
+        else if (direction == DECLINING) {
+            decliners[node]++;
+            downVolume[node] += volume;
+        }
+    }
+
+    @Override
+    public void onSlotClose(int slotStartTimeStamp, int barCount) {
+        lastSlotStartTimeStamp = slotStartTimeStamp;
+        slotCount++;
+    }
+
+    /**
+     * @return the start of the last slot that closed, -1 if none did yet. The counters hold the breadth as of its close.
+     */
+    public int getLastSlotStartTimeStamp() {
+        return lastSlotStartTimeStamp;
+    }
+
+    public long getSlotCount() {
+        return slotCount;
+    }
+
+    public int getNodeCount() {
+        return nodeNames.length;
+    }
+
+    /**
+     * @param node a node index
+     * @return the name of the industry node, or the root node name for the market
+     */
+    public String getNodeName(int node) {
+        return nodeNames[node];
+    }
+
+    /**
+     * @param name an industry name (or the root node name)
+     * @return the node index, -1 if the tree has no such industry
+     */
+    public int getNodeIndex(String name) {
+        Integer node = nodeIndexes.get(name);
+        return node == null ? -1 : node;
+    }
+
+    /**
+     * @param node a node index
+     * @return the number of stocks under the node
+     */
+    public int getSymbolCount(int node) {
+        return symbolCount[node];
+    }
+
+    /**
+     * @param node a node index
+     * @return the number of stocks under the node that traded today
+     */
+    public int getTradedCount(int node) {
+        return traded[node];
+    }
+
+    public int getAdvancers(int node) {
+        return advancers[node];
+    }
+
+    public int getDecliners(int node) {
+        return decliners[node];
+    }
+
+    /**
+     * @param node a node index
+     * @return the number of stocks under the node that traded and are at their previous close
+     */
+    public int getUnchanged(int node) {
+        return traded[node] - advancers[node] - decliners[node];
+    }
+
+    public int getNewHighs(int node) {
+        return newHighs[node];
+    }
+
+    public int getNewLows(int node) {
+        return newLows[node];
+    }
+
+    public long getUpVolume(int node) {
+        return upVolume[node];
+    }
+
+    public long getDownVolume(int node) {
+        return downVolume[node];
+    }
+
+    /**
+     * @param node a node index
+     * @return the share (0 to 1) of the stocks under the node that traded and are above their previous close, NaN if
+     * none traded
+     */
+    public double getShareAbovePrevClose(int node) {
+        return traded[node] == 0 ? Double.NaN : (double) advancers[node] / traded[node];
+    }
+
+    /**
+     * Forgets the day, for a new one. The tree's reference prices stay.
+     */
+    public void reset() {
+        Arrays.fill(traded, 0);
+        Arrays.fill(advancers, 0);
+        Arrays.fill(decliners, 0);
+        Arrays.fill(newHighs, 0);
+        Arrays.fill(newLows, 0);
+        Arrays.fill(upVolume, 0L);
+        Arrays.fill(downVolume, 0L);
+        Arrays.fill(direction, (byte) UNCHANGED);
+        Arrays.fill(hasTraded, false);
+        Arrays.fill(madeNewHigh, false);
+        Arrays.fill(madeNewLow, false);
+        Arrays.fill(dayVolume, 0L);
+        lastSlotStartTimeStamp = -1;
+        slotCount = 0;
+    }
+
+    /**
+     * Publishes the market wide breadth
+     */
+    @Override
+    protected void publishStats(IStatsService stats, String prefix) {
+        stats.setStat(prefix + " advancers", (long) advancers[MARKET]);
+        stats.setStat(prefix + " decliners", (long) decliners[MARKET]);
+        stats.setStat(prefix + " new highs", (long) newHighs[MARKET]);
+        stats.setStat(prefix + " new lows", (long) newLows[MARKET]);
+        stats.setStat(prefix + " up volume", upVolume[MARKET]);
+        stats.setStat(prefix + " down volume", downVolume[MARKET]);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.streaming;
+
+import com.moscona.util.ITimeHelperDelegate;
+import com.moscona.util.TimeHelper;
+
+import java.util.Calendar;
+
+/**
+ * A simulated clock that follows the transaction time of replayed ticks. When installed as the TimeHelper delegate
+ * (TimeHelper.switchToSimulationMode()) TimeHelper.now(), and therefore insertion timestamps, follow replay time.
+ */
+public class ReplayClock implements ITimeHelperDelegate {
+    private volatile int now = 0;
+    private Calendar today;
+
+    /**
+     * @param today the trading day being replayed
+     */
+    public ReplayClock(Calendar today) {
+        this.today = today;
+    }
+
+    public ReplayClock() {
+        this(Calendar.getInstance(TimeHelper.INTERNAL_TIMEZONE));
+    }
+
+    /**
+     * @param lastMidnightInMillis ignored - replay time is already relative to midnight
+     * @return the current replay time as an internal time stamp
+     */
+    @Override
+    public int now(long lastMidnightInMillis) {
+        return now;
+    }
+
+    @Override
+    public Calendar today() {
+        return (Calendar) today.clone();
+    }
+
+    public void setToday(Calendar today) {
+        this.today = today;
+    }
+
+    /**
+     * @return the current replay time as an internal time stamp
+     */
+    public int getNow() {
+        return now;
+    }
+
+    /**
+     * Moves the clock forward. The clock never moves back, so out of order ticks do not make time go backwards.
+     * @param internalTimestamp the new time
+     */
+    public void advanceTo(int internalTimestamp) {
+        if (internalTimestamp > now) {
+            now = internalTimestamp;
+        }
+    }
+
+    /**
+     * Sets the clock, possibly moving it backwards (for instance when starting a new replay)
+     * @param internalTimestamp the new time
+     */
+    public void reset(int internalTimestamp) {
+        now = internalTimestamp;
+    }
+}
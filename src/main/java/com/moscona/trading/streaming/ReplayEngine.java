@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.streaming;
+
+import com.moscona.exceptions.InvalidArgumentException;
+import com.moscona.exceptions.InvalidStateException;
+import com.moscona.trading.ITickStreamRecord;
+import com.moscona.util.ITimeHelperDelegate;
+import com.moscona.util.TimeHelper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives ticks from a historic source (a journal, an archive...) into consumers such as bar aggregators.
+ * The engine owns a ReplayClock that follows the transaction time of the replayed ticks. Unless disabled, the clock
+ * is installed as the TimeHelper delegate when the first tick is replayed and stays installed until close(), so
+ * anything that uses TimeHelper.now() - in particular insertion timestamps - sees replay time rather than wall clock
+ * time, also between step() calls. close() puts back whatever TimeHelper was using before (wall clock time, a
+ * MockTime, an outer simulation...).
+ * Each tick is copied into the engine's own flyweight before it is delivered (18 bytes, no allocation), so the
+ * engine can stamp insertion timestamps even when the source is read only.
+ * Modes:
+ * <ul>
+ *     <li>AS_FAST_AS_POSSIBLE: run() replays everything with no pacing (a full day in seconds)</li>
+ *     <li>REAL_TIME: run() paces ticks by their transaction time divided by the speed (2.0 is twice as fast)</li>
+ *     <li>STEP: nothing happens until step() or stepUntil() are called</li>
+ * </ul>
+ * The engine is driven by one thread. stop() may be called from any thread.
+ */
+public class ReplayEngine {
+    private final ITickSource source;
+    private final ReplayMode mode;
+    private final ReplayClock clock;
+    private final FlyweightTickStreamRecord current;
+    private ITickConsumer[] consumers = new ITickConsumer[0];
+    private double speed = 1.0;
+    private boolean stampInsertionTimestamps = true;
+    private boolean simulatingTime = true;
+    private volatile boolean stopped = false;
+    private boolean pending = false;     // a tick was read from the source but not delivered yet
+    private boolean exhausted = false;
+    private long tickCount = 0;
+    private boolean clockInstalled = false;
+    private ITimeHelperDelegate restoredTimeDelegate = null; // put back on close(). null means normal mode
+
+    // pacing state for REAL_TIME
+    private boolean paceStarted = false;
+    private long paceStartNanos;
+    private int paceStartTimestamp;
+
+    /**
+     * @param source the source of the ticks
+     * @param mode the replay mode
+     * @throws InvalidArgumentException if the source or the mode are null
+     */
+    public ReplayEngine(ITickSource source, ReplayMode mode) throws InvalidArgumentException {
+        if (source == null || mode == null) {
+            throw new InvalidArgumentException("A replay engine requires a source and a mode");
+        }
+        this.source = source;
+        this.mode = mode;
+        this.clock = new ReplayClock();
+        // big enough for a record in any layout
+        this.current = new FlyweightTickStreamRecord().wrap(ByteBuffer.allocateDirect(TickRecordCodec.MAX_RECORD_LENGTH), 0);
+    }
+
+    public ReplayMode getMode() {
+        return mode;
+    }
+
+    public ReplayClock getClock() {
+        return clock;
+    }
+
+    /**
+     * @return the number of ticks delivered so far
+     */
+    public long getTickCount() {
+        return tickCount;
+    }
+
+    /**
+     * @return true if the source has no more ticks
+     */
+    public boolean isExhausted() {
+        return exhausted;
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    /**
+     * @param speed the real time multiple used in REAL_TIME mode (1.0 is real time, 10.0 is ten times faster)
+     * @throws InvalidArgumentException if the speed is not positive
+     */
+    public void setSpeed(double speed) throws InvalidArgumentException {
+        if (!(speed > 0.0)) {
+            throw new InvalidArgumentException("The replay speed must be positive. Got "+speed);
+        }
+        this.speed = speed;
+        paceStarted = false;
+    }
+
+    public boolean isStampingInsertionTimestamps() {
+        return stampInsertionTimestamps;
+    }
+
+    /**
+     * @param stampInsertionTimestamps if true (the default) every delivered tick gets an insertion timestamp of
+     *                                 TimeHelper.now() - replay time when simulating time. If false the insertion
+     *                                 timestamp of the source is kept.
+     */
+    public void setStampInsertionTimestamps(boolean stampInsertionTimestamps) {
+        this.stampInsertionTimestamps = stampInsertionTimestamps;
+    }
+
+    public boolean isSimulatingTime() {
+        return simulatingTime;
+    }
+
+    /**
+     * @param simulatingTime if true (the default) the replay clock is installed as the TimeHelper delegate from the
+     *                       first replayed tick until close(). Takes effect on the next replayed tick.
+     */
+    public void setSimulatingTime(boolean simulatingTime) {
+        this.simulatingTime = simulatingTime;
+    }
+
+    public ITimeHelperDelegate getRestoredTimeDelegate() {
+        return restoredTimeDelegate;
+    }
+
+    /**
+     * TimeHelper does not tell which delegate it uses, so a caller that replays in a simulated time of its own must
+     * say which delegate to put back when the session ends.
+     * @param restoredTimeDelegate the delegate to install on close(), or null (the default) to switch TimeHelper back
+     *                             to normal mode
+     */
+    public void setRestoredTimeDelegate(ITimeHelperDelegate restoredTimeDelegate) {
+        this.restoredTimeDelegate = restoredTimeDelegate;
+    }
+
+    /**
+     * Adds a consumer. Consumers get every tick, in the order they were added.
+     * @param consumer the consumer
+     */
+    public synchronized void addConsumer(ITickConsumer consumer) {
+        consumers = Arrays.copyOf(consumers, consumers.length + 1);
+        consumers[consumers.length - 1] = consumer;
+    }
+
+    /**
+     * Makes run() return after the tick it is delivering. May be called from any thread.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Replays all the remaining ticks (AS_FAST_AS_POSSIBLE and REAL_TIME modes), or until stop() is called
+     * @return the number of ticks delivered by this call
+     * @throws InvalidStateException if the engine is in STEP mode or the source is not valid
+     * @throws IOException if reading the source failed
+     * @throws InvalidArgumentException if a consumer rejected a tick
+     */
+    public long run() throws InvalidStateException, IOException, InvalidArgumentException {
+        if (mode == ReplayMode.STEP) {
+            throw new InvalidStateException("A replay engine in STEP mode is driven by step() and stepUntil()");
+        }
+        stopped = false;
+        return replay(Long.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Delivers the next ticks (STEP mode, but works in any mode). No pacing is done.
+     * @param count the maximum number of ticks to deliver
+     * @return the number of ticks delivered
+     * @throws InvalidStateException if the source is not valid
+     * @throws IOException if reading the source failed
+     * @throws InvalidArgumentException if a consumer rejected a tick
+     */
+    public long step(int count) throws InvalidStateException, IOException, InvalidArgumentException {
+        stopped = false;
+        return replay(count, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Delivers ticks up to (not including) the first tick at or after a given time. No pacing is done.
+     * @param untilTimestamp the time to stop at, as an internal time stamp
+     * @return the number of ticks delivered
+     * @throws InvalidStateException if the source is not valid
+     * @throws IOException if reading the source failed
+     * @throws InvalidArgumentException if a consumer rejected a tick
+     */
+    public long stepUntil(int untilTimestamp) throws InvalidStateException, IOException, InvalidArgumentException {
+        stopped = false;
+        long delivered = replay(Long.MAX_VALUE, untilTimestamp);
+        clock.advanceTo(untilTimestamp);
+        return delivered;
+    }
+
+    private long replay(long maxTicks, int untilTimestamp) throws InvalidStateException, IOException, InvalidArgumentException {
+        boolean pacing = mode == ReplayMode.REAL_TIME && maxTicks == Long.MAX_VALUE && untilTimestamp == Integer.MAX_VALUE;
+        if (simulatingTime) {
+            installClock();
+        }
+        else {
+            restoreTime();
+        }
+        long delivered = 0;
+        while (delivered < maxTicks && !stopped && fetch()) {
+            int ts = current.getTransactionTimestamp();
+            if (ts >= untilTimestamp) {
+                break; // stays pending for the next call
+            }
+            if (pacing) {
+                pace(ts);
+            }
+            pending = false;
+            deliver(ts);
+            delivered++;
+        }
+        return delivered;
+    }
+
+    private void installClock() {
+        if (!clockInstalled) {
+            TimeHelper.switchToSimulationMode(clock);
+            clockInstalled = true;
+        }
+    }
+
+    private void restoreTime() {
+        if (clockInstalled) {
+            clockInstalled = false;
+            if (restoredTimeDelegate == null) {
+                TimeHelper.switchToNormalMode();
+            }
+            else {
+                TimeHelper.switchToSimulationMode(restoredTimeDelegate);
+            }
+        }
+    }
+
+    /**
+     * Makes sure there is a pending tick in the engine's flyweight
+     * @return false if the source is exhausted
+     */
+    private boolean fetch() throws InvalidStateException, IOException {
+        if (pending) {
+            return true;
+        }
+        if (exhausted || !source.next()) {
+            exhausted = true;
+            return false;
+        }
+        copy(source.getRecord());
+        pending = true;
+        return true;
+    }
+
+    private void copy(ITickStreamRecord record) throws InvalidStateException {
+        try {
+            if (record instanceof FlyweightTickStreamRecord) {
+                FlyweightTickStreamRecord from = (FlyweightTickStreamRecord) record;
+                current.setCodec(from.getCodec()).copyFrom(from); // keep the source's layout (and its precision)
+                return;
+            }
+            // encoded from the accessors: not every record has a backing array (toBytes())
+            int symbolCode = record.getSymbolCode();
+            current.setCodec(TickRecordCodec.COMPACT.canHold(symbolCode) ? TickRecordCodec.COMPACT : TickRecordCodec.WIDE)
+                    .write(record.getTransactionTimestamp(), symbolCode, record.getPriceCents(), record.getQuantity());
+            current.setInsertionTimestamp(record.getInsertionTimestamp());
+        }
+        catch (InvalidArgumentException e) {
+            throw new InvalidStateException("Invalid record from replay source: "+e, e);
+        }
+    }
+
+    private void deliver(int ts) throws InvalidArgumentException {
+        clock.advanceTo(ts);
+        if (stampInsertionTimestamps) {
+            current.setInsertionTimestamp(simulatingTime ? clock.getNow() : TimeHelper.now());
+        }
+        for (ITickConsumer consumer: consumers) {
+            consumer.onTick(current);
+        }
+        tickCount++;
+    }
+
+    private void pace(int ts) {
+        if (!paceStarted) {
+            paceStarted = true;
+            paceStartNanos = System.nanoTime();
+            paceStartTimestamp = ts;
+            return;
+        }
+        long due = paceStartNanos + (long) ((ts - paceStartTimestamp) * 1000000.0 / speed);
+        long wait;
+        while (!stopped && (wait = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    /**
+     * Ends the replay session: replaces the replay clock with the restored time delegate (normal mode if none was
+     * set, see setRestoredTimeDelegate()) and closes the source
+     * @throws IOException if closing the source failed
+     */
+    public void close() throws IOException {
+        try {
+            restoreTime();
+        }
+        finally {
+            source.close();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.streaming;
+
+/**
+ * How fast a ReplayEngine replays ticks
+ */
+public enum ReplayMode {
+    /** replays ticks as fast as the consumers can take them (regression runs) */
+    AS_FAST_AS_POSSIBLE,
+    /** replays ticks at the pace they originally arrived, multiplied by the engine's speed */
+    REAL_TIME,
+    /** replays ticks only when asked to, by the engine's step methods */
+    STEP
+}
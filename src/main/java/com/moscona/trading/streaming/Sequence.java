@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.moscona.trading.streaming;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A sequence counter padded to occupy its own cache line, so that counters updated by different threads (a producer
+ * cursor and consumer positions, per shard progress etc.) do not suffer from false sharing.
+ * The padding is spread over a small class hierarchy as the JVM does not reorder fields across classes.
+ */
+@SuppressWarnings("unused")
+public class Sequence extends SequenceValue {
+    public static final long INITIAL_VALUE = -1L;
+
+    protected long p9, p10, p11, p12, p13, p14, p15;
+
+    private static final AtomicLongFieldUpdater<SequenceValue> UPDATER =
+            AtomicLongFieldUpdater.newUpdater(SequenceValue.class, "value");
+
+    public Sequence() {
+        this(INITIAL_VALUE);
+    }
+
+    public Sequence(long initialValue) {
+        UPDATER.set(this, initialValue);
+    }
+
+    public long get() {
+        return value;
+    }
+
+    /**
+     * A volatile write
+     * @param value the new value
+     */
+    public void set(long value) {
+        this.value = value;
+    }
+
+    /**
+     * An ordered (lazy) write. Cheaper than a volatile write and sufficient for publishing a value to other threads
+     * where all writes made before it become visible to a thread that reads the new value.
+     * @param value the new value
+     */
+    public void setOrdered(long value) {
+        UPDATER.lazySet(this, value);
+    }
+
+    public boolean compareAndSet(long expected, long value) {
+        return UPDATER.compareAndSet(this, expected, value);
+    }
+
+    public long incrementAndGet() {
+        return UPDATER.incrementAndGet(this);
+    }
+
+    public long addAndGet(long delta) {
+        return UPDATER.addAndGet(this, delta);
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(value);
+    }
+}
+
+@SuppressWarnings("unused")
+class SequenceLeftPadding {
+    protected long p1, p2, p3, p4, p5, p6, p7;
+}
+
+class SequenceValue extends SequenceLeftPadding {
+    protected volatile long value;
+}
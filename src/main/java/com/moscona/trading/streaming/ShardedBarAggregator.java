@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.streaming;
+
+import com.moscona.exceptions.InvalidArgumentException;
+import com.moscona.exceptions.InvalidStateException;
+import com.moscona.trading.ITickStreamRecord;
+import com.moscona.trading.elements.ColumnarSymbolChart;
+import com.moscona.trading.elements.ICumulativeBar;
+import com.moscona.trading.elements.TimeSlotBar;
+
+import java.util.Arrays;
+
+/**
+ * Bar aggregation spread over several worker threads, partitioned by symbol code: shard i owns the codes where
+ * code % shardCount == i, and keeps their bars in its own MarketBarAggregator. Every shard reads the whole ring
+ * through its own reader - no locks and no hand-off queues - and aggregates the ticks it owns, while the other ticks
+ * only move its clock forward. All the shards therefore close the same slots at the same point in the stream.
+ * At each slot boundary the shards meet at a barrier: each one copies its closed bars aside and counts itself in, and
+ * the last to arrive passes all the closed bars of the slot to the listeners (from its own thread) followed by a
+ * single onSlotClose() with the total. So the listeners see complete slots, one at a time and in order, exactly as
+ * from a single MarketBarAggregator (though not in code order within a slot). The barrier costs one atomic increment
+ * per shard per slot; the shards do not wait for each other between slot boundaries.
+ * The shared counters are padded Sequences and the hot state of each shard is padded as well, so the workers do not
+ * false share cache lines.
+ * The listeners must not block: a slow listener holds up all the shards at the next boundary.
+ */
+public class ShardedBarAggregator {
+    private final TickRingBuffer ring;
+    private final Shard[] shards;
+    private final int endTimeStamp;
+    private final Sequence arrived = new Sequence(0);   // shard arrivals at slot boundaries, over all rounds
+    private final Sequence emitted = new Sequence(0);   // the last round passed to the listeners
+    private IBarCloseListener[] listeners = new IBarCloseListener[0];
+    private Thread[] threads = null;
+    private volatile boolean closing = false;
+    private volatile Throwable failure = null;
+
+    /**
+     * @param ring the ring to read the ticks from. The readers are created here, so create the aggregator before the
+     *             producer starts.
+     * @param dictionary the symbol dictionary (may be null - see MarketBarAggregator)
+     * @param startTimeStamp the start of the first slot as a server internal timestamp
+     * @param endTimeStamp the end of the last slot as a server internal timestamp
+     * @param granularityMillis the length of a slot
+     * @param shardCount the number of worker threads
+     * @throws InvalidArgumentException if the shard count is not positive, the time range does not hold a slot or the
+     *                                  dictionary has codes that do not fit the ring's layout
+     */
+    public ShardedBarAggregator(TickRingBuffer ring, SymbolDictionary dictionary, int startTimeStamp, int endTimeStamp, int granularityMillis, int shardCount) throws InvalidArgumentException {
+        if (shardCount < 1) {
+            throw new InvalidArgumentException("The shard count must be positive. Got "+shardCount);
+        }
+        this.ring = ring;
+        this.endTimeStamp = endTimeStamp;
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i, new MarketBarAggregator(dictionary, startTimeStamp, endTimeStamp, granularityMillis), ring.newReader(dictionary));
+        }
+    }
+
+    /**
+     * @param listener a listener to get the closed bars. Add listeners before starting.
+     */
+    public synchronized void addListener(IBarCloseListener listener) {
+        IBarCloseListener[] updated = Arrays.copyOf(listeners, listeners.length + 1);
+        updated[listeners.length] = listener;
+        listeners = updated;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * @param code a symbol code
+     * @return the aggregator of the shard that owns the code. Only safe to use from its worker or after close().
+     */
+    public MarketBarAggregator getShard(int code) {
+        return shards[code % shards.length].aggregator;
+    }
+
+    /**
+     * @param code a symbol code
+     * @return the symbol's chart (see MarketBarAggregator.getChart()). Only safe to use after close().
+     */
+    public ColumnarSymbolChart getChart(int code) {
+        return code < 0 ? null : getShard(code).getChart(code);
+    }
+
+    /**
+     * @return the number of slot boundaries passed to the listeners
+     */
+    public long getEmittedSlotCount() {
+        return emitted.get();
+    }
+
+    public long getTickCount() {
+        long count = 0;
+        for (Shard shard: shards) {
+            count += shard.ownTicks;
+        }
+        return count;
+    }
+
+    /**
+     * Starts a worker thread per shard
+     * @throws InvalidStateException if already started
+     */
+    public synchronized void start() throws InvalidStateException {
+        if (threads != null) {
+            throw new InvalidStateException("The sharded bar aggregator was already started");
+        }
+        threads = new Thread[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            threads[i] = new Thread(shards[i], "bar aggregation shard " + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * Ends the day: the workers consume everything published so far, close their last slot and stop.
+     * @throws InvalidStateException if a worker failed
+     * @throws InterruptedException if interrupted while waiting for the workers
+     */
+    public synchronized void close() throws InvalidStateException, InterruptedException {
+        closing = true;
+        if (threads != null) {
+            for (Thread thread: threads) {
+                thread.join();
+            }
+        }
+        if (failure != null) {
+            throw new InvalidStateException("A bar aggregation shard failed: " + failure, failure);
+        }
+    }
+
+    /**
+     * The barrier. Called by each shard after it copied its closed bars for its next round.
+     */
+    private void arrive(long round) {
+        if (arrived.incrementAndGet() == round * shards.length) {
+            emit();
+            emitted.set(round);
+            return;
+        }
+        int counter = 0;
+        WaitStrategy waitStrategy = ring.getWaitStrategy();
+        while (emitted.get() < round && failure == null) {
+            counter = waitStrategy.idle(counter);
+        }
+    }
+
+    private void emit() {
+        IBarCloseListener[] listeners = this.listeners;
+        int slotStart = shards[0].closedSlotStart;
+        int total = 0;
+        for (Shard shard: shards) {
+            for (int i = 0; i < shard.closedCount; i++) {
+                for (IBarCloseListener listener: listeners) {
+                    listener.onBarClose(shard.closedCodes[i], slotStart, shard.closedBars[i]);
+                }
+            }
+            total += shard.closedCount;
+        }
+        for (IBarCloseListener listener: listeners) {
+            listener.onSlotClose(slotStart, total);
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static class ShardLeftPadding {
+        protected long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    private static class ShardState extends ShardLeftPadding {
+        // hot fields, written by the shard's worker only
+        protected long round = 0;
+        protected long ownTicks = 0;
+        protected int closedCount = 0;
+        protected int closedSlotStart = 0;
+    }
+
+    /**
+     * A worker: the aggregator of one shard with its ring reader and the closed bars of its current round
+     */
+    @SuppressWarnings("unused")
+    private class Shard extends ShardState implements Runnable, ITickConsumer, IBarCloseListener {
+        protected long p9, p10, p11, p12, p13, p14, p15;
+
+        private final int index;
+        private final MarketBarAggregator aggregator;
+        private final TickRingBuffer.Reader reader;
+        private final BarPool<TimeSlotBar> pool = BarPool.timeSlotBars(64);
+        private int[] closedCodes = new int[64];
+        private TimeSlotBar[] closedBars = new TimeSlotBar[64];
+
+        private Shard(int index, MarketBarAggregator aggregator, TickRingBuffer.Reader reader) {
+            this.index = index;
+            this.aggregator = aggregator;
+            this.reader = reader;
+            aggregator.addListener(this);
+        }
+
+        @Override
+        public void run() {
+            try {
+                int counter = 0;
+                while (failure == null) {
+                    if (reader.poll(this, 256) > 0) {
+                        counter = 0;
+                    }
+                    else if (closing && reader.available() == 0) {
+                        break;
+                    }
+                    else {
+                        counter = ring.getWaitStrategy().idle(counter);
+                    }
+                }
+                if (failure == null) {
+                    aggregator.close();
+                }
+            }
+            catch (Throwable e) {
+                failure = e;
+            }
+            finally {
+                reader.close();
+            }
+        }
+
+        @Override
+        public void onTick(ITickStreamRecord record) {
+            int code = record.getSymbolCode();
+            int timeStamp = record.getTransactionTimestamp();
+            if (code % shards.length == index) {
+                ownTicks++;
+                aggregator.add(code, timeStamp, record.getPriceCents(), record.getQuantity());
+            }
+            else if (timeStamp < endTimeStamp) {
+                aggregator.advanceTo(timeStamp); // keeps the slot boundaries in step with the other shards
+            }
+        }
+
+        @Override
+        public void onBarClose(int symbolCode, int slotStartTimeStamp, ICumulativeBar bar) {
+            if (closedCount == closedBars.length) {
+                closedCodes = Arrays.copyOf(closedCodes, closedCount * 2);
+                closedBars = Arrays.copyOf(closedBars, closedCount * 2);
+            }
+            TimeSlotBar copy = pool.acquire();
+            copy.merge(bar);
+            copy.close();
+            closedCodes[closedCount] = symbolCode;
+            closedBars[closedCount++] = copy;
+        }
+
+        @Override
+        public void onSlotClose(int slotStartTimeStamp, int barCount) {
+            closedSlotStart = slotStartTimeStamp;
+            round++;
+            arrive(round);
+            pool.release(closedBars, 0, closedCount);
+            closedCount = 0;
+        }
+    }
+}
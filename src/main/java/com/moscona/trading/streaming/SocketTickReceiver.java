@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.streaming;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Receives batches of tick frames (see TickFrameBatch) from a TCP connection and publishes them into a ring buffer.
+ * The channel is non-blocking. Bytes are read into a reusable direct buffer; complete batches are published and a
+ * partial batch at the end is kept for the next read. A malformed stream cannot be resynchronized, so it closes the
+ * connection.
+ * Poll it from the ring's producer thread, either in a busy loop with poll() or with await().
+ */
+public class SocketTickReceiver extends AbstractTickReceiver {
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    private final SocketChannel channel;
+    private final ByteBuffer readBuffer;
+    private final FeedSequenceTracker tracker = new FeedSequenceTracker();
+    private Selector selector = null;
+    private boolean connected = true;
+
+    /**
+     * @param ring the ring to publish into
+     * @param channel a connected channel (for instance from ServerSocketChannel.accept())
+     * @throws IOException if the channel could not be made non-blocking
+     */
+    public SocketTickReceiver(TickRingBuffer ring, SocketChannel channel) throws IOException {
+        super(ring);
+        this.channel = channel;
+        channel.configureBlocking(false);
+        readBuffer = ByteBuffer.allocateDirect(Math.max(DEFAULT_BUFFER_SIZE, 2 * TickFrameBatch.length(0xFFFF, TickRecordCodec.WIDE)));
+    }
+
+    public FeedSequenceTracker getTracker() {
+        return tracker;
+    }
+
+    /**
+     * @return false once the upstream closed the connection or sent a malformed stream
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Reads whatever is available and publishes the complete batches, without blocking
+     * @return the number of records published
+     * @throws IOException if reading failed
+     */
+    public int poll() throws IOException {
+        if (!connected) {
+            return 0;
+        }
+        int published = 0;
+        int read;
+        while ((read = channel.read(readBuffer)) > 0) {
+            published += publishComplete();
+            if (!connected) {
+                return published; // a malformed batch closed the connection
+            }
+        }
+        if (read < 0) {
+            published += publishComplete();
+            if (connected) {
+                close();
+            }
+        }
+        return published;
+    }
+
+    private int publishComplete() throws IOException {
+        int published = 0;
+        readBuffer.flip();
+        while (readBuffer.remaining() >= TickFrameBatch.HEADER_LENGTH) {
+            int start = readBuffer.position();
+            if (!TickFrameBatch.isValidHeader(readBuffer, start)) {
+                rejected();
+                readBuffer.clear();
+                close();
+                return published;
+            }
+            if (readBuffer.remaining() < TickFrameBatch.getLength(readBuffer, start)) {
+                break;
+            }
+            published += publishBatch(readBuffer, tracker);
+        }
+        readBuffer.compact();
+        return published;
+    }
+
+    /**
+     * Waits for data to arrive and then polls
+     * @param timeoutMillis the maximum time to wait (0 waits forever)
+     * @return the number of records published
+     * @throws IOException if reading failed
+     */
+    public int await(long timeoutMillis) throws IOException {
+        if (!connected) {
+            return 0;
+        }
+        if (selector == null) {
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        }
+        if (selector.select(timeoutMillis) > 0) {
+            selector.selectedKeys().clear();
+        }
+        return poll();
+    }
+
+    public void close() throws IOException {
+        connected = false;
+        if (selector != null) {
+            selector.close();
+            selector = null;
+        }
+        channel.close();
+    }
+}
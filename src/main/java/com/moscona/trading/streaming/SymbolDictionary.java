@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.moscona.trading.streaming;
+
+import com.moscona.exceptions.InvalidArgumentException;
+import com.moscona.trading.ITickStreamRecord;
+import com.moscona.trading.excptions.MissingSymbolException;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A primitive, immutable two way dictionary between symbols and symbol codes, for use on the tick path instead of
+ * AbstractMap&lt;String,Integer&gt; and AbstractMap&lt;Integer,String&gt;, which box on every lookup.
+ * Code to symbol is a plain array lookup. Symbol to code is an open addressing table that can hash a String (using
+ * its cached hash code), any CharSequence or ASCII bytes straight out of a buffer, so none of the lookups allocate.
+ * Codes above MAX_CODE only fit the wide tick record layout (see TickRecordCodec.WIDE).
+ */
+public class SymbolDictionary {
+    /**
+     * Returned by the getCode() methods when the symbol is not in the dictionary
+     */
+    public static final int MISSING = -1;
+    public static final int MAX_CODE = Short.MAX_VALUE; // the tick stream record has a 2 byte symbol field
+    public static final int MAX_WIDE_CODE = Integer.MAX_VALUE - 8; // the wide record has a 4 byte field, but codes index arrays
+
+    private final String[] codeToSymbol;
+    private final String[] keys;
+    private final int[] codes;
+    private final int mask;
+    private final int size;
+    private volatile HashMap<String,Integer> symbolToCodeMap = null; // only for records that do not take a dictionary
+    private volatile HashMap<Integer,String> codeToSymbolMap = null;
+
+    /**
+     * @param codeToSymbol an array of symbols indexed by their code. Null entries are allowed (unused codes)
+     * @throws InvalidArgumentException if there are too many codes or a symbol appears more than once
+     */
+    public SymbolDictionary(String[] codeToSymbol) throws InvalidArgumentException {
+        if (codeToSymbol.length > MAX_WIDE_CODE) {
+            throw new InvalidArgumentException("Symbol codes must not exceed "+MAX_WIDE_CODE+". Got "+(codeToSymbol.length-1));
+        }
+        this.codeToSymbol = codeToSymbol.clone();
+
+        int count = 0;
+        for (String symbol: codeToSymbol) {
+            if (symbol != null) {
+                count++;
+            }
+        }
+        size = count;
+
+        int tableSize = Integer.highestOneBit(Math.max(4, count * 2) - 1) << 1; // power of two, at most half full
+        keys = new String[tableSize];
+        codes = new int[tableSize];
+        mask = tableSize - 1;
+
+        for (int code=0; code<codeToSymbol.length; code++) {
+            String symbol = codeToSymbol[code];
+            if (symbol == null) {
+                continue;
+            }
+            int slot = spread(symbol.hashCode()) & mask;
+            while (keys[slot] != null) {
+                if (keys[slot].equals(symbol)) {
+                    throw new InvalidArgumentException("The symbol '"+symbol+"' appears with two codes: "+codes[slot]+" and "+code);
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = symbol;
+            codes[slot] = code;
+        }
+    }
+
+    /**
+     * Builds a dictionary from a code to symbol map, such as MarketTree.getCodeToSymbolMap()
+     * @param codeToSymbolMap the map
+     * @return a new dictionary
+     * @throws InvalidArgumentException if any of the codes is out of range or a symbol appears more than once
+     */
+    public static SymbolDictionary fromMap(AbstractMap<Integer,String> codeToSymbolMap) throws InvalidArgumentException {
+        int maxCode = -1;
+        for (Integer code: codeToSymbolMap.keySet()) {
+            if (code == null || code < 0 || code > MAX_WIDE_CODE) {
+                throw new InvalidArgumentException("Symbol codes must be between 0 and "+MAX_WIDE_CODE+". Got "+code);
+            }
+            maxCode = Math.max(maxCode, code);
+        }
+        String[] symbols = new String[maxCode + 1];
+        for (Map.Entry<Integer,String> entry: codeToSymbolMap.entrySet()) {
+            symbols[entry.getKey()] = entry.getValue();
+        }
+        return new SymbolDictionary(symbols);
+    }
+
+    /**
+     * Initializes any tick stream record from a symbol through a dictionary. Records that implement
+     * IDictionaryTickStreamRecord (those of this package) translate the symbol through the dictionary themselves;
+     * other implementations of ITickStreamRecord are given maps built from the dictionary (once) and go through their
+     * map based init().
+     * @param record the record to initialize
+     * @param transactionTimestampOffset the transaction time offset in milliseconds from the Epoch in US/Eastern time zone.
+     * @param symbol the symbol to use. Must be in the dictionary
+     * @param price the price of the transaction
+     * @param quantity the number of shares traded
+     * @param dictionary the dictionary to translate between symbols and codes
+     * @return the record
+     * @throws InvalidArgumentException if any of the conversions don't work
+     * @throws MissingSymbolException if the symbol is not in the dictionary
+     */
+    public static ITickStreamRecord init(ITickStreamRecord record, long transactionTimestampOffset, String symbol,
+                                         float price, int quantity, SymbolDictionary dictionary)
+            throws InvalidArgumentException, MissingSymbolException {
+        if (record instanceof IDictionaryTickStreamRecord) {
+            return ((IDictionaryTickStreamRecord) record).init(transactionTimestampOffset, symbol, price, quantity, dictionary);
+        }
+        return record.init(transactionTimestampOffset, symbol, price, quantity, dictionary.getSymbolToCodeMap(), dictionary.getCodeToSymbolMap());
+    }
+
+    /**
+     * @return a map from symbols to codes with the content of the dictionary (built on first use, do not modify)
+     */
+    public AbstractMap<String,Integer> getSymbolToCodeMap() {
+        if (symbolToCodeMap == null) {
+            HashMap<String,Integer> map = new HashMap<String,Integer>();
+            for (int code=0; code<codeToSymbol.length; code++) {
+                if (codeToSymbol[code] != null) {
+                    map.put(codeToSymbol[code], code);
+                }
+            }
+            symbolToCodeMap = map;
+        }
+        return symbolToCodeMap;
+    }
+
+    /**
+     * @return a map from codes to symbols with the content of the dictionary (built on first use, do not modify)
+     */
+    public AbstractMap<Integer,String> getCodeToSymbolMap() {
+        if (codeToSymbolMap == null) {
+            HashMap<Integer,String> map = new HashMap<Integer,String>();
+            for (int code=0; code<codeToSymbol.length; code++) {
+                if (codeToSymbol[code] != null) {
+                    map.put(code, codeToSymbol[code]);
+                }
+            }
+            codeToSymbolMap = map;
+        }
+        return codeToSymbolMap;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @return the number of symbols in the dictionary
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the highest code that may be in use. Arrays indexed by code should be of size getMaxCode()+1
+     */
+    public int getMaxCode() {
+        return codeToSymbol.length - 1;
+    }
+
+    /**
+     * @return true if all the codes fit in the compact tick record layout
+     */
+    public boolean isCompact() {
+        return getMaxCode() <= MAX_CODE;
+    }
+
+    /**
+     * @param code a symbol code
+     * @return the symbol or null if the code is not in use
+     */
+    public String getSymbol(int code) {
+        if (code < 0 || code >= codeToSymbol.length) {
+            return null;
+        }
+        return codeToSymbol[code];
+    }
+
+    public boolean contains(String symbol) {
+        return getCode(symbol) != MISSING;
+    }
+
+    /**
+     * @param symbol the symbol
+     * @return the code of the symbol or MISSING
+     */
+    public int getCode(String symbol) {
+        int slot = spread(symbol.hashCode()) & mask;
+        String key;
+        while ((key = keys[slot]) != null) {
+            if (key == symbol || key.equals(symbol)) {
+                return codes[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return MISSING;
+    }
+
+    /**
+     * Looks up a symbol given as any char sequence (e.g. a reused StringBuilder)
+     * @param symbol the symbol
+     * @return the code of the symbol or MISSING
+     */
+    public int getCode(CharSequence symbol) {
+        if (symbol instanceof String) {
+            return getCode((String) symbol);
+        }
+        int length = symbol.length();
+        int hash = 0;
+        for (int i=0; i<length; i++) {
+            hash = 31 * hash + symbol.charAt(i);
+        }
+        int slot = spread(hash) & mask;
+        String key;
+        while ((key = keys[slot]) != null) {
+            if (key.contentEquals(symbol)) {
+                return codes[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return MISSING;
+    }
+
+    /**
+     * Looks up a symbol given as ASCII bytes
+     * @param ascii the array holding the symbol
+     * @param offset the offset of the symbol in the array
+     * @param length the length of the symbol
+     * @return the code of the symbol or MISSING
+     */
+    public int getCode(byte[] ascii, int offset, int length) {
+        int hash = 0;
+        for (int i=0; i<length; i++) {
+            hash = 31 * hash + (ascii[offset+i] & 0xff);
+        }
+        int slot = spread(hash) & mask;
+        String key;
+        while ((key = keys[slot]) != null) {
+            if (asciiEquals(key, ascii, offset, length)) {
+                return codes[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return MISSING;
+    }
+
+    /**
+     * Looks up a symbol given as ASCII bytes in a buffer (absolute access, the buffer position is not changed)
+     * @param ascii the buffer holding the symbol
+     * @param offset the offset of the symbol in the buffer
+     * @param length the length of the symbol
+     * @return the code of the symbol or MISSING
+     */
+    public int getCode(ByteBuffer ascii, int offset, int length) {
+        int hash = 0;
+        for (int i=0; i<length; i++) {
+            hash = 31 * hash + (ascii.get(offset+i) & 0xff);
+        }
+        int slot = spread(hash) & mask;
+        String key;
+        while ((key = keys[slot]) != null) {
+            if (asciiEquals(key, ascii, offset, length)) {
+                return codes[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return MISSING;
+    }
+
+    private static boolean asciiEquals(String key, byte[] ascii, int offset, int length) {
+        if (key.length() != length) {
+            return false;
+        }
+        for (int i=0; i<length; i++) {
+            if (key.charAt(i) != (ascii[offset+i] & 0xff)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean asciiEquals(String key, ByteBuffer ascii, int offset, int length) {
+        if (key.length() != length) {
+            return false;
+        }
+        for (int i=0; i<length; i++) {
+            if (key.charAt(i) != (ascii.get(offset+i) & 0xff)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,522 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.streaming;
+
+import com.moscona.exceptions.InvalidArgumentException;
+import com.moscona.exceptions.InvalidStateException;
+import com.moscona.trading.ITickStreamRecord;
+import com.moscona.trading.elements.ICumulativeBar;
+import com.moscona.trading.excptions.MissingSymbolException;
+import com.moscona.util.TimeHelper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.Arrays;
+
+/**
+ * A columnar (struct of arrays) container of ticks for historical and bulk processing. Instead of an object per tick
+ * (as with HeavyTickStreamRecord) the batch holds parallel primitive arrays of transaction timestamps, symbol codes,
+ * prices in cents and quantities - 14 bytes per tick with no per tick objects, and scans touch only the columns they
+ * need. Insertion timestamps are not kept. Symbol codes are kept in 16 bits, as in the compact record layout, so
+ * codes above SymbolDictionary.MAX_CODE are rejected.
+ * Ticks are accessed by index, either through the columns directly or through a reusable View (an ITickStreamRecord
+ * flyweight). The batch can be sorted by symbol and time, after which the ticks of a symbol are a contiguous range
+ * (see symbolRange()) that can be fed into a bar in bulk.
+ * Not thread safe.
+ */
+public class TickBatch implements ITickConsumer {
+    private int[] timestamps;
+    private short[] codes;
+    private int[] prices;
+    private int[] quantities;
+    private int size = 0;
+    private boolean sortedBySymbol = false;
+
+    public TickBatch() {
+        this(1024);
+    }
+
+    /**
+     * @param capacity the initial capacity (the batch grows as needed)
+     */
+    public TickBatch(int capacity) {
+        capacity = Math.max(16, capacity);
+        timestamps = new int[capacity];
+        codes = new short[capacity];
+        prices = new int[capacity];
+        quantities = new int[capacity];
+    }
+
+    /**
+     * Loads all the ticks of a source (a journal, an archive...) into a new batch
+     * @param source the source
+     * @return the batch
+     * @throws IOException if reading the source failed
+     * @throws InvalidStateException if the source is not valid
+     */
+    public static TickBatch load(ITickSource source) throws IOException, InvalidStateException {
+        TickBatch batch = new TickBatch();
+        batch.addAll(source);
+        return batch;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return timestamps.length;
+    }
+
+    public void clear() {
+        size = 0;
+        sortedBySymbol = false;
+    }
+
+    /**
+     * Makes sure the batch can hold a number of ticks without growing
+     * @param capacity the capacity needed
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity > timestamps.length) {
+            int newCapacity = Math.max(capacity, timestamps.length + (timestamps.length >> 1));
+            timestamps = Arrays.copyOf(timestamps, newCapacity);
+            codes = Arrays.copyOf(codes, newCapacity);
+            prices = Arrays.copyOf(prices, newCapacity);
+            quantities = Arrays.copyOf(quantities, newCapacity);
+        }
+    }
+
+    /**
+     * Appends a tick
+     * @param transactionTimestamp the transaction timestamp
+     * @param symbolCode the symbol code
+     * @param priceCents the price in cents
+     * @param quantity the quantity
+     * @throws IllegalArgumentException if the symbol code does not fit 16 bits
+     */
+    public void add(int transactionTimestamp, int symbolCode, int priceCents, int quantity) {
+        checkSymbolCode(symbolCode);
+        if (size == timestamps.length) {
+            ensureCapacity(size + 1);
+        }
+        timestamps[size] = transactionTimestamp;
+        codes[size] = (short) symbolCode;
+        prices[size] = priceCents;
+        quantities[size] = quantity;
+        size++;
+        sortedBySymbol = false;
+    }
+
+    private static void checkSymbolCode(int symbolCode) {
+        if ((short) symbolCode != symbolCode) {
+            throw new IllegalArgumentException("Symbol code "+symbolCode+" does not fit the 16 bit symbol column of a tick batch");
+        }
+    }
+
+    /**
+     * Appends a tick (so the batch can be used as the last stage of a pipeline or a replay)
+     * @param record the tick (not retained)
+     * @throws IllegalArgumentException if the symbol code does not fit 16 bits
+     */
+    @Override
+    public void onTick(ITickStreamRecord record) {
+        add(record.getTransactionTimestamp(), record.getSymbolCode(), record.getPriceCents(), record.getQuantity());
+    }
+
+    /**
+     * Appends all the ticks of a source
+     * @param source the source
+     * @return the number of ticks added
+     * @throws IOException if reading the source failed
+     * @throws InvalidStateException if the source is not valid
+     */
+    public int addAll(ITickSource source) throws IOException, InvalidStateException {
+        int before = size;
+        while (source.next()) {
+            onTick(source.getRecord());
+        }
+        return size - before;
+    }
+
+    public int getTransactionTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    public int getSymbolCode(int index) {
+        return codes[index];
+    }
+
+    public int getPriceCents(int index) {
+        return prices[index];
+    }
+
+    public int getQuantity(int index) {
+        return quantities[index];
+    }
+
+    /**
+     * The backing column of transaction timestamps, for scans. Only the first size() entries are valid and the array
+     * is replaced when the batch grows or is sorted.
+     * @return the backing array
+     */
+    public int[] getTimestampColumn() {
+        return timestamps;
+    }
+
+    /**
+     * @return the backing column of symbol codes (see getTimestampColumn())
+     */
+    public short[] getSymbolCodeColumn() {
+        return codes;
+    }
+
+    /**
+     * @return the backing column of prices in cents (see getTimestampColumn())
+     */
+    public int[] getPriceColumn() {
+        return prices;
+    }
+
+    /**
+     * @return the backing column of quantities (see getTimestampColumn())
+     */
+    public int[] getQuantityColumn() {
+        return quantities;
+    }
+
+    /**
+     * Sorts the ticks by symbol code and then by transaction timestamp. The sort is stable, so ticks of the same symbol
+     * at the same time keep their order.
+     */
+    public void sortBySymbolAndTime() {
+        sort(true);
+        sortedBySymbol = true;
+    }
+
+    /**
+     * Sorts the ticks by transaction timestamp (stable, so simultaneous ticks keep their order)
+     */
+    public void sortByTime() {
+        sort(false);
+        sortedBySymbol = false;
+    }
+
+    public boolean isSortedBySymbol() {
+        return sortedBySymbol;
+    }
+
+    private void sort(boolean bySymbol) {
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        mergeSort(order, new int[size], 0, size, bySymbol);
+
+        int[] newTimestamps = new int[timestamps.length];
+        short[] newCodes = new short[codes.length];
+        int[] newPrices = new int[prices.length];
+        int[] newQuantities = new int[quantities.length];
+        for (int i = 0; i < size; i++) {
+            int from = order[i];
+            newTimestamps[i] = timestamps[from];
+            newCodes[i] = codes[from];
+            newPrices[i] = prices[from];
+            newQuantities[i] = quantities[from];
+        }
+        timestamps = newTimestamps;
+        codes = newCodes;
+        prices = newPrices;
+        quantities = newQuantities;
+    }
+
+    private boolean before(int a, int b, boolean bySymbol) {
+        if (bySymbol && codes[a] != codes[b]) {
+            return codes[a] < codes[b];
+        }
+        return timestamps[a] < timestamps[b];
+    }
+
+    private void mergeSort(int[] order, int[] tmp, int from, int to, boolean bySymbol) {
+        if (to - from < 2) {
+            return;
+        }
+        if (to - from <= 16) {
+            // insertion sort for short runs (stable)
+            for (int i = from + 1; i < to; i++) {
+                int moving = order[i];
+                int j = i;
+                while (j > from && before(moving, order[j - 1], bySymbol)) {
+                    order[j] = order[j - 1];
+                    j--;
+                }
+                order[j] = moving;
+            }
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(order, tmp, from, middle, bySymbol);
+        mergeSort(order, tmp, middle, to, bySymbol);
+        if (!before(order[middle], order[middle - 1], bySymbol)) {
+            return; // already in order
+        }
+        System.arraycopy(order, from, tmp, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < middle && !before(tmp[right], tmp[left], bySymbol))) {
+                order[i] = tmp[left++];
+            }
+            else {
+                order[i] = tmp[right++];
+            }
+        }
+    }
+
+    /**
+     * Finds the ticks of a symbol in a batch sorted by symbol
+     * @param symbolCode the symbol code
+     * @return {from, to} - the range of indexes (to is exclusive). Empty if there are no ticks for the symbol.
+     * @throws InvalidStateException if the batch is not sorted by symbol
+     */
+    public int[] symbolRange(int symbolCode) throws InvalidStateException {
+        if (!sortedBySymbol) {
+            throw new InvalidStateException("The batch must be sorted by symbol to look up symbol ranges");
+        }
+        int from = lowerBound(symbolCode);
+        return new int[] {from, lowerBound(symbolCode + 1)};
+    }
+
+    private int lowerBound(int symbolCode) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (codes[mid] < symbolCode) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Feeds a range of ticks into a single bar, using the bar's integer cents path
+     * @param bar the bar
+     * @param from the first index
+     * @param to the index after the last one
+     */
+    public void feed(ICumulativeBar bar, int from, int to) {
+        for (int i = from; i < to; i++) {
+            bar.add(prices[i], quantities[i]);
+        }
+    }
+
+    /**
+     * Feeds every tick into the bar of its symbol
+     * @param barsByCode bars indexed by symbol code. Ticks of symbols with no bar (null or out of range) are skipped.
+     */
+    public void feed(ICumulativeBar[] barsByCode) {
+        for (int i = 0; i < size; i++) {
+            int code = codes[i];
+            if (code >= 0 && code < barsByCode.length) {
+                ICumulativeBar bar = barsByCode[code];
+                if (bar != null) {
+                    bar.add(prices[i], quantities[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Passes a range of ticks to a consumer through a reusable view
+     * @param consumer the consumer
+     * @param from the first index
+     * @param to the index after the last one
+     * @throws InvalidArgumentException if the consumer rejected a tick
+     */
+    public void feed(ITickConsumer consumer, int from, int to) throws InvalidArgumentException {
+        View view = new View();
+        for (int i = from; i < to; i++) {
+            consumer.onTick(view.moveTo(i));
+        }
+    }
+
+    /**
+     * @param dictionary the dictionary used to translate symbol codes (may be null)
+     * @return a new view over the batch, pointing at the first row
+     */
+    public View newView(SymbolDictionary dictionary) {
+        return new View(dictionary);
+    }
+
+    /**
+     * A flyweight ITickStreamRecord over one row of the batch. The insertion timestamp is always 0.
+     */
+    public class View implements IDictionaryTickStreamRecord {
+        private int index = 0;
+        private SymbolDictionary dictionary = null;
+        private AbstractMap<Integer,String> codeToSymbol = null;
+        private final byte[] scratch = new byte[TickStreamRecord.RECORD_LENGTH];
+        private final FlyweightTickStreamRecord codec = new FlyweightTickStreamRecord().wrap(ByteBuffer.wrap(scratch), 0);
+
+        public View() {
+
+        }
+
+        /**
+         * @param dictionary the dictionary used to translate symbol codes
+         */
+        public View(SymbolDictionary dictionary) {
+            this.dictionary = dictionary;
+        }
+
+        /**
+         * Points the view at a row
+         * @param index the row
+         * @return this
+         */
+        public View moveTo(int index) {
+            this.index = index;
+            return this;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        @Override
+        @SuppressWarnings({"MethodWithTooManyParameters"})
+        public ITickStreamRecord init(long transactionTimestampOffset, String symbol, float price, int quantity,
+                                      AbstractMap<String, Integer> forwardMap, AbstractMap<Integer, String> backwardMap)
+                throws InvalidArgumentException, MissingSymbolException {
+            Integer code = forwardMap.get(symbol);
+            if (code == null) {
+                throw new MissingSymbolException(symbol, "", "No code found for symbol '"+symbol+"'");
+            }
+            codeToSymbol = backwardMap;
+            dictionary = null;
+            return init(TimeHelper.convertToInternalTs(transactionTimestampOffset), code, Math.round(price * 100.0f), quantity);
+        }
+
+        @Override
+        public ITickStreamRecord init(long transactionTimestampOffset, String symbol, float price, int quantity,
+                                      SymbolDictionary dictionary) throws InvalidArgumentException, MissingSymbolException {
+            int code = dictionary.getCode(symbol);
+            if (code == SymbolDictionary.MISSING) {
+                throw new MissingSymbolException(symbol, "", "No code found for symbol '"+symbol+"'");
+            }
+            this.dictionary = dictionary;
+            return init(TimeHelper.convertToInternalTs(transactionTimestampOffset), code, Math.round(price * 100.0f), quantity);
+        }
+
+        /**
+         * Overwrites the row the view points at
+         */
+        @Override
+        public ITickStreamRecord init(int internalTimestamp, int symbolCode, int priceCents, int quantity) {
+            checkSymbolCode(symbolCode);
+            timestamps[index] = internalTimestamp;
+            codes[index] = (short) symbolCode;
+            prices[index] = priceCents;
+            quantities[index] = quantity;
+            sortedBySymbol = false;
+            return this;
+        }
+
+        /**
+         * @return the row encoded in the TickStreamRecord layout, in a scratch array owned by the view
+         */
+        @Override
+        public byte[] toBytes() {
+            try {
+                codec.write(getTransactionTimestamp(), getSymbolCode(), getPriceCents(), getQuantity());
+            }
+            catch (InvalidArgumentException e) {
+                throw new IllegalStateException("A 16 bit symbol code did not fit the compact layout", e); // cannot happen
+            }
+            return scratch;
+        }
+
+        @Override
+        public ITickStreamRecord replaceBytes(byte[] newValue) throws InvalidArgumentException {
+            codec.replaceBytes(newValue);
+            return init(codec.getTransactionTimestamp(), codec.getSymbolCode(), codec.getPriceCents(), codec.getQuantity());
+        }
+
+        @Override
+        public int getTransactionTimestamp() {
+            return timestamps[index];
+        }
+
+        @Override
+        public String getSymbol() {
+            if (dictionary != null) {
+                return dictionary.getSymbol(getSymbolCode());
+            }
+            return codeToSymbol == null ? null : codeToSymbol.get(getSymbolCode());
+        }
+
+        @Override
+        public int getSymbolCode() {
+            return codes[index];
+        }
+
+        @Override
+        public float getPrice() {
+            return ((float) prices[index]) / 100;
+        }
+
+        @Override
+        public int getPriceCents() {
+            return prices[index];
+        }
+
+        @Override
+        public int getQuantity() {
+            return quantities[index];
+        }
+
+        @Override
+        public int getInsertionTimestamp() {
+            return 0;
+        }
+
+        /**
+         * Insertion timestamps are not kept in a batch - this does nothing
+         */
+        @Override
+        public void setInsertionTimestamp() {
+            // not kept
+        }
+
+        @Override
+        public boolean equalsWithoutInsertionTs(ITickStreamRecord other) {
+            return getTransactionTimestamp() == other.getTransactionTimestamp() &&
+                    getSymbolCode() == other.getSymbolCode() &&
+                    getPriceCents() == other.getPriceCents() &&
+                    getQuantity() == other.getQuantity();
+        }
+
+        public String toString() {
+            return "Symbol="+getSymbol()+" price="+getPrice()+" quantity="+getQuantity()+" trans.ts="+getTransactionTimestamp()+" insertion.ts="+getInsertionTimestamp();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.streaming;
+
+import com.moscona.exceptions.InvalidArgumentException;
+import com.moscona.trading.AbstractStatsPublisher;
+import com.moscona.trading.ITickStreamRecord;
+import com.moscona.util.monitoring.stats.IStatsService;
+
+import java.util.Arrays;
+
+/**
+ * A pipeline stage that drops duplicate ticks (for instance when both a primary and a backup feed are consumed) before
+ * passing the rest on to the next stage, typically bar aggregation. Two ticks are duplicates if the 14 bytes other
+ * than the insertion timestamp are identical: transaction timestamp, symbol code, price in cents and quantity - the
+ * same equality as equalsWithoutInsertionTs().
+ * Each symbol code has its own hash window of the recently seen ticks, limited by count (the last N ticks of the
+ * symbol) and optionally by time (ticks no more than M milliseconds older than the symbol's latest tick). Lookups and inserts
+ * probe a bounded number of slots, so each tick costs O(1) and no allocation (except for creating a symbol's window
+ * the first time the symbol is seen). The tables are sized at 4 slots per windowed tick; if the probed slots are
+ * all taken by live entries the oldest one is evicted early, so a saturated window may rarely miss a duplicate but
+ * never drops a tick that is not an exact duplicate.
+ * Not thread safe - a stage belongs to the thread that feeds it.
+ */
+public class TickDeduplicator extends AbstractStatsPublisher implements ITickConsumer {
+    public static final int DEFAULT_WINDOW_TICKS = 64;
+    public static final String DEFAULT_STAT_PREFIX = "tick dedup";
+    private static final int MAX_PROBES = 8;
+
+    private final ITickConsumer next;
+    private final int windowTicks;
+    private final int windowMillis;
+    private final int tableSize;
+    private Window[] windows = new Window[SymbolDictionary.MAX_CODE + 1]; // grown for wide symbol codes
+    private long tickCount = 0;
+    private long duplicateCount = 0;
+
+    /**
+     * @param next the next stage, which gets all the ticks that are not duplicates
+     * @param windowTicks the number of recent ticks of each symbol to remember
+     * @param windowMillis if positive, also forget ticks older than this many milliseconds of transaction time
+     * @throws InvalidArgumentException if there is no next stage or the window is empty
+     */
+    public TickDeduplicator(ITickConsumer next, int windowTicks, int windowMillis) throws InvalidArgumentException {
+        super(DEFAULT_STAT_PREFIX);
+        if (next == null) {
+            throw new InvalidArgumentException("The de-duplicator requires a next stage");
+        }
+        if (windowTicks < 1) {
+            throw new InvalidArgumentException("The window must hold at least one tick. Got "+windowTicks);
+        }
+        this.next = next;
+        this.windowTicks = windowTicks;
+        this.windowMillis = windowMillis;
+        this.tableSize = Integer.highestOneBit(Math.max(4, windowTicks * 4 - 1)) << 1;
+    }
+
+    public TickDeduplicator(ITickConsumer next) throws InvalidArgumentException {
+        this(next, DEFAULT_WINDOW_TICKS, 0);
+    }
+
+    public int getWindowTicks() {
+        return windowTicks;
+    }
+
+    public int getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * @return the number of ticks seen (including duplicates)
+     */
+    public long getTickCount() {
+        return tickCount;
+    }
+
+    /**
+     * @return the number of duplicate ticks dropped
+     */
+    public long getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    @Override
+    public void onTick(ITickStreamRecord record) throws InvalidArgumentException {
+        if (isNew(record.getSymbolCode(), record.getTransactionTimestamp(), record.getPriceCents(), record.getQuantity())) {
+            next.onTick(record);
+        }
+    }
+
+    /**
+     * Checks a tick against the window of its symbol and remembers it
+     * @param symbolCode the symbol code
+     * @param transactionTimestamp the transaction timestamp
+     * @param priceCents the price in cents
+     * @param quantity the quantity
+     * @return false if the tick is a duplicate of a tick in the window
+     * @throws InvalidArgumentException if the symbol code is out of range
+     */
+    public boolean isNew(int symbolCode, int transactionTimestamp, int priceCents, int quantity) throws InvalidArgumentException {
+        if (symbolCode < 0) {
+            throw new InvalidArgumentException("Symbol code out of range: "+symbolCode);
+        }
+        if (symbolCode >= windows.length) {
+            windows = Arrays.copyOf(windows, Math.max(symbolCode + 1, windows.length * 2));
+        }
+        tickCount++;
+        Window window = windows[symbolCode];
+        if (window == null) {
+            window = new Window(tableSize);
+            windows[symbolCode] = window;
+        }
+        if (window.checkAndAdd(transactionTimestamp, priceCents, quantity)) {
+            return true;
+        }
+        duplicateCount++;
+        return false;
+    }
+
+    /**
+     * Publishes the tick and duplicate counts
+     */
+    @Override
+    protected void publishStats(IStatsService stats, String prefix) {
+        stats.setStat(prefix + " ticks", tickCount);
+        stats.setStat(prefix + " duplicates", duplicateCount);
+    }
+
+    private static int hash(int ts, int cents, int quantity) {
+        int h = ts * 0x9E3779B1 ^ cents * 0x85EBCA6B ^ quantity * 0xC2B2AE35;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * The open addressing hash window of one symbol. A slot is live if its tick is one of the last windowTicks ticks
+     * of the symbol (and not too old when there is a time window).
+     */
+    private class Window {
+        private final int mask;
+        private final int[] sequences; // 0 is an empty slot
+        private final int[] timestamps;
+        private final int[] prices;
+        private final int[] quantities;
+        private int sequence = 0; // ticks seen for the symbol
+        private int latest = Integer.MIN_VALUE; // the latest transaction timestamp seen for the symbol
+
+        Window(int size) {
+            mask = size - 1;
+            sequences = new int[size];
+            timestamps = new int[size];
+            prices = new int[size];
+            quantities = new int[size];
+        }
+
+        private boolean isLive(int slot, int now) {
+            int s = sequences[slot];
+            return s != 0 && s > sequence - windowTicks &&
+                    (windowMillis <= 0 || (long) timestamps[slot] >= (long) now - windowMillis);
+        }
+
+        boolean checkAndAdd(int ts, int cents, int quantity) {
+            if (ts > latest) {
+                latest = ts;
+            }
+            int start = hash(ts, cents, quantity) & mask;
+            int free = -1;
+            int oldest = start;
+            for (int i = 0; i < MAX_PROBES; i++) {
+                int slot = (start + i) & mask;
+                if (isLive(slot, latest)) {
+                    if (timestamps[slot] == ts && prices[slot] == cents && quantities[slot] == quantity) {
+                        return false;
+                    }
+                    if (sequences[slot] < sequences[oldest]) {
+                        oldest = slot;
+                    }
+                }
+                else if (free < 0) {
+                    free = slot;
+                }
+            }
+            int slot = free >= 0 ? free : oldest;
+            sequences[slot] = ++sequence;
+            timestamps[slot] = ts;
+            prices[slot] = cents;
+            quantities[slot] = quantity;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.streaming;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The wire format of batched tick frames sent by an upstream collector to the tick receivers. A batch is a 16 byte
+ * header followed by the raw records, packed in one record layout (see TickRecordCodec). A datagram carries exactly
+ * one batch; a stream carries batches back to back, and may mix layouts from batch to batch.
+ * Header layout (big endian):
+ * <pre>
+ *     0  int   magic
+ *     4  short version: the record layout version (1 for the compact TickStreamRecord layout, 2 for the wide layout)
+ *     6  short record count
+ *     8  long  sequence number of the first record (per sender, starting at 0)
+ * </pre>
+ */
+public class TickFrameBatch {
+    public static final int MAGIC = 0x544B4642; // "TKFB"
+    public static final short VERSION = 1;
+    public static final int HEADER_LENGTH = 16;
+    /** the largest UDP payload */
+    public static final int MAX_DATAGRAM_LENGTH = 65507;
+    /** the largest batch of compact records that fits in a single UDP datagram */
+    public static final int MAX_DATAGRAM_RECORDS = maxDatagramRecords(TickRecordCodec.COMPACT);
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int COUNT_OFFSET = 6;
+    private static final int SEQUENCE_OFFSET = 8;
+
+    private TickFrameBatch() {
+
+    }
+
+    /**
+     * Writes the header of a batch of compact records
+     * @param buffer the buffer
+     * @param offset the offset of the header in the buffer
+     * @param count the number of records in the batch
+     * @param firstSequence the sequence number of the first record
+     */
+    public static void putHeader(ByteBuffer buffer, int offset, int count, long firstSequence) {
+        putHeader(buffer, offset, TickRecordCodec.COMPACT, count, firstSequence);
+    }
+
+    /**
+     * Writes a batch header
+     * @param buffer the buffer
+     * @param offset the offset of the header in the buffer
+     * @param codec the layout of the records in the batch
+     * @param count the number of records in the batch
+     * @param firstSequence the sequence number of the first record
+     */
+    public static void putHeader(ByteBuffer buffer, int offset, TickRecordCodec codec, int count, long firstSequence) {
+        buffer.putInt(offset + MAGIC_OFFSET, MAGIC);
+        buffer.putShort(offset + VERSION_OFFSET, (short) codec.getVersion());
+        buffer.putShort(offset + COUNT_OFFSET, (short) count);
+        buffer.putLong(offset + SEQUENCE_OFFSET, firstSequence);
+    }
+
+    /**
+     * @param buffer the buffer
+     * @param offset the offset of a header in the buffer
+     * @return true if there is a valid header at the offset
+     */
+    public static boolean isValidHeader(ByteBuffer buffer, int offset) {
+        return buffer.getInt(offset + MAGIC_OFFSET) == MAGIC && getCodec(buffer, offset) != null;
+    }
+
+    /**
+     * @param buffer the buffer
+     * @param offset the offset of a header in the buffer
+     * @return the layout of the records in the batch, or null if the version is unknown
+     */
+    public static TickRecordCodec getCodec(ByteBuffer buffer, int offset) {
+        switch (buffer.getShort(offset + VERSION_OFFSET)) {
+            case CompactTickRecordCodec.VERSION:
+                return TickRecordCodec.COMPACT;
+            case WideTickRecordCodec.VERSION:
+                return TickRecordCodec.WIDE;
+            default:
+                return null;
+        }
+    }
+
+    public static int getCount(ByteBuffer buffer, int offset) {
+        return buffer.getShort(offset + COUNT_OFFSET) & 0xFFFF;
+    }
+
+    public static long getFirstSequence(ByteBuffer buffer, int offset) {
+        return buffer.getLong(offset + SEQUENCE_OFFSET);
+    }
+
+    /**
+     * @param count a number of records
+     * @return the length in bytes of a batch with that many compact records
+     */
+    public static int length(int count) {
+        return length(count, TickRecordCodec.COMPACT);
+    }
+
+    /**
+     * @param count a number of records
+     * @param codec the layout of the records
+     * @return the length in bytes of a batch with that many records
+     */
+    public static int length(int count, TickRecordCodec codec) {
+        return HEADER_LENGTH + count * codec.getRecordLength();
+    }
+
+    /**
+     * @param buffer the buffer
+     * @param offset the offset of a valid header in the buffer
+     * @return the length in bytes of the whole batch
+     */
+    public static int getLength(ByteBuffer buffer, int offset) {
+        return length(getCount(buffer, offset), getCodec(buffer, offset));
+    }
+
+    /**
+     * @param codec a record layout
+     * @return the largest batch of records in that layout that fits in a single UDP datagram
+     */
+    public static int maxDatagramRecords(TickRecordCodec codec) {
+        return (MAX_DATAGRAM_LENGTH - HEADER_LENGTH) / codec.getRecordLength();
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.streaming;
+
+import com.moscona.exceptions.InvalidArgumentException;
+import com.moscona.trading.ITickStreamRecord;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Sends batches of tick frames (see TickFrameBatch) over UDP or TCP. This is the upstream side of the tick receivers,
+ * used as a loopback harness to exercise them locally (and as a reference for the collector's side of the protocol).
+ * Records are accumulated until the batch is full or flush() is called. They are sent in the sender's record layout
+ * (compact unless given otherwise) and converted if needed. Not thread safe.
+ */
+public class TickFrameSender {
+    private final WritableByteChannel channel;
+    private final NetworkChannel networkChannel;
+    private final ByteBuffer batch;
+    private final TickRecordCodec codec;
+    private final int maxRecords;
+    private int count = 0;
+    private long nextSequence = 0;
+
+    private <T extends WritableByteChannel & NetworkChannel> TickFrameSender(T channel, int maxRecords, TickRecordCodec codec) {
+        this.channel = channel;
+        this.networkChannel = channel;
+        this.codec = codec;
+        this.maxRecords = maxRecords;
+        this.batch = ByteBuffer.allocateDirect(TickFrameBatch.length(maxRecords, codec));
+    }
+
+    /**
+     * @param target the address of a DatagramTickReceiver
+     * @param maxRecords the maximum number of records per datagram (at most TickFrameBatch.MAX_DATAGRAM_RECORDS)
+     * @return a sender over a connected datagram channel
+     * @throws IOException if the channel could not be opened
+     */
+    public static TickFrameSender datagram(SocketAddress target, int maxRecords) throws IOException {
+        return datagram(target, maxRecords, TickRecordCodec.COMPACT);
+    }
+
+    /**
+     * @param target the address of a DatagramTickReceiver
+     * @param maxRecords the maximum number of records per datagram (at most TickFrameBatch.maxDatagramRecords(codec))
+     * @param codec the record layout to send
+     * @return a sender over a connected datagram channel
+     * @throws IOException if the channel could not be opened
+     */
+    public static TickFrameSender datagram(SocketAddress target, int maxRecords, TickRecordCodec codec) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.connect(target);
+        return new TickFrameSender(channel, Math.max(1, Math.min(maxRecords, TickFrameBatch.maxDatagramRecords(codec))), codec);
+    }
+
+    /**
+     * @param target the address a SocketTickReceiver's server socket listens on
+     * @param maxRecords the maximum number of records per batch (at most 65535)
+     * @return a sender over a new, blocking TCP connection
+     * @throws IOException if the connection failed
+     */
+    public static TickFrameSender socket(SocketAddress target, int maxRecords) throws IOException {
+        return socket(target, maxRecords, TickRecordCodec.COMPACT);
+    }
+
+    /**
+     * @param target the address a SocketTickReceiver's server socket listens on
+     * @param maxRecords the maximum number of records per batch (at most 65535)
+     * @param codec the record layout to send
+     * @return a sender over a new, blocking TCP connection
+     * @throws IOException if the connection failed
+     */
+    public static TickFrameSender socket(SocketAddress target, int maxRecords, TickRecordCodec codec) throws IOException {
+        SocketChannel channel = SocketChannel.open(target);
+        channel.socket().setTcpNoDelay(true);
+        return new TickFrameSender(channel, Math.max(1, Math.min(maxRecords, 0xFFFF)), codec);
+    }
+
+    public TickRecordCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return the local address the sender sends from
+     * @throws IOException if the address could not be determined
+     */
+    public SocketAddress getLocalAddress() throws IOException {
+        return networkChannel.getLocalAddress();
+    }
+
+    /**
+     * @return the sequence number the next record will be sent with
+     */
+    public long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * Changes the sequence number of the next record (flushes first). Useful to simulate lost or repeated batches.
+     * @param nextSequence the sequence number of the next record
+     * @throws IOException if flushing failed
+     */
+    public void setNextSequence(long nextSequence) throws IOException {
+        flush();
+        this.nextSequence = nextSequence;
+    }
+
+    /**
+     * Adds a record to the current batch, sending the batch if it is full
+     * @param record the record
+     * @throws IOException if sending failed
+     * @throws InvalidArgumentException if the sender's layout cannot hold the record's symbol code (nothing is added)
+     */
+    public void send(ITickStreamRecord record) throws IOException, InvalidArgumentException {
+        int offset = TickFrameBatch.length(count, codec);
+        if (record instanceof FlyweightTickStreamRecord) {
+            FlyweightTickStreamRecord flyweight = (FlyweightTickStreamRecord) record;
+            codec.transcode(flyweight.getCodec(), flyweight.getBuffer(), flyweight.getOffset(), batch, offset);
+        }
+        else {
+            // not all records have a backing array (see HeavyTickStreamRecord.toBytes()), so encode from the values
+            codec.write(batch, offset, record.getTransactionTimestamp(), record.getSymbolCode(), record.getPriceCents(), record.getQuantity());
+            codec.setInsertionTimestamp(batch, offset, record.getInsertionTimestamp());
+        }
+        if (++count == maxRecords) {
+            flush();
+        }
+    }
+
+    /**
+     * Sends the current batch, if it has any records
+     * @throws IOException if sending failed
+     */
+    public void flush() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        TickFrameBatch.putHeader(batch, 0, codec, count, nextSequence);
+        batch.clear();
+        batch.limit(TickFrameBatch.length(count, codec));
+        while (batch.hasRemaining()) {
+            channel.write(batch);
+        }
+        batch.clear();
+        nextSequence += count;
+        count = 0;
+    }
+
+    /**
+     * Flushes and closes the channel
+     * @throws IOException if flushing or closing failed
+     */
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+}
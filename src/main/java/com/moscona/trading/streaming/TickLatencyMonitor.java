@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.streaming;
+
+import com.moscona.trading.AbstractStatsPublisher;
+import com.moscona.trading.ITickStreamRecord;
+import com.moscona.trading.ServicesBundle;
+import com.moscona.util.monitoring.stats.IStatsService;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Measures feed lag: the gap between the transaction timestamp and the insertion timestamp of every tick, kept in an
+ * overall latency histogram and in a (coarser) histogram per symbol code. Recording does not lock or allocate, except
+ * for creating a symbol's histogram the first time the symbol is seen.
+ * Put it on a ring buffer reader (or any other tick stream). Every publish interval ticks, and whenever
+ * publishStats() is called, the overall count, p50, p99, p999 and max are published to the stats service of the
+ * services bundle, followed by the count, p50, p99 and max of every symbol with enough ticks (e.g.
+ * "tick latency IBM p99"). Symbols are named through the symbol dictionary, or by their codes if there is none.
+ * The monitor has a single writer: ticks must be recorded from one thread (e.g. the ring buffer reader it is put on).
+ * The histograms may be read, published and reset from any thread. With a publish interval the recording thread also
+ * publishes, which scans the histograms of the symbols seen so far - leave the interval at 0 and call publishStats()
+ * from a timer thread to keep publishing off the tick path.
+ */
+public class TickLatencyMonitor extends AbstractStatsPublisher implements ITickConsumer {
+    public static final String DEFAULT_STAT_PREFIX = "tick latency";
+    public static final int SYMBOL_SUB_BUCKET_BITS = 3;
+
+    private final LatencyHistogram overall = new LatencyHistogram();
+    private volatile AtomicReferenceArray<LatencyHistogram> bySymbol = new AtomicReferenceArray<LatencyHistogram>(SymbolDictionary.MAX_CODE + 1); // grown for wide symbol codes
+    private volatile int highestSymbolCode = -1; // the publishing and resetting scans stop here
+    private int publishInterval = 0;
+    private int sincePublished = 0; // only touched by the recording thread
+    private SymbolDictionary dictionary = null;
+    private long symbolStatMinTicks = 1;
+
+    public TickLatencyMonitor() {
+        super(DEFAULT_STAT_PREFIX);
+    }
+
+    /**
+     * @param servicesBundle the services bundle with the stats service to publish to
+     */
+    public TickLatencyMonitor(ServicesBundle servicesBundle) {
+        this();
+        setServicesBundle(servicesBundle);
+    }
+
+    public int getPublishInterval() {
+        return publishInterval;
+    }
+
+    /**
+     * @param publishInterval publish the stats every so many ticks, from the thread that records them (0 - the
+     *                        default - only publishes when publishStats() is called)
+     */
+    public void setPublishInterval(int publishInterval) {
+        this.publishInterval = Math.max(0, publishInterval);
+    }
+
+    public SymbolDictionary getSymbolDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * @param dictionary the dictionary used to name the per symbol stats (may be null - symbols are then named by code)
+     */
+    public void setSymbolDictionary(SymbolDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    public long getSymbolStatMinTicks() {
+        return symbolStatMinTicks;
+    }
+
+    /**
+     * @param symbolStatMinTicks only publish the stats of symbols with at least this many ticks (default 1). Raising
+     *                           it limits the number of stats, and skips percentiles of too few ticks to mean much.
+     */
+    public void setSymbolStatMinTicks(long symbolStatMinTicks) {
+        this.symbolStatMinTicks = Math.max(1, symbolStatMinTicks);
+    }
+
+    @Override
+    public void onTick(ITickStreamRecord record) {
+        record(record.getSymbolCode(), record.getInsertionTimestamp() - record.getTransactionTimestamp());
+    }
+
+    /**
+     * Records a latency. Must always be called from the same thread.
+     * @param symbolCode the symbol code (negative codes are only counted in the overall histogram)
+     * @param latency the latency in milliseconds
+     */
+    public void record(int symbolCode, int latency) {
+        overall.record(latency);
+        if (symbolCode >= 0) {
+            AtomicReferenceArray<LatencyHistogram> histograms = bySymbol;
+            if (symbolCode >= histograms.length()) {
+                histograms = grow(symbolCode);
+            }
+            LatencyHistogram histogram = histograms.get(symbolCode);
+            if (histogram == null) {
+                histogram = new LatencyHistogram(SYMBOL_SUB_BUCKET_BITS);
+                histograms.set(symbolCode, histogram);
+                if (symbolCode > highestSymbolCode) {
+                    highestSymbolCode = symbolCode;
+                }
+            }
+            histogram.record(latency);
+        }
+        if (publishInterval > 0 && ++sincePublished >= publishInterval) {
+            sincePublished = 0;
+            publishStats();
+        }
+    }
+
+    private AtomicReferenceArray<LatencyHistogram> grow(int symbolCode) {
+        AtomicReferenceArray<LatencyHistogram> histograms = bySymbol;
+        AtomicReferenceArray<LatencyHistogram> grown = new AtomicReferenceArray<LatencyHistogram>(Math.max(symbolCode + 1, histograms.length() * 2));
+        for (int i = 0; i < histograms.length(); i++) {
+            grown.set(i, histograms.get(i));
+        }
+        bySymbol = grown;
+        return grown;
+    }
+
+    /**
+     * @return the histogram of all the ticks
+     */
+    public LatencyHistogram getOverallHistogram() {
+        return overall;
+    }
+
+    /**
+     * @param symbolCode a symbol code
+     * @return the histogram of the symbol, or null if no ticks were seen for it
+     */
+    public LatencyHistogram getSymbolHistogram(int symbolCode) {
+        AtomicReferenceArray<LatencyHistogram> histograms = bySymbol;
+        if (symbolCode < 0 || symbolCode >= histograms.length()) {
+            return null;
+        }
+        return histograms.get(symbolCode);
+    }
+
+    /**
+     * Publishes the overall latency stats, then those of each symbol with at least symbolStatMinTicks ticks
+     */
+    @Override
+    protected void publishStats(IStatsService stats, String prefix) {
+        stats.setStat(prefix + " count", overall.getTotalCount());
+        stats.setStat(prefix + " p50", overall.getValueAtPercentile(50.0));
+        stats.setStat(prefix + " p99", overall.getValueAtPercentile(99.0));
+        stats.setStat(prefix + " p999", overall.getValueAtPercentile(99.9));
+        stats.setStat(prefix + " max", overall.getMaxValue());
+        stats.setStat(prefix + " negative", overall.getNegativeCount());
+        AtomicReferenceArray<LatencyHistogram> histograms = bySymbol;
+        int highest = Math.min(highestSymbolCode, histograms.length() - 1);
+        for (int code = 0; code <= highest; code++) {
+            LatencyHistogram histogram = histograms.get(code);
+            if (histogram == null || histogram.getTotalCount() < symbolStatMinTicks) {
+                continue;
+            }
+            String symbol = dictionary == null ? null : dictionary.getSymbol(code);
+            String symbolPrefix = prefix + " " + (symbol == null ? Integer.toString(code) : symbol);
+            stats.setStat(symbolPrefix + " count", histogram.getTotalCount());
+            stats.setStat(symbolPrefix + " p50", histogram.getValueAtPercentile(50.0));
+            stats.setStat(symbolPrefix + " p99", histogram.getValueAtPercentile(99.0));
+            stats.setStat(symbolPrefix + " max", histogram.getMaxValue());
+        }
+    }
+
+    /**
+     * Clears all the histograms
+     */
+    public void reset() {
+        overall.reset();
+        AtomicReferenceArray<LatencyHistogram> histograms = bySymbol;
+        int highest = Math.min(highestSymbolCode, histograms.length() - 1);
+        for (int i = 0; i <= highest; i++) {
+            LatencyHistogram histogram = histograms.get(i);
+            if (histogram != null) {
+                histogram.reset();
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.streaming;
+
+import com.moscona.exceptions.InvalidArgumentException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes tick records of one layout in place, in a (typically direct or mapped) buffer. This is what
+ * lets flyweights, ring buffers, journals and receivers handle more than one record layout:
+ * <ul>
+ *     <li>COMPACT (version 1) - the original 18 byte TickStreamRecord layout: millisecond timestamps and 16 bit
+ *     symbol codes (up to 32,767 symbols)</li>
+ *     <li>WIDE (version 2) - a 40 byte layout with a version byte, 32 bit symbol codes, microsecond timestamps and a
+ *     feed sequence number (see WideTickRecordCodec)</li>
+ * </ul>
+ * The layout of a stream of records is given by its container (a journal segment header, a frame batch header...);
+ * records do not carry it, except for the version byte of the wide layout. There are only two codecs, so calls
+ * through this class are cheap once the JIT has seen them.
+ * All accessors take absolute offsets and do not change the buffer position.
+ */
+public abstract class TickRecordCodec {
+    public static final TickRecordCodec COMPACT = new CompactTickRecordCodec();
+    public static final TickRecordCodec WIDE = new WideTickRecordCodec();
+    /** the longest record of all the layouts */
+    public static final int MAX_RECORD_LENGTH = WideTickRecordCodec.RECORD_LENGTH;
+
+    /**
+     * @param version a layout version
+     * @return the codec of the layout
+     * @throws InvalidArgumentException if there is no such layout
+     */
+    public static TickRecordCodec forVersion(int version) throws InvalidArgumentException {
+        switch (version) {
+            case CompactTickRecordCodec.VERSION:
+                return COMPACT;
+            case WideTickRecordCodec.VERSION:
+                return WIDE;
+            default:
+                throw new InvalidArgumentException("Unknown tick record layout version "+version);
+        }
+    }
+
+    public abstract int getVersion();
+
+    public abstract int getRecordLength();
+
+    /**
+     * @return the largest symbol code the layout can hold
+     */
+    public abstract int getMaxSymbolCode();
+
+    /**
+     * @param symbolCode a symbol code
+     * @return true if the layout can hold the code without truncating it
+     */
+    public abstract boolean canHold(int symbolCode);
+
+    /**
+     * @return the transaction time as an internal (millisecond) timestamp
+     */
+    public abstract int getTransactionTimestamp(ByteBuffer buffer, int offset);
+
+    /**
+     * @return the transaction time in microseconds since midnight (a whole number of milliseconds in the compact layout)
+     */
+    public abstract long getTransactionMicros(ByteBuffer buffer, int offset);
+
+    public abstract int getSymbolCode(ByteBuffer buffer, int offset);
+
+    public abstract int getPriceCents(ByteBuffer buffer, int offset);
+
+    public abstract int getQuantity(ByteBuffer buffer, int offset);
+
+    /**
+     * @return the insertion time as an internal (millisecond) timestamp
+     */
+    public abstract int getInsertionTimestamp(ByteBuffer buffer, int offset);
+
+    /**
+     * @return the feed sequence number (always 0 in the compact layout)
+     */
+    public abstract long getSequence(ByteBuffer buffer, int offset);
+
+    /**
+     * @param internalTimestamp the insertion time as an internal (millisecond) timestamp
+     */
+    public abstract void setInsertionTimestamp(ByteBuffer buffer, int offset, int internalTimestamp);
+
+    /**
+     * Writes a whole record. The insertion timestamp is cleared.
+     * @param buffer the buffer
+     * @param offset the offset of the record
+     * @param transactionMicros the transaction time in microseconds since midnight (truncated to milliseconds by
+     *                          the compact layout)
+     * @param symbolCode the symbol code
+     * @param priceCents the price in cents
+     * @param quantity the quantity
+     * @param sequence the feed sequence number (ignored by the compact layout)
+     * @throws InvalidArgumentException if the layout cannot hold the symbol code (see getMaxSymbolCode())
+     */
+    public abstract void write(ByteBuffer buffer, int offset, long transactionMicros, int symbolCode, int priceCents,
+                               int quantity, long sequence) throws InvalidArgumentException;
+
+    /**
+     * Writes a whole record from an internal (millisecond) timestamp, with no sequence number. The insertion timestamp
+     * is cleared.
+     * @throws InvalidArgumentException if the layout cannot hold the symbol code (see getMaxSymbolCode())
+     */
+    public void write(ByteBuffer buffer, int offset, int internalTimestamp, int symbolCode, int priceCents, int quantity) throws InvalidArgumentException {
+        write(buffer, offset, internalTimestamp * 1000L, symbolCode, priceCents, quantity, 0L);
+    }
+
+    /**
+     * Copies a raw record of this layout between buffers
+     */
+    public void copy(ByteBuffer from, int fromOffset, ByteBuffer to, int toOffset) {
+        int length = getRecordLength();
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            to.putLong(toOffset + i, from.getLong(fromOffset + i));
+        }
+        for (; i < length; i++) {
+            to.put(toOffset + i, from.get(fromOffset + i));
+        }
+    }
+
+    /**
+     * Writes a record of this layout from a record in another (or the same) layout
+     * @param fromCodec the layout of the source record
+     * @param from the source buffer
+     * @param fromOffset the offset of the source record
+     * @param to the target buffer
+     * @param toOffset the offset of the target record
+     * @throws InvalidArgumentException if this layout cannot hold the symbol code of the source record (a wide record
+     * converted to the compact layout)
+     */
+    public void transcode(TickRecordCodec fromCodec, ByteBuffer from, int fromOffset, ByteBuffer to, int toOffset) throws InvalidArgumentException {
+        if (fromCodec == this) {
+            copy(from, fromOffset, to, toOffset);
+            return;
+        }
+        write(to, toOffset, fromCodec.getTransactionMicros(from, fromOffset), fromCodec.getSymbolCode(from, fromOffset),
+                fromCodec.getPriceCents(from, fromOffset), fromCodec.getQuantity(from, fromOffset),
+                fromCodec.getSequence(from, fromOffset));
+        setInsertionTimestamp(to, toOffset, fromCodec.getInsertionTimestamp(from, fromOffset));
+    }
+
+    /**
+     * Checks that a dictionary's codes all fit this layout, for containers of this layout that are paired with one
+     * @param dictionary the dictionary (null is accepted)
+     * @throws InvalidArgumentException if the dictionary has codes above getMaxSymbolCode()
+     */
+    public void checkDictionary(SymbolDictionary dictionary) throws InvalidArgumentException {
+        if (dictionary != null && dictionary.getMaxCode() > getMaxSymbolCode()) {
+            throw new InvalidArgumentException("The dictionary has symbol codes up to "+dictionary.getMaxCode()+", which do not fit the "+this+" layout (up to "+getMaxSymbolCode()+")");
+        }
+    }
+
+    public String toString() {
+        return getClass().getSimpleName() + " v" + getVersion() + " (" + getRecordLength() + " bytes)";
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.streaming;
+
+import com.moscona.exceptions.InvalidArgumentException;
+import com.moscona.trading.AbstractStatsPublisher;
+import com.moscona.trading.ITickStreamRecord;
+import com.moscona.util.monitoring.stats.IStatsService;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A pipeline stage that puts the ticks of one feed back in transaction time order before they reach bar aggregation,
+ * which cannot take a tick once its bar is closed and gets a wrong open or close from slightly late ticks.
+ * Ticks are held back until the watermark - the latest transaction timestamp seen minus the allowed lateness - passes
+ * them, and are then passed on in timestamp order (ticks with the same timestamp keep their arrival order).
+ * <ul>
+ *     <li>A tick that arrives out of order but within the lateness is reordered and counted as late</li>
+ *     <li>A tick older than the last tick passed on can no longer be put in order. It is dropped and counted.</li>
+ *     <li>If all the slots are in use, the oldest held tick is passed on early to make room and counted as an
+ *     overflow (the effective lateness shrinks during bursts rather than losing ticks)</li>
+ * </ul>
+ * The held ticks are copied into preallocated slots of a direct buffer (in the record layout given by a
+ * TickRecordCodec) and ordered by a binary heap of slot numbers, so nothing is allocated per tick. The next stage gets
+ * a flyweight over the slot, valid only for the duration of the call.
+ * Feeds that go quiet should call advanceTo() (e.g. from a timer, with the current time) so that their last ticks are
+ * released, and flush() at the end of the day.
+ * Not thread safe - a stage belongs to the thread that feeds it.
+ */
+public class TickReorderBuffer extends AbstractStatsPublisher implements ITickConsumer {
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final String DEFAULT_STAT_PREFIX = "tick reorder";
+
+    private final ITickConsumer next;
+    private final int capacity;
+    private final int latenessMillis;
+    private final TickRecordCodec codec;
+    private final int recordLength;
+    private final ByteBuffer slots;
+    private final FlyweightTickStreamRecord out;
+    private final int[] timestamps;     // by slot
+    private final long[] arrivals;      // by slot - breaks timestamp ties in arrival order
+    private final int[] heap;           // slot numbers, a min heap on (timestamp, arrival)
+    private final int[] free;           // a stack of free slot numbers
+    private int size = 0;
+    private int freeCount;
+    private long arrival = 0;
+    private int maxTimestamp = Integer.MIN_VALUE;
+    private int lastEmitted = Integer.MIN_VALUE;
+    private long tickCount = 0;
+    private long lateCount = 0;
+    private long droppedCount = 0;
+    private long overflowCount = 0;
+
+    /**
+     * @param next the next stage, which gets the ticks in transaction time order
+     * @param capacity the maximum number of ticks held back
+     * @param latenessMillis how late (in milliseconds of transaction time) a tick may arrive and still be put in order
+     * @param codec the record layout of the slots
+     * @throws InvalidArgumentException if there is no next stage or the capacity or lateness are invalid
+     */
+    public TickReorderBuffer(ITickConsumer next, int capacity, int latenessMillis, TickRecordCodec codec) throws InvalidArgumentException {
+        super(DEFAULT_STAT_PREFIX);
+        if (next == null) {
+            throw new InvalidArgumentException("The reorder buffer requires a next stage");
+        }
+        if (capacity < 1) {
+            throw new InvalidArgumentException("The reorder buffer must hold at least one tick. Got "+capacity);
+        }
+        if (latenessMillis < 0) {
+            throw new InvalidArgumentException("The lateness may not be negative. Got "+latenessMillis);
+        }
+        if (codec == null) {
+            throw new InvalidArgumentException("record codec may not be null");
+        }
+        this.next = next;
+        this.capacity = capacity;
+        this.latenessMillis = latenessMillis;
+        this.codec = codec;
+        this.recordLength = codec.getRecordLength();
+        this.slots = FlyweightTickStreamRecord.allocateDirect(capacity, codec);
+        this.out = new FlyweightTickStreamRecord(codec).wrap(slots, 0);
+        this.timestamps = new int[capacity];
+        this.arrivals = new long[capacity];
+        this.heap = new int[capacity];
+        this.free = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            free[i] = capacity - 1 - i;
+        }
+        this.freeCount = capacity;
+    }
+
+    /**
+     * A reorder buffer of compact records
+     * @param next the next stage, which gets the ticks in transaction time order
+     * @param capacity the maximum number of ticks held back
+     * @param latenessMillis how late (in milliseconds of transaction time) a tick may arrive and still be put in order
+     * @throws InvalidArgumentException if there is no next stage or the capacity or lateness are invalid
+     */
+    public TickReorderBuffer(ITickConsumer next, int capacity, int latenessMillis) throws InvalidArgumentException {
+        this(next, capacity, latenessMillis, TickRecordCodec.COMPACT);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getLatenessMillis() {
+        return latenessMillis;
+    }
+
+    /**
+     * @return the number of ticks held back right now
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the transaction timestamp below which ticks are released (Integer.MIN_VALUE before the first tick)
+     */
+    public int getWatermark() {
+        return maxTimestamp == Integer.MIN_VALUE ? Integer.MIN_VALUE : maxTimestamp - latenessMillis;
+    }
+
+    /**
+     * @return the number of ticks received
+     */
+    public long getTickCount() {
+        return tickCount;
+    }
+
+    /**
+     * @return the number of ticks that arrived out of order and were put back in order
+     */
+    public long getLateCount() {
+        return lateCount;
+    }
+
+    /**
+     * @return the number of ticks that arrived too late to be put in order and were dropped
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * @return the number of ticks passed on before the watermark because the buffer was full
+     */
+    public long getOverflowCount() {
+        return overflowCount;
+    }
+
+    @Override
+    public void onTick(ITickStreamRecord record) throws InvalidArgumentException {
+        if (!codec.canHold(record.getSymbolCode())) {
+            // checked before anything changes, so that insert() cannot fail half way
+            throw new InvalidArgumentException("Symbol code "+record.getSymbolCode()+" does not fit the reorder buffer's "+codec+" layout");
+        }
+        tickCount++;
+        int ts = record.getTransactionTimestamp();
+        if (ts < lastEmitted) {
+            droppedCount++;
+            return;
+        }
+        if (ts < maxTimestamp) {
+            lateCount++;
+        }
+        else {
+            maxTimestamp = ts;
+        }
+        if (freeCount == 0) {
+            overflowCount++;
+            if (ts < timestamps[heap[0]]) {
+                // older than everything held: it goes first
+                lastEmitted = ts;
+                next.onTick(record);
+                return;
+            }
+            emitFirst();
+        }
+        insert(record, ts);
+        release(getWatermark());
+    }
+
+    /**
+     * Moves the watermark as if a tick with the given transaction timestamp had arrived, releasing the ticks it passes.
+     * Lets a quiet feed release its last ticks.
+     * @param transactionTimestamp the current time as an internal timestamp
+     * @throws InvalidArgumentException if the next stage rejected a tick
+     */
+    public void advanceTo(int transactionTimestamp) throws InvalidArgumentException {
+        if (transactionTimestamp > maxTimestamp) {
+            maxTimestamp = transactionTimestamp;
+        }
+        release(getWatermark());
+    }
+
+    /**
+     * Passes on all the held ticks, in order
+     * @throws InvalidArgumentException if the next stage rejected a tick
+     */
+    public void flush() throws InvalidArgumentException {
+        while (size > 0) {
+            emitFirst();
+        }
+    }
+
+    /**
+     * Publishes the counts
+     */
+    @Override
+    protected void publishStats(IStatsService stats, String prefix) {
+        stats.setStat(prefix + " ticks", tickCount);
+        stats.setStat(prefix + " late", lateCount);
+        stats.setStat(prefix + " dropped", droppedCount);
+        stats.setStat(prefix + " overflows", overflowCount);
+    }
+
+    private void insert(ITickStreamRecord record, int ts) throws InvalidArgumentException {
+        int slot = free[--freeCount];
+        int offset = slot * recordLength;
+        if (record instanceof FlyweightTickStreamRecord) {
+            FlyweightTickStreamRecord flyweight = (FlyweightTickStreamRecord) record;
+            codec.transcode(flyweight.getCodec(), flyweight.getBuffer(), flyweight.getOffset(), slots, offset);
+        }
+        else {
+            codec.write(slots, offset, ts, record.getSymbolCode(), record.getPriceCents(), record.getQuantity());
+            codec.setInsertionTimestamp(slots, offset, record.getInsertionTimestamp());
+        }
+        timestamps[slot] = ts;
+        arrivals[slot] = arrival++;
+        // sift up
+        int i = size++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!before(slot, heap[parent])) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = slot;
+    }
+
+    private void release(int watermark) throws InvalidArgumentException {
+        while (size > 0 && timestamps[heap[0]] <= watermark) {
+            emitFirst();
+        }
+    }
+
+    private void emitFirst() throws InvalidArgumentException {
+        int slot = heap[0];
+        int last = heap[--size];
+        // sift down
+        int i = 0;
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int right = child + 1;
+            if (right < size && before(heap[right], heap[child])) {
+                child = right;
+            }
+            if (!before(heap[child], last)) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        if (size > 0) {
+            heap[i] = last;
+        }
+        lastEmitted = timestamps[slot];
+        try {
+            next.onTick(out.moveTo(slot * recordLength));
+        }
+        finally {
+            free[freeCount++] = slot;
+        }
+    }
+
+    private boolean before(int a, int b) {
+        return timestamps[a] < timestamps[b] || (timestamps[a] == timestamps[b] && arrivals[a] < arrivals[b]);
+    }
+}
@@ -0,0 +1,457 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.moscona.trading.streaming;
+
+import com.moscona.exceptions.InvalidArgumentException;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The server buffer: a preallocated ring of record slots in a direct buffer, shared between a single producer
+ * (a feed handler) and any number of readers (bar aggregation, journaling, stats...). Every reader sees every tick.
+ * Coordination is done with sequence counters only - no locks. The producer never overwrites a slot that the slowest
+ * reader has not consumed yet, and readers never see a slot before it was published.
+ * Readers access the ticks in place through a flyweight, so nothing is copied or allocated per tick.
+ * The slots hold records in one layout (see TickRecordCodec) - compact unless given otherwise.
+ *
+ * Usage (producer thread):
+ * <pre>
+ *     long sequence = ring.claim();
+ *     ring.slot(sequence).write(ts, code, cents, quantity);
+ *     ring.publish(sequence);
+ * </pre>
+ * Usage (each consumer thread):
+ * <pre>
+ *     TickRingBuffer.Reader reader = ring.newReader(); // before the producer starts
+ *     while (running) { reader.take(consumer, 256); }
+ * </pre>
+ */
+public class TickRingBuffer {
+    private final int capacity;
+    private final int mask;
+    private final ByteBuffer buffer;
+    private final TickRecordCodec codec;
+    private final int recordLength;
+    private final WaitStrategy waitStrategy;
+    private final Sequence cursor;  // the last published sequence
+    private volatile Sequence[] gatingSequences;
+
+    // owned by the single producer thread
+    private long nextSequence;
+    private long cachedGatingSequence;
+    private final FlyweightTickStreamRecord producerSlot;
+    private final ByteBuffer producerView;
+
+    /**
+     * @param capacity the number of slots. Must be a power of two.
+     * @param waitStrategy how to wait for readers (producer) or for the producer (readers)
+     * @throws InvalidArgumentException if the capacity is not a power of two
+     */
+    public TickRingBuffer(int capacity, WaitStrategy waitStrategy) throws InvalidArgumentException {
+        this(capacity, waitStrategy, TickRecordCodec.COMPACT);
+    }
+
+    /**
+     * @param capacity the number of slots. Must be a power of two.
+     * @param waitStrategy how to wait for readers (producer) or for the producer (readers)
+     * @param codec the layout of the records in the slots
+     * @throws InvalidArgumentException if the capacity is not a power of two
+     */
+    public TickRingBuffer(int capacity, WaitStrategy waitStrategy, TickRecordCodec codec) throws InvalidArgumentException {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new InvalidArgumentException("The ring buffer capacity must be a power of two. Got "+capacity);
+        }
+        if (waitStrategy == null) {
+            throw new InvalidArgumentException("wait strategy may not be null");
+        }
+        if (codec == null) {
+            throw new InvalidArgumentException("record codec may not be null");
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.codec = codec;
+        this.recordLength = codec.getRecordLength();
+        this.buffer = ByteBuffer.allocateDirect(capacity * recordLength);
+        this.waitStrategy = waitStrategy;
+        this.cursor = new Sequence();
+        this.gatingSequences = new Sequence[0];
+        this.nextSequence = 0;
+        this.cachedGatingSequence = Sequence.INITIAL_VALUE;
+        this.producerSlot = new FlyweightTickStreamRecord(codec).wrap(buffer, 0);
+        this.producerView = buffer.duplicate();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public TickRecordCodec getCodec() {
+        return codec;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    /**
+     * @return the last published sequence (-1 if nothing was published yet)
+     */
+    public long getCursor() {
+        return cursor.get();
+    }
+
+    /**
+     * The byte offset of the slot for a sequence in the shared buffer
+     * @param sequence the sequence
+     * @return the offset of the slot
+     */
+    public int offsetOf(long sequence) {
+        return ((int) sequence & mask) * recordLength;
+    }
+
+    /**
+     * Creates a new reader, positioned after the last published tick. Readers gate the producer, so every reader
+     * created must be either consumed or closed.
+     * @return a new reader
+     */
+    public Reader newReader() {
+        return newReader(null, null);
+    }
+
+    /**
+     * Creates a new reader, positioned after the last published tick.
+     * @param dictionary the dictionary used by the reader's flyweight to translate symbol codes
+     * @return a new reader
+     * @throws InvalidArgumentException if the dictionary has codes that do not fit the ring's layout
+     */
+    public Reader newReader(SymbolDictionary dictionary) throws InvalidArgumentException {
+        codec.checkDictionary(dictionary);
+        return addReader(new FlyweightTickStreamRecord(dictionary));
+    }
+
+    /**
+     * Creates a new reader, positioned after the last published tick.
+     * @param forwardMap the map to translate symbols to integers (used by the reader's flyweight)
+     * @param backwardMap the map to translate integers to symbols (used by the reader's flyweight)
+     * @return a new reader
+     */
+    public Reader newReader(AbstractMap<String,Integer> forwardMap, AbstractMap<Integer,String> backwardMap) {
+        return addReader(new FlyweightTickStreamRecord(forwardMap, backwardMap));
+    }
+
+    private synchronized Reader addReader(FlyweightTickStreamRecord flyweight) {
+        Reader reader = new Reader(flyweight);
+        Sequence[] current = gatingSequences;
+        Sequence[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = reader.sequence;
+        gatingSequences = updated;
+        return reader;
+    }
+
+    private synchronized void removeGatingSequence(Sequence sequence) {
+        ArrayList<Sequence> remaining = new ArrayList<Sequence>();
+        for (Sequence s: gatingSequences) {
+            if (s != sequence) {
+                remaining.add(s);
+            }
+        }
+        gatingSequences = remaining.toArray(new Sequence[remaining.size()]);
+    }
+
+    private long minimumGatingSequence(long defaultValue) {
+        long min = defaultValue;
+        for (Sequence s: gatingSequences) {
+            min = Math.min(min, s.get());
+        }
+        return min;
+    }
+
+    /**
+     * Claims the next slot. Producer thread only. Waits if the ring is full.
+     * @return the claimed sequence
+     */
+    public long claim() {
+        return claim(1);
+    }
+
+    /**
+     * Claims the next n slots. Producer thread only. Waits if there is not enough room in the ring.
+     * @param n the number of slots to claim (at most the capacity)
+     * @return the highest claimed sequence. The claimed range is [returned-n+1, returned]
+     * @throws IllegalArgumentException if n is not between 1 and the capacity (more would wait forever)
+     */
+    public long claim(int n) {
+        if (n < 1 || n > capacity) {
+            throw new IllegalArgumentException("Can only claim 1 to "+capacity+" slots. Got "+n);
+        }
+        long highest = nextSequence + n - 1;
+        long wrapPoint = highest - capacity;
+        if (wrapPoint > cachedGatingSequence) {
+            int counter = 0;
+            long min;
+            while (wrapPoint > (min = minimumGatingSequence(nextSequence - 1))) {
+                counter = waitStrategy.idle(counter);
+            }
+            cachedGatingSequence = min;
+        }
+        nextSequence = highest + 1;
+        return highest;
+    }
+
+    /**
+     * The producer's flyweight, pointed at the slot of a claimed sequence. Producer thread only.
+     * @param sequence a claimed sequence
+     * @return the flyweight positioned at the slot
+     */
+    public FlyweightTickStreamRecord slot(long sequence) {
+        return producerSlot.moveTo(offsetOf(sequence));
+    }
+
+    /**
+     * Makes all slots up to and including the sequence visible to readers. Producer thread only.
+     * @param sequence the highest sequence to publish
+     */
+    public void publish(long sequence) {
+        cursor.setOrdered(sequence);
+    }
+
+    /**
+     * Claims a slot, copies a raw record into it and publishes it. Producer thread only.
+     * @param frame a record in the ring's layout
+     * @return the published sequence
+     * @throws InvalidArgumentException if the frame is not a record long (nothing is claimed or published)
+     */
+    public long publish(byte[] frame) throws InvalidArgumentException {
+        if (frame.length != recordLength) {
+            throw new InvalidArgumentException("Invalid frame. Length must be "+recordLength+". Got "+frame.length);
+        }
+        long sequence = claim();
+        slot(sequence).replaceBytes(frame);
+        publish(sequence);
+        return sequence;
+    }
+
+    /**
+     * Claims a slot, copies a raw record from another buffer into it and publishes it. Producer thread only.
+     * @param source the buffer holding the record in the ring's layout
+     * @param offset the offset of the record in the source buffer
+     * @return the published sequence
+     */
+    public long publish(ByteBuffer source, int offset) {
+        long sequence = claim();
+        codec.copy(source, offset, buffer, offsetOf(sequence));
+        publish(sequence);
+        return sequence;
+    }
+
+    /**
+     * Claims a slot, copies a record in any layout into it (converting it to the ring's layout) and publishes it.
+     * Producer thread only.
+     * @param sourceCodec the layout of the source record
+     * @param source the buffer holding the record
+     * @param offset the offset of the record in the source buffer
+     * @return the published sequence
+     * @throws InvalidArgumentException if the ring's layout cannot hold the record's symbol code (nothing is published)
+     */
+    public long publish(TickRecordCodec sourceCodec, ByteBuffer source, int offset) throws InvalidArgumentException {
+        checkSymbolCode(sourceCodec, source, offset);
+        long sequence = claim();
+        codec.transcode(sourceCodec, source, offset, buffer, offsetOf(sequence));
+        publish(sequence);
+        return sequence;
+    }
+
+    /**
+     * Claims slots for a run of packed raw records, bulk copies them into the ring and publishes them. This is the
+     * path for network receivers: one memory copy per batch and no per-record work. Producer thread only.
+     * @param frames the records in the ring's layout, packed from the buffer's position. The position is advanced past the copied records.
+     * @param count the number of records to copy
+     * @param insertionTimestamp if not 0, overwrites the insertion timestamp of all the copied records
+     * @return the last published sequence
+     * @throws InvalidArgumentException if the buffer holds fewer than count records (nothing is claimed or published)
+     */
+    public long publishFrames(ByteBuffer frames, int count, int insertionTimestamp) throws InvalidArgumentException {
+        checkRemaining(frames, count, recordLength);
+        int limit = frames.limit();
+        long highest = cursor.get();
+        try {
+            while (count > 0) {
+                int batch = Math.min(count, capacity);
+                highest = claim(batch);
+                int firstSlot = (int) (highest - batch + 1) & mask;
+                int contiguous = Math.min(batch, capacity - firstSlot);
+                copyFrames(frames, firstSlot, contiguous, insertionTimestamp);
+                if (contiguous < batch) {
+                    copyFrames(frames, 0, batch - contiguous, insertionTimestamp);
+                }
+                publish(highest);
+                count -= batch;
+            }
+        }
+        finally {
+            frames.limit(limit);
+        }
+        return highest;
+    }
+
+    /**
+     * Like publishFrames(frames, count, insertionTimestamp), for records in any layout. Records in the ring's layout
+     * are bulk copied; records in another layout are converted one by one.
+     * @param frameCodec the layout of the records
+     * @param frames the records, packed from the buffer's position. The position is advanced past the copied records.
+     * @param count the number of records to copy
+     * @param insertionTimestamp if not 0, overwrites the insertion timestamp of all the copied records
+     * @return the last published sequence
+     * @throws InvalidArgumentException if the buffer holds fewer than count records, or the ring's layout cannot hold
+     * the symbol code of one of the records. The records are checked before any is published, so either all of them
+     * are published or none.
+     */
+    public long publishFrames(TickRecordCodec frameCodec, ByteBuffer frames, int count, int insertionTimestamp) throws InvalidArgumentException {
+        if (frameCodec == codec) {
+            return publishFrames(frames, count, insertionTimestamp);
+        }
+        int frameLength = frameCodec.getRecordLength();
+        checkRemaining(frames, count, frameLength);
+        int offset = frames.position();
+        if (frameCodec.getMaxSymbolCode() > codec.getMaxSymbolCode()) {
+            for (int i = 0; i < count; i++) {
+                checkSymbolCode(frameCodec, frames, offset + i * frameLength);
+            }
+        }
+        long sequence = cursor.get();
+        for (int i = 0; i < count; i++, offset += frameLength) {
+            sequence = claim();
+            int target = offsetOf(sequence);
+            codec.transcode(frameCodec, frames, offset, buffer, target);
+            if (insertionTimestamp != 0) {
+                codec.setInsertionTimestamp(buffer, target, insertionTimestamp);
+            }
+            publish(sequence);
+        }
+        frames.position(offset);
+        return sequence;
+    }
+
+    private static void checkRemaining(ByteBuffer frames, int count, int frameLength) throws InvalidArgumentException {
+        if (count < 0 || frames.remaining() < (long) count * frameLength) {
+            throw new InvalidArgumentException("Expected "+count+" records of "+frameLength+" bytes but the buffer has "+frames.remaining()+" bytes");
+        }
+    }
+
+    private void checkSymbolCode(TickRecordCodec sourceCodec, ByteBuffer source, int offset) throws InvalidArgumentException {
+        int symbolCode = sourceCodec.getSymbolCode(source, offset);
+        if (!codec.canHold(symbolCode)) {
+            throw new InvalidArgumentException("Symbol code "+symbolCode+" does not fit the ring's "+codec+" layout");
+        }
+    }
+
+    private void copyFrames(ByteBuffer frames, int firstSlot, int count, int insertionTimestamp) {
+        frames.limit(frames.position() + count * recordLength);
+        producerView.clear();
+        producerView.position(firstSlot * recordLength);
+        producerView.put(frames);
+        if (insertionTimestamp != 0) {
+            for (int i = 0; i < count; i++) {
+                codec.setInsertionTimestamp(buffer, (firstSlot + i) * recordLength, insertionTimestamp);
+            }
+        }
+    }
+
+    /**
+     * A consumer position in the ring. Each reader is meant to be used by one thread.
+     */
+    public class Reader {
+        private final Sequence sequence;
+        private final FlyweightTickStreamRecord record;
+
+        private Reader(FlyweightTickStreamRecord record) {
+            this.sequence = new Sequence(cursor.get());
+            this.record = record;
+            record.setCodec(codec).wrap(buffer, 0);
+        }
+
+        /**
+         * @return the last sequence consumed by this reader
+         */
+        public long getSequence() {
+            return sequence.get();
+        }
+
+        /**
+         * @return the number of published ticks not yet consumed by this reader
+         */
+        public long available() {
+            return cursor.get() - sequence.get();
+        }
+
+        /**
+         * Passes the published ticks that were not consumed yet to the consumer, without waiting.
+         * If the consumer throws, the failing tick is considered consumed and the exception is propagated.
+         * @param consumer the consumer
+         * @param maxBatch the maximum number of ticks to pass in this call
+         * @return the number of ticks consumed
+         * @throws InvalidArgumentException if the consumer failed
+         */
+        public int poll(ITickConsumer consumer, int maxBatch) throws InvalidArgumentException {
+            long current = sequence.get();
+            long end = Math.min(cursor.get(), current + maxBatch);
+            if (end <= current) {
+                return 0;
+            }
+            long next = current + 1;
+            try {
+                for (; next <= end; next++) {
+                    consumer.onTick(record.moveTo(offsetOf(next)));
+                }
+            }
+            finally {
+                sequence.setOrdered(Math.min(next, end));
+            }
+            return (int) (end - current);
+        }
+
+        /**
+         * Waits, using the ring's wait strategy, until at least one tick is available and then polls.
+         * @param consumer the consumer
+         * @param maxBatch the maximum number of ticks to pass in this call
+         * @return the number of ticks consumed
+         * @throws InvalidArgumentException if the consumer failed
+         * @throws InterruptedException if the thread was interrupted while waiting
+         */
+        public int take(ITickConsumer consumer, int maxBatch) throws InvalidArgumentException, InterruptedException {
+            int counter = 0;
+            while (cursor.get() <= sequence.get()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException("interrupted while waiting for ticks");
+                }
+                counter = waitStrategy.idle(counter);
+            }
+            return poll(consumer, maxBatch);
+        }
+
+        /**
+         * Stops gating the producer. The reader may not be used after this.
+         */
+        public void close() {
+            removeGatingSequence(sequence);
+        }
+    }
+}
@@ -32,7 +32,7 @@ import java.util.AbstractMap;
  * The basic record that goes into the server buffer.
  */
 @SuppressWarnings({"ConstructorWithTooManyParameters"})
-public class TickStreamRecord implements ITickStreamRecord {
+public class TickStreamRecord implements IDictionaryTickStreamRecord {
     public static final int TRANSACTION_TS_FIELD_LENGTH = 4;
     public static final int SYMBOL_FIELD_LENGTH = 2;
     public static final int PRICE_FIELD_LENGTH = 4;
@@ -51,6 +51,7 @@ public class TickStreamRecord implements ITickStreamRecord {
     private ByteBuffer record;
     private AbstractMap<String,Integer> symbolToCode;
     private AbstractMap<Integer,String> codeToSymbol;
+    private SymbolDictionary dictionary;
     private static final double HALF_TICK = 0.05;
 
 
@@ -64,6 +65,10 @@ public class TickStreamRecord implements ITickStreamRecord {
         setCodeToSymbol(backwardMap);
     }
 
+    public TickStreamRecord(SymbolDictionary dictionary) throws InvalidArgumentException {
+        setSymbolDictionary(dictionary);
+    }
+
     /**
      * @param transactionTimestampOffset - the transaction time offset in milliseconds from the Epoch in US/Eastern time zone.
      * @param symbol - the symbol to use. Must already exist in the symbol table
@@ -97,6 +102,34 @@ public class TickStreamRecord implements ITickStreamRecord {
         init(transactionTimestampOffset, symbol, price, quantity, forwardMap, backwardMap);
     }
 
+    /**
+     * @param transactionTimestampOffset - the transaction time offset in milliseconds from the Epoch in US/Eastern time zone.
+     * @param symbol - the symbol to use. Must already exist in the symbol table
+     * @param price - the price of the transaction
+     * @param quantity - the number of shares traded
+     * @param dictionary - the dictionary to translate between symbols and codes
+     * @throws com.moscona.exceptions.InvalidArgumentException if any of the conversions don't work
+     */
+    public TickStreamRecord(long transactionTimestampOffset, String symbol, float price, int quantity,
+                            SymbolDictionary dictionary)
+            throws InvalidArgumentException, MissingSymbolException {
+        init(transactionTimestampOffset, symbol, price, quantity, dictionary);
+    }
+
+    /**
+     * @param internalTimeStamp - the transaction time expressed as an internal server timestamp
+     * @param symbol - the symbol to use. Must already exist in the symbol table
+     * @param price - the price of the transaction
+     * @param quantity - the number of shares traded
+     * @param dictionary - the dictionary to translate between symbols and codes
+     * @throws com.moscona.exceptions.InvalidArgumentException if any of the conversions don't work
+     */
+    public TickStreamRecord(int internalTimeStamp, String symbol, float price, int quantity,
+                            SymbolDictionary dictionary)
+            throws InvalidArgumentException, MissingSymbolException {
+        init(internalTimeStamp, symbol, price, quantity, dictionary);
+    }
+
     /**
      * @param transactionTimestampOffset - the transaction time offset in milliseconds from the Epoch in US/Eastern time zone.
      * @param symbol - the symbol to use. Must already exist in the symbol table
@@ -137,6 +170,7 @@ public class TickStreamRecord implements ITickStreamRecord {
 
         setSymbolToCode(forwardMap);
         setCodeToSymbol(backwardMap);
+        dictionary = null; // the maps take over
 
         record.putInt(internalTimestamp); // more efficient than using ByeArrayHelper
         Integer code = forwardMap.get(symbol);
@@ -150,6 +184,75 @@ public class TickStreamRecord implements ITickStreamRecord {
         return this;
     }
 
+    /**
+     * @param transactionTimestampOffset - the transaction time offset in milliseconds from the Epoch in US/Eastern time zone.
+     * @param symbol - the symbol to use. Must already exist in the symbol table
+     * @param price - the price of the transaction
+     * @param quantity - the number of shares traded
+     * @param dictionary - the dictionary to translate between symbols and codes
+     * @throws com.moscona.exceptions.InvalidArgumentException if any of the conversions don't work
+     * @return this
+     */
+    @Override
+    public final ITickStreamRecord init(long transactionTimestampOffset, String symbol, float price, int quantity,
+                                        SymbolDictionary dictionary)
+            throws InvalidArgumentException, MissingSymbolException {
+        int internal_ts = TimeHelper.convertToInternalTs(transactionTimestampOffset);
+        return init(internal_ts, symbol, price, quantity, dictionary);
+    }
+
+    /**
+     * @param internalTimestamp - the transaction time as an internal server timestamp
+     * @param symbol - the symbol to use. Must already exist in the symbol table
+     * @param price - the price of the transaction
+     * @param quantity - the number of shares traded
+     * @param dictionary - the dictionary to translate between symbols and codes
+     * @throws com.moscona.exceptions.InvalidArgumentException if any of the conversions don't work
+     * @return this
+     */
+    public final ITickStreamRecord init(int internalTimestamp, String symbol, float price, int quantity,
+                                        SymbolDictionary dictionary)
+            throws InvalidArgumentException, MissingSymbolException {
+        newRecord();
+
+        setSymbolDictionary(dictionary);
+
+        record.putInt(internalTimestamp);
+        int code = dictionary.getCode(symbol);
+        if (code == SymbolDictionary.MISSING) {
+            throw new MissingSymbolException(symbol,"","No code found for symbol '"+symbol+"' in market tree (could be because of a new symbol and market tree update is in progress)");
+        }
+        record.putShort((short)code);
+        record.put(ByteArrayHelper.floatToBytes(price, PRICE_FIELD_LENGTH, 100)); // keep it this way as it is safer
+        record.putInt(quantity);
+        // last is the insertion timestamp, which we do not know yet
+        return this;
+    }
+
+    /**
+     * Initializes the record from values that are already in their internal representation, with no conversions
+     * @param internalTimestamp - the transaction time as an internal server timestamp
+     * @param symbolCode - the symbol code
+     * @param priceCents - the price of the transaction in cents
+     * @param quantity - the number of shares traded
+     * @return this
+     * @throws IllegalArgumentException if the symbol code does not fit the 2 byte symbol field
+     */
+    @Override
+    public final ITickStreamRecord init(int internalTimestamp, int symbolCode, int priceCents, int quantity) {
+        if (symbolCode < 0 || symbolCode > SymbolDictionary.MAX_CODE) {
+            throw new IllegalArgumentException("Symbol code "+symbolCode+" does not fit the "+SYMBOL_FIELD_LENGTH+" byte symbol field");
+        }
+        newRecord();
+
+        record.putInt(TRANSACTION_TS_FIELD_OFFSET, internalTimestamp);
+        record.putShort(SYMBOL_FIELD_OFFSET, (short) symbolCode);
+        record.putInt(PRICE_FIELD_OFFSET, priceCents);
+        record.putInt(QUANTITY_FIELD_OFFSET, quantity);
+        // last is the insertion timestamp, which we do not know yet
+        return this;
+    }
+
     private void newRecord() {
         record = ByteBuffer.allocate(RECORD_LENGTH);
     }
@@ -162,6 +265,11 @@ public class TickStreamRecord implements ITickStreamRecord {
         codeToSymbol = backwardMap;
     }
 
+    public TickStreamRecord(byte[] bytes, SymbolDictionary dictionary) {
+        record = ByteBuffer.wrap(bytes);
+        this.dictionary = dictionary;
+    }
+
     /**
      * Returns the raw backing array. Caution! This is not a clone of the array but the actual array.
      * This operation is not only dangerous, but also very not thread safe. It is, however very efficient and creates
@@ -198,8 +306,16 @@ public class TickStreamRecord implements ITickStreamRecord {
 
     @Override
     public String getSymbol() {
-        record.position(SYMBOL_FIELD_OFFSET);
-        return codeToSymbol.get((int)record.getShort()); // more efficient as we use a 2 byte representation of the symbol code
+        int code = getSymbolCode();
+        if (dictionary != null) {
+            return dictionary.getSymbol(code); // no boxing
+        }
+        return codeToSymbol.get(code);
+    }
+
+    @Override
+    public int getSymbolCode() {
+        return record.getShort(SYMBOL_FIELD_OFFSET); // more efficient as we use a 2 byte representation of the symbol code
     }
 
     @Override
@@ -209,6 +325,11 @@ public class TickStreamRecord implements ITickStreamRecord {
         return ((float) intValue) / 100;
     }
 
+    @Override
+    public int getPriceCents() {
+        return record.getInt(PRICE_FIELD_OFFSET);
+    }
+
     @Override
     public int getQuantity() {
         record.position(QUANTITY_FIELD_OFFSET);
@@ -255,6 +376,33 @@ public class TickStreamRecord implements ITickStreamRecord {
         this.codeToSymbol = codeToSymbol;
     }
 
+    /**
+     * Sets the dictionary used for translating symbol codes. When set, it is used instead of the maps.
+     * @param dictionary the dictionary
+     * @throws InvalidArgumentException if the dictionary is null or has codes that do not fit the 2 byte symbol field
+     */
+    public void setSymbolDictionary(SymbolDictionary dictionary) throws InvalidArgumentException {
+        if (dictionary==null) {
+            throw new InvalidArgumentException("symbol dictionary may not be null");
+        }
+        if (!dictionary.isCompact()) {
+            throw new InvalidArgumentException("symbol dictionary has codes up to "+dictionary.getMaxCode()+", which do not fit the "+SYMBOL_FIELD_LENGTH+" byte symbol field");
+        }
+        this.dictionary = dictionary;
+    }
+
+    public SymbolDictionary getSymbolDictionary() {
+        return dictionary;
+    }
+
+    public static byte[] symbolToBytes(String symbol, SymbolDictionary dictionary) throws InvalidArgumentException {
+        int code = dictionary.getCode(symbol);
+        if (code == SymbolDictionary.MISSING) {
+            throw new InvalidArgumentException("Could not find symbol '"+symbol+"' in dictionary!");
+        }
+        return ByteArrayHelper.intToBytes(code, SYMBOL_FIELD_LENGTH);
+    }
+
     public static byte[] symbolToBytes(String symbol, AbstractMap<String,Integer> map) throws InvalidArgumentException {
         Integer code = (Integer)map.get(symbol);
         if (code == null) {
@@ -284,6 +432,28 @@ public class TickStreamRecord implements ITickStreamRecord {
         return bytesToSymbol(ByteArrayHelper.intToBytes(code,SYMBOL_FIELD_LENGTH), map);
     }
 
+    public static String bytesToSymbol(byte[] bytes, SymbolDictionary dictionary) throws InvalidArgumentException {
+        if (bytes.length != 2) {
+            throw new InvalidArgumentException("The byte array must be of length 2. Got "+bytes.length);
+        }
+        return bytesToSymbol(((bytes[0] & 0xff) << 8) | (bytes[1] & 0xff), dictionary);
+    }
+
+    /**
+     * Translates a code to a symbol without creating any temporary objects
+     * @param code the symbol code
+     * @param dictionary the dictionary to use
+     * @return the symbol
+     * @throws InvalidArgumentException if the code is not in the dictionary
+     */
+    public static String bytesToSymbol(int code, SymbolDictionary dictionary) throws InvalidArgumentException {
+        String retval = dictionary.getSymbol(code);
+        if (retval == null) {
+            throw new InvalidArgumentException("No corresponding symbol found for code "+code);
+        }
+        return retval;
+    }
+
     public static byte[] priceToBytes(float price) throws InvalidArgumentException {
         return ByteArrayHelper.floatToBytes(price, PRICE_FIELD_LENGTH, 100);
     }
@@ -34,6 +34,15 @@ public class TimeSlotBarWithTimeStamp extends TimeSlotBar {
         super();
     }
 
+    /**
+     * resets the values, including the time stamp, so that the bar can be reused
+     */
+    @Override
+    public void reset() {
+        super.reset();
+        timestamp = null;
+    }
+
     public Calendar getTimestamp() {
         return timestamp;
     }
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.moscona.trading.streaming;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a thread waits for a sequence to become available (a consumer waiting for the producer or a producer waiting
+ * for the slowest consumer to free a slot). The choice trades CPU use for latency.
+ */
+public enum WaitStrategy {
+    /**
+     * Spins on the CPU. Lowest latency, burns a core per waiting thread. Use only with dedicated cores.
+     */
+    BUSY_SPIN {
+        @Override
+        public int idle(int counter) {
+            return counter + 1;
+        }
+    },
+    /**
+     * Spins for a while and then yields the CPU to other threads. A good compromise when there are spare cores.
+     */
+    YIELDING {
+        @Override
+        public int idle(int counter) {
+            if (counter < SPIN_TRIES) {
+                return counter + 1;
+            }
+            Thread.yield();
+            return counter + 1;
+        }
+    },
+    /**
+     * Spins, then yields, then parks for a short while. Lowest CPU use, highest latency.
+     */
+    PARKING {
+        @Override
+        public int idle(int counter) {
+            if (counter < SPIN_TRIES) {
+                return counter + 1;
+            }
+            if (counter < SPIN_TRIES + YIELD_TRIES) {
+                Thread.yield();
+                return counter + 1;
+            }
+            LockSupport.parkNanos(PARK_NANOS);
+            return counter;
+        }
+    };
+
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 100;
+    private static final long PARK_NANOS = 50000L;
+
+    /**
+     * Called repeatedly while a condition is not met.
+     * @param counter the number of times idle() was called for the current wait (start with 0)
+     * @return the counter to pass into the next call
+     */
+    public abstract int idle(int counter);
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.trading.streaming;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The wide tick record layout (version 2): 40 bytes with 32 bit symbol codes, microsecond timestamps and the feed
+ * sequence number, for universes beyond 32,767 symbols and for ordering bursts within a millisecond.
+ * <pre>
+ *     0  byte  version (2)
+ *     1  3 bytes reserved (0)
+ *     4  int   symbol code
+ *     8  long  transaction time in microseconds since midnight
+ *     16 long  feed sequence number
+ *     24 int   price in cents
+ *     28 int   quantity
+ *     32 long  insertion time in microseconds since midnight
+ * </pre>
+ */
+public class WideTickRecordCodec extends TickRecordCodec {
+    public static final int VERSION = 2;
+    public static final int RECORD_LENGTH = 40;
+
+    public static final int VERSION_FIELD_OFFSET = 0;
+    public static final int SYMBOL_FIELD_OFFSET = 4;
+    public static final int TRANSACTION_MICROS_FIELD_OFFSET = 8;
+    public static final int SEQUENCE_FIELD_OFFSET = 16;
+    public static final int PRICE_FIELD_OFFSET = 24;
+    public static final int QUANTITY_FIELD_OFFSET = 28;
+    public static final int INSERTION_MICROS_FIELD_OFFSET = 32;
+
+    WideTickRecordCodec() {
+
+    }
+
+    @Override
+    public int getVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public int getRecordLength() {
+        return RECORD_LENGTH;
+    }
+
+    @Override
+    public int getMaxSymbolCode() {
+        return Integer.MAX_VALUE - 1;
+    }
+
+    @Override
+    public boolean canHold(int symbolCode) {
+        return true;
+    }
+
+    @Override
+    public int getTransactionTimestamp(ByteBuffer buffer, int offset) {
+        return (int) (buffer.getLong(offset + TRANSACTION_MICROS_FIELD_OFFSET) / 1000);
+    }
+
+    @Override
+    public long getTransactionMicros(ByteBuffer buffer, int offset) {
+        return buffer.getLong(offset + TRANSACTION_MICROS_FIELD_OFFSET);
+    }
+
+    @Override
+    public int getSymbolCode(ByteBuffer buffer, int offset) {
+        return buffer.getInt(offset + SYMBOL_FIELD_OFFSET);
+    }
+
+    @Override
+    public int getPriceCents(ByteBuffer buffer, int offset) {
+        return buffer.getInt(offset + PRICE_FIELD_OFFSET);
+    }
+
+    @Override
+    public int getQuantity(ByteBuffer buffer, int offset) {
+        return buffer.getInt(offset + QUANTITY_FIELD_OFFSET);
+    }
+
+    @Override
+    public int getInsertionTimestamp(ByteBuffer buffer, int offset) {
+        return (int) (buffer.getLong(offset + INSERTION_MICROS_FIELD_OFFSET) / 1000);
+    }
+
+    /**
+     * @return the insertion time in microseconds since midnight
+     */
+    public long getInsertionMicros(ByteBuffer buffer, int offset) {
+        return buffer.getLong(offset + INSERTION_MICROS_FIELD_OFFSET);
+    }
+
+    @Override
+    public long getSequence(ByteBuffer buffer, int offset) {
+        return buffer.getLong(offset + SEQUENCE_FIELD_OFFSET);
+    }
+
+    @Override
+    public void setInsertionTimestamp(ByteBuffer buffer, int offset, int internalTimestamp) {
+        buffer.putLong(offset + INSERTION_MICROS_FIELD_OFFSET, internalTimestamp * 1000L);
+    }
+
+    /**
+     * @param micros the insertion time in microseconds since midnight
+     */
+    public void setInsertionMicros(ByteBuffer buffer, int offset, long micros) {
+        buffer.putLong(offset + INSERTION_MICROS_FIELD_OFFSET, micros);
+    }
+
+    @Override
+    public void write(ByteBuffer buffer, int offset, long transactionMicros, int symbolCode, int priceCents, int quantity, long sequence) {
+        buffer.putInt(offset + VERSION_FIELD_OFFSET, VERSION << 24); // version byte followed by 3 reserved zero bytes
+        buffer.putInt(offset + SYMBOL_FIELD_OFFSET, symbolCode);
+        buffer.putLong(offset + TRANSACTION_MICROS_FIELD_OFFSET, transactionMicros);
+        buffer.putLong(offset + SEQUENCE_FIELD_OFFSET, sequence);
+        buffer.putInt(offset + PRICE_FIELD_OFFSET, priceCents);
+        buffer.putInt(offset + QUANTITY_FIELD_OFFSET, quantity);
+        buffer.putLong(offset + INSERTION_MICROS_FIELD_OFFSET, 0L);
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.moscona.test.easyb
+
+import com.moscona.trading.ServicesBundle
+import com.moscona.util.monitoring.stats.IStatsService
+
+/**
+ * A stats service that keeps the stats in a map, for checking what a stage published
+ */
+class MockStatsService {
+  Map stats = [:]
+
+  /**
+   * @return a stats service that records into the stats map
+   */
+  IStatsService getService() {
+    [setStat: { name, value -> stats[name] = value }, incStat: { name -> stats[name] = (stats[name] ?: 0L) + 1 }] as IStatsService
+  }
+
+  /**
+   * @return a services bundle with just this stats service
+   */
+  ServicesBundle getServicesBundle() {
+    new ServicesBundle(service, null)
+  }
+}